@@ -1,6 +1,7 @@
 package cam72cam.mod;
 
 import cam72cam.mod.config.ConfigFile;
+import cam72cam.mod.model.obj.OBJTexturePacker;
 
 @ConfigFile.Comment("Configuration File")
 @ConfigFile.Name("general")
@@ -24,4 +25,46 @@ public class Config {
 
     @ConfigFile.Comment("Enable threaded texture loading")
     public static boolean ThreadedTextureLoading = true;
+
+    @ConfigFile.Comment("Parse large models using multiple threads")
+    public static boolean ThreadedModelLoading = true;
+
+    @ConfigFile.Comment("Upload model vertices in a compact quantized format (less than half the VRAM, positions accurate to 1/65535th of the model size)")
+    public static boolean CompactVertexFormat = false;
+
+    @ConfigFile.Comment("Upload each unique model vertex once and draw through an index buffer")
+    public static boolean IndexedVertexFormat = false;
+
+    @ConfigFile.Comment("Draw models queued through Instances with one instanced draw call per model, group set and texture (needs OpenGL 3.3 or ARB_instanced_arrays)")
+    public static boolean InstancedRendering = true;
+
+    @ConfigFile.Comment("Store cached textures uncompressed and upload them straight from the mapped file (faster loading, uses more disk space)")
+    public static boolean UncompressedCache = false;
+
+    @ConfigFile.Comment("How model textures are arranged in texture sheets: BINARY_TREE (original) or MAX_RECTS (tighter sheets, less likely to be downscaled)")
+    public static OBJTexturePacker.Packing TexturePacking = OBJTexturePacker.Packing.BINARY_TREE;
+
+    @ConfigFile.Comment("Generate and upload mipmaps for model textures (smoother distant textures, a third more VRAM)")
+    public static boolean TextureMipmaps = false;
+
+    @ConfigFile.Comment("Store and upload model textures block compressed as BC1/BC3 (S3TC), a quarter to an eighth of the VRAM at a small loss in quality.  Compressed textures do not get mipmaps")
+    public static boolean TextureCompression = false;
+
+    @ConfigFile.Comment("Max KB of texture data to upload per frame, larger textures are streamed in over multiple frames to avoid stutter (0 == upload each texture at once)")
+    @ConfigFile.Range(min = 0, max = 262144)
+    public static int TextureUploadBudget = 0;
+
+    @ConfigFile.Comment("Max MB of textures being decoded at once by the background loader")
+    @ConfigFile.Range(min = 16, max = 4096)
+    public static int AssetLoaderMemory = 256;
+
+    @ConfigFile.Comment("MB of GPU memory model textures and vertex buffers may use before the least recently used are freed (-1 == half the GPU memory if the driver reports it, 0 == no limit)")
+    public static int VRAMLimit = -1;
+
+    @ConfigFile.Comment("Number of simplified model meshes to generate for distant rendering, each has roughly half the faces of the previous one (0 == disabled)")
+    @ConfigFile.Range(min = 0, max = 4)
+    public static int MeshLodLevels = 0;
+
+    @ConfigFile.Comment("Projected model size (fraction of half the screen height) below which the first simplified mesh is used")
+    public static double MeshLodScreenSize = 0.5;
 }
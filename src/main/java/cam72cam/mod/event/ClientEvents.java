@@ -12,7 +12,7 @@ import cam72cam.mod.render.GlobalRender;
 import cam72cam.mod.render.opengl.CustomTexture;
 import cam72cam.mod.render.opengl.RenderContext;
 import cam72cam.mod.render.opengl.RenderState;
-import cam72cam.mod.render.opengl.VBO;
+import cam72cam.mod.render.opengl.VRAMBudget;
 import cam72cam.mod.sound.Audio;
 import cam72cam.mod.world.World;
 import com.mojang.blaze3d.systems.RenderSystem;
@@ -48,7 +48,7 @@ public class ClientEvents {
         World.registerClientEvnets();
         CommonEvents.Entity.REGISTER.post(() -> REGISTER_ENTITY.execute(Runnable::run));
 
-        VBO.registerClientEvents();
+        VRAMBudget.registerClientEvents();
         CustomTexture.registerClientEvents();
 
         // Forge does not fire world unloaded client side
@@ -92,6 +92,8 @@ public class ClientEvents {
     public static final Event<Runnable> TICK = new Event<>();
     @Deprecated // TODO find a better hack
     public static final Event<Runnable> TICK_POST = new Event<>();
+    /** Start of each rendered frame */
+    public static final Event<Runnable> FRAME = new Event<>();
     public static final Event<Function<Player.Hand, Boolean>> DRAG = new Event<>();
     public static final Event<Function<Double, Boolean>> SCROLL = new Event<>();
     public static final Event<Function<Player.Hand, Boolean>> CLICK = new Event<>();
@@ -205,6 +207,9 @@ public class ClientEvents {
 
         @SubscribeEvent
         public static void onFrame(TickEvent.RenderTickEvent event) {
+            if (event.phase == TickEvent.Phase.START) {
+                FRAME.execute(Runnable::run);
+            }
             if (dragPos != null) {
                 //Minecraft.getMinecraft().mouseHelper.mouseXYChange();
                 dragPos = dragPos.add(Minecraft.getInstance().mouseHandler.getXVelocity(), Minecraft.getInstance().mouseHandler.getYVelocity(), 0);
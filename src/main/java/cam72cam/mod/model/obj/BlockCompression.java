@@ -0,0 +1,456 @@
+package cam72cam.mod.model.obj;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * BC1 / BC3 (S3TC DXT1 / DXT5) texture compression on the CPU
+ *
+ * Encoded textures start with their GL internal format (int), followed by 4x4 pixel blocks in row order.  Opaque
+ * textures use BC1 (4 bits per pixel), anything with alpha uses BC3 (8 bits per pixel).  Pixels are packed RGBA, as
+ * produced by ImageUtils.toRGBA.
+ */
+public class BlockCompression {
+    /** GL_COMPRESSED_RGB_S3TC_DXT1_EXT */
+    public static final int BC1 = 0x83F0;
+    /** GL_COMPRESSED_RGBA_S3TC_DXT5_EXT */
+    public static final int BC3 = 0x83F3;
+
+    private static final int HEADER = Integer.BYTES;
+    /** Position of each 4 color mode index between the endpoints */
+    private static final float[] WEIGHTS = {0, 1, 1 / 3f, 2 / 3f};
+    /** Best 5 / 6 bit endpoint pair per 8 bit value, such that the 2/3 point of the pair is closest to the value */
+    private static final int[][] SINGLE5 = singleColorTable(5);
+    private static final int[][] SINGLE6 = singleColorTable(6);
+
+    private static int[][] singleColorTable(int bits) {
+        int max = (1 << bits) - 1;
+        int[][] table = new int[256][];
+        for (int value = 0; value < 256; value++) {
+            int bestError = Integer.MAX_VALUE;
+            for (int e0 = 0; e0 <= max; e0++) {
+                for (int e1 = 0; e1 <= max; e1++) {
+                    int v0 = bits == 5 ? e0 << 3 | e0 >> 2 : e0 << 2 | e0 >> 4;
+                    int v1 = bits == 5 ? e1 << 3 | e1 >> 2 : e1 << 2 | e1 >> 4;
+                    int error = Math.abs((2 * v0 + v1) / 3 - value);
+                    if (error < bestError) {
+                        bestError = error;
+                        table[value] = new int[]{e0, e1};
+                    }
+                }
+            }
+        }
+        return table;
+    }
+
+    public static ByteBuffer encode(int[] pixels, int width, int height) {
+        boolean alpha = false;
+        for (int pixel : pixels) {
+            if ((pixel & 0xFF) != 0xFF) {
+                alpha = true;
+                break;
+            }
+        }
+
+        int format = alpha ? BC3 : BC1;
+        int blocksX = (width + 3) / 4;
+        int blocksY = (height + 3) / 4;
+        ByteBuffer out = ByteBuffer.allocate(HEADER + blocksX * blocksY * blockSize(format)).order(ByteOrder.LITTLE_ENDIAN);
+        out.putInt(format);
+
+        int[] block = new int[16];
+        for (int by = 0; by < blocksY; by++) {
+            for (int bx = 0; bx < blocksX; bx++) {
+                // Partial blocks on the edges repeat the last row / column
+                for (int i = 0; i < 16; i++) {
+                    int x = Math.min(bx * 4 + (i & 3), width - 1);
+                    int y = Math.min(by * 4 + (i >> 2), height - 1);
+                    block[i] = pixels[y * width + x];
+                }
+                if (alpha) {
+                    encodeAlpha(block, out);
+                }
+                encodeColor(block, out);
+            }
+        }
+        out.flip();
+        return out;
+    }
+
+    public static int format(ByteBuffer encoded) {
+        return encoded.duplicate().order(ByteOrder.LITTLE_ENDIAN).getInt(0);
+    }
+
+    /**
+     * @return the compressed blocks without the header, ready for glCompressedTexImage2D
+     */
+    public static ByteBuffer blocks(ByteBuffer encoded) {
+        ByteBuffer blocks = encoded.duplicate();
+        blocks.position(HEADER);
+        return blocks.slice();
+    }
+
+    private static int blockSize(int format) {
+        return format == BC1 ? 8 : 16;
+    }
+
+    /**
+     * Expand back to packed RGBA pixels (see toRGBA), for drivers without S3TC support
+     */
+    public static int[] decode(ByteBuffer encoded, int width, int height) {
+        int format = format(encoded);
+        ByteBuffer in = blocks(encoded).order(ByteOrder.LITTLE_ENDIAN);
+        int[] pixels = new int[width * height];
+        int[] block = new int[16];
+        int[] alphas = new int[16];
+        int blocksX = (width + 3) / 4;
+        int blocksY = (height + 3) / 4;
+        for (int by = 0; by < blocksY; by++) {
+            for (int bx = 0; bx < blocksX; bx++) {
+                if (format == BC3) {
+                    decodeAlpha(in, alphas);
+                }
+                decodeColor(in, block, format == BC1);
+                for (int i = 0; i < 16; i++) {
+                    int x = bx * 4 + (i & 3);
+                    int y = by * 4 + (i >> 2);
+                    if (x < width && y < height) {
+                        pixels[y * width + x] = format == BC3 ? block[i] & 0xFFFFFF00 | alphas[i] : block[i];
+                    }
+                }
+            }
+        }
+        return pixels;
+    }
+
+    private static int to565(float r, float g, float b) {
+        int r5 = Math.max(0, Math.min(31, Math.round(r * 31 / 255)));
+        int g6 = Math.max(0, Math.min(63, Math.round(g * 63 / 255)));
+        int b5 = Math.max(0, Math.min(31, Math.round(b * 31 / 255)));
+        return r5 << 11 | g6 << 5 | b5;
+    }
+
+    /**
+     * 565 color to packed RGBA, opaque
+     */
+    private static int from565(int color) {
+        int r = color >> 11 & 31;
+        int g = color >> 5 & 63;
+        int b = color & 31;
+        return (r << 3 | r >> 2) << 24 | (g << 2 | g >> 4) << 16 | (b << 3 | b >> 2) << 8 | 0xFF;
+    }
+
+    private static int mix(int a, int b, int weightA, int weightB, int divisor) {
+        int out = 0;
+        for (int shift = 8; shift <= 24; shift += 8) {
+            int ca = a >>> shift & 0xFF;
+            int cb = b >>> shift & 0xFF;
+            out |= (ca * weightA + cb * weightB) / divisor << shift;
+        }
+        return out | 0xFF;
+    }
+
+    private static void palette(int c0, int c1, int[] palette, boolean allowTransparent) {
+        palette[0] = from565(c0);
+        palette[1] = from565(c1);
+        if (c0 > c1 || !allowTransparent) {
+            palette[2] = mix(palette[0], palette[1], 2, 1, 3);
+            palette[3] = mix(palette[0], palette[1], 1, 2, 3);
+        } else {
+            palette[2] = mix(palette[0], palette[1], 1, 1, 2);
+            palette[3] = 0;
+        }
+    }
+
+    private static int distance(int a, int b) {
+        int dr = (a >>> 24) - (b >>> 24);
+        int dg = (a >> 16 & 0xFF) - (b >> 16 & 0xFF);
+        int db = (a >> 8 & 0xFF) - (b >> 8 & 0xFF);
+        return dr * dr + dg * dg + db * db;
+    }
+
+    /**
+     * Pick the closest palette entry per pixel
+     *
+     * @return total squared error
+     */
+    private static long indices(int[] block, int[] palette, int[] indices) {
+        long error = 0;
+        for (int i = 0; i < 16; i++) {
+            int best = 0;
+            int bestDistance = Integer.MAX_VALUE;
+            for (int p = 0; p < 4; p++) {
+                int d = distance(block[i], palette[p]);
+                if (d < bestDistance) {
+                    bestDistance = d;
+                    best = p;
+                }
+            }
+            indices[i] = best;
+            error += bestDistance;
+        }
+        return error;
+    }
+
+    private static void encodeColor(int[] block, ByteBuffer out) {
+        boolean solid = true;
+        for (int pixel : block) {
+            solid &= (pixel & 0xFFFFFF00) == (block[0] & 0xFFFFFF00);
+        }
+        if (solid) {
+            encodeSolidColor(block[0], out);
+            return;
+        }
+
+        // Principal axis of the block's colors
+        float[] mean = new float[3];
+        for (int pixel : block) {
+            mean[0] += pixel >>> 24;
+            mean[1] += pixel >> 16 & 0xFF;
+            mean[2] += pixel >> 8 & 0xFF;
+        }
+        for (int c = 0; c < 3; c++) {
+            mean[c] /= 16;
+        }
+        float[] cov = new float[6];
+        for (int pixel : block) {
+            float r = (pixel >>> 24) - mean[0];
+            float g = (pixel >> 16 & 0xFF) - mean[1];
+            float b = (pixel >> 8 & 0xFF) - mean[2];
+            cov[0] += r * r;
+            cov[1] += r * g;
+            cov[2] += r * b;
+            cov[3] += g * g;
+            cov[4] += g * b;
+            cov[5] += b * b;
+        }
+        float ax = 1, ay = 1, az = 1;
+        for (int iter = 0; iter < 8; iter++) {
+            float nx = cov[0] * ax + cov[1] * ay + cov[2] * az;
+            float ny = cov[1] * ax + cov[3] * ay + cov[4] * az;
+            float nz = cov[2] * ax + cov[4] * ay + cov[5] * az;
+            float length = Math.max(Math.abs(nx), Math.max(Math.abs(ny), Math.abs(nz)));
+            if (length < 1e-6f) {
+                break;
+            }
+            ax = nx / length;
+            ay = ny / length;
+            az = nz / length;
+        }
+
+        // Extremes along the axis as the first guess
+        int min = block[0];
+        int max = block[0];
+        float minDot = Float.MAX_VALUE;
+        float maxDot = -Float.MAX_VALUE;
+        for (int pixel : block) {
+            float dot = (pixel >>> 24) * ax + (pixel >> 16 & 0xFF) * ay + (pixel >> 8 & 0xFF) * az;
+            if (dot < minDot) {
+                minDot = dot;
+                min = pixel;
+            }
+            if (dot > maxDot) {
+                maxDot = dot;
+                max = pixel;
+            }
+        }
+        int c0 = to565(max >>> 24, max >> 16 & 0xFF, max >> 8 & 0xFF);
+        int c1 = to565(min >>> 24, min >> 16 & 0xFF, min >> 8 & 0xFF);
+
+        int[] palette = new int[4];
+        int[] indices = new int[16];
+        int[] bestIndices = new int[16];
+        palette(Math.max(c0, c1), Math.min(c0, c1), palette, false);
+        long bestError = indices(block, palette, bestIndices);
+        int best0 = Math.max(c0, c1);
+        int best1 = Math.min(c0, c1);
+
+        // Least squares fit of the endpoints to the chosen indices, a couple of rounds
+        for (int iter = 0; iter < 2 && bestError > 0; iter++) {
+            float aa = 0, bb = 0, ab = 0;
+            float[] ax2 = new float[3];
+            float[] bx2 = new float[3];
+            for (int i = 0; i < 16; i++) {
+                float t = WEIGHTS[bestIndices[i]];
+                float a = 1 - t;
+                aa += a * a;
+                bb += t * t;
+                ab += a * t;
+                int pixel = block[i];
+                float[] color = {pixel >>> 24, pixel >> 16 & 0xFF, pixel >> 8 & 0xFF};
+                for (int c = 0; c < 3; c++) {
+                    ax2[c] += a * color[c];
+                    bx2[c] += t * color[c];
+                }
+            }
+            float det = aa * bb - ab * ab;
+            if (Math.abs(det) < 1e-6f) {
+                break;
+            }
+            float[] e0 = new float[3];
+            float[] e1 = new float[3];
+            for (int c = 0; c < 3; c++) {
+                e0[c] = (ax2[c] * bb - bx2[c] * ab) / det;
+                e1[c] = (bx2[c] * aa - ax2[c] * ab) / det;
+            }
+            c0 = to565(e0[0], e0[1], e0[2]);
+            c1 = to565(e1[0], e1[1], e1[2]);
+            palette(Math.max(c0, c1), Math.min(c0, c1), palette, false);
+            long error = indices(block, palette, indices);
+            if (error >= bestError) {
+                break;
+            }
+            bestError = error;
+            best0 = Math.max(c0, c1);
+            best1 = Math.min(c0, c1);
+            System.arraycopy(indices, 0, bestIndices, 0, 16);
+        }
+
+        if (best0 == best1) {
+            // 3 color mode, only index 0 is valid and it is the exact color
+            Arrays.fill(bestIndices, 0);
+        }
+        out.putShort((short) best0);
+        out.putShort((short) best1);
+        int bits = 0;
+        for (int i = 0; i < 16; i++) {
+            bits |= bestIndices[i] << (i * 2);
+        }
+        out.putInt(bits);
+    }
+
+    /**
+     * Flat areas get endpoints whose interpolated color is closer than the nearest 565 color
+     */
+    private static void encodeSolidColor(int pixel, ByteBuffer out) {
+        int[] r = SINGLE5[pixel >>> 24];
+        int[] g = SINGLE6[pixel >> 16 & 0xFF];
+        int[] b = SINGLE5[pixel >> 8 & 0xFF];
+        int c0 = r[0] << 11 | g[0] << 5 | b[0];
+        int c1 = r[1] << 11 | g[1] << 5 | b[1];
+        int index = 2;
+        if (c0 < c1) {
+            // Keep 4 color mode, the same mix is index 3 with the endpoints swapped
+            int swap = c0;
+            c0 = c1;
+            c1 = swap;
+            index = 3;
+        } else if (c0 == c1) {
+            index = 0;
+        }
+        out.putShort((short) c0);
+        out.putShort((short) c1);
+        int bits = 0;
+        for (int i = 0; i < 16; i++) {
+            bits |= index << (i * 2);
+        }
+        out.putInt(bits);
+    }
+
+    private static void decodeColor(ByteBuffer in, int[] block, boolean allowTransparent) {
+        int c0 = in.getShort() & 0xFFFF;
+        int c1 = in.getShort() & 0xFFFF;
+        int bits = in.getInt();
+        int[] palette = new int[4];
+        palette(c0, c1, palette, allowTransparent);
+        for (int i = 0; i < 16; i++) {
+            block[i] = palette[bits >>> (i * 2) & 3];
+        }
+    }
+
+    private static void alphaPalette(int a0, int a1, int[] palette) {
+        palette[0] = a0;
+        palette[1] = a1;
+        if (a0 > a1) {
+            for (int i = 1; i < 7; i++) {
+                palette[i + 1] = ((7 - i) * a0 + i * a1) / 7;
+            }
+        } else {
+            for (int i = 1; i < 5; i++) {
+                palette[i + 1] = ((5 - i) * a0 + i * a1) / 5;
+            }
+            palette[6] = 0;
+            palette[7] = 255;
+        }
+    }
+
+    private static long alphaIndices(int[] block, int[] palette, int[] indices) {
+        long error = 0;
+        for (int i = 0; i < 16; i++) {
+            int alpha = block[i] & 0xFF;
+            int best = 0;
+            int bestDistance = Integer.MAX_VALUE;
+            for (int p = 0; p < 8; p++) {
+                int d = Math.abs(alpha - palette[p]);
+                if (d < bestDistance) {
+                    bestDistance = d;
+                    best = p;
+                }
+            }
+            indices[i] = best;
+            error += (long) bestDistance * bestDistance;
+        }
+        return error;
+    }
+
+    private static void encodeAlpha(int[] block, ByteBuffer out) {
+        int min = 255;
+        int max = 0;
+        // Ignoring the 0 and 255 extremes, those are explicit in the 6 value mode
+        int innerMin = 255;
+        int innerMax = 0;
+        for (int pixel : block) {
+            int alpha = pixel & 0xFF;
+            min = Math.min(min, alpha);
+            max = Math.max(max, alpha);
+            if (alpha != 0 && alpha != 255) {
+                innerMin = Math.min(innerMin, alpha);
+                innerMax = Math.max(innerMax, alpha);
+            }
+        }
+
+        int[] palette = new int[8];
+        int[] indices = new int[16];
+        int[] bestIndices = new int[16];
+
+        int a0 = max;
+        int a1 = min;
+        alphaPalette(a0, a1, palette);
+        long bestError = alphaIndices(block, palette, bestIndices);
+
+        if (bestError > 0 && innerMin <= innerMax) {
+            alphaPalette(innerMin, innerMax, palette);
+            long error = alphaIndices(block, palette, indices);
+            if (error < bestError) {
+                a0 = innerMin;
+                a1 = innerMax;
+                System.arraycopy(indices, 0, bestIndices, 0, 16);
+            }
+        }
+
+        out.put((byte) a0);
+        out.put((byte) a1);
+        long bits = 0;
+        for (int i = 0; i < 16; i++) {
+            bits |= (long) bestIndices[i] << (i * 3);
+        }
+        for (int i = 0; i < 6; i++) {
+            out.put((byte) (bits >>> (i * 8)));
+        }
+    }
+
+    private static void decodeAlpha(ByteBuffer in, int[] alphas) {
+        int a0 = in.get() & 0xFF;
+        int a1 = in.get() & 0xFF;
+        long bits = 0;
+        for (int i = 0; i < 6; i++) {
+            bits |= (long) (in.get() & 0xFF) << (i * 8);
+        }
+        int[] palette = new int[8];
+        alphaPalette(a0, a1, palette);
+        for (int i = 0; i < 16; i++) {
+            alphas[i] = palette[(int) (bits >>> (i * 3) & 7)];
+        }
+    }
+}
@@ -19,6 +19,20 @@ public class Buffers {
             pos++;
         }
 
+        public void addAll(FloatBuffer other) {
+            if (pos + other.pos > buffer.length) {
+                float[] newBuffer = new float[Math.max(buffer.length * 2, pos + other.pos)];
+                System.arraycopy(buffer, 0, newBuffer, 0, pos);
+                buffer = newBuffer;
+            }
+            System.arraycopy(other.buffer, 0, buffer, pos, other.pos);
+            pos += other.pos;
+        }
+
+        public float get(int idx) {
+            return buffer[idx];
+        }
+
         public float[] array() {
             float[] newBuffer = new float[pos];
             System.arraycopy(buffer, 0, newBuffer, 0, pos);
@@ -48,6 +62,20 @@ public class Buffers {
             pos++;
         }
 
+        public void addAll(IntBuffer other) {
+            if (pos + other.pos > buffer.length) {
+                int[] newBuffer = new int[Math.max(buffer.length * 2, pos + other.pos)];
+                System.arraycopy(buffer, 0, newBuffer, 0, pos);
+                buffer = newBuffer;
+            }
+            System.arraycopy(other.buffer, 0, buffer, pos, other.pos);
+            pos += other.pos;
+        }
+
+        public int get(int idx) {
+            return buffer[idx];
+        }
+
         public int[] array() {
             int[] newBuffer = new int[pos];
             System.arraycopy(buffer, 0, newBuffer, 0, pos);
@@ -0,0 +1,486 @@
+package cam72cam.mod.model.obj;
+
+import org.apache.commons.lang3.tuple.Pair;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decodes PNG and TGA textures straight into TYPE_INT_ARGB images, without going through ImageIO's readers and the
+ * per pixel ColorModel conversions that come with them.
+ *
+ * Formats which are not handled here (interlaced PNGs, JPEG, unusual TGA layouts, ...) return null so the caller can
+ * fall back to ImageIO.
+ */
+public class ImageDecoder {
+    private static final byte[] PNG_SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+
+    public static BufferedImage read(byte[] data) throws IOException {
+        if (isPNG(data)) {
+            return readPNG(data);
+        }
+        if (isTGA(data)) {
+            return readTGA(data);
+        }
+        return null;
+    }
+
+    /**
+     * Reads only the image header, of PNG (including interlaced), JPEG and the TGA types read handles
+     *
+     * @return width and height, or null for any other format and for right-to-left TGAs
+     */
+    public static Pair<Integer, Integer> size(byte[] data) throws IOException {
+        if (isPNG(data)) {
+            // IHDR is always the first chunk
+            if (data.length < 24 || !new String(data, 12, 4, StandardCharsets.US_ASCII).equals("IHDR")) {
+                throw new IOException("Missing PNG header");
+            }
+            return Pair.of(readInt(data, 16), readInt(data, 20));
+        }
+        if (isTGA(data)) {
+            if ((data[17] & 0x10) != 0) {
+                return null;
+            }
+            return Pair.of(readShortLE(data, 12), readShortLE(data, 14));
+        }
+        if (data.length > 2 && (data[0] & 0xFF) == 0xFF && (data[1] & 0xFF) == 0xD8) {
+            return jpegSize(data);
+        }
+        return null;
+    }
+
+    private static Pair<Integer, Integer> jpegSize(byte[] data) throws IOException {
+        int offset = 2;
+        while (offset + 4 <= data.length) {
+            if ((data[offset] & 0xFF) != 0xFF) {
+                throw new IOException("Invalid JPEG marker");
+            }
+            int marker = data[offset + 1] & 0xFF;
+            if (marker == 0xFF) {
+                // Fill byte
+                offset++;
+                continue;
+            }
+            int length = (data[offset + 2] & 0xFF) << 8 | (data[offset + 3] & 0xFF);
+            // Start of frame, except DHT, JPG and DAC which share the range
+            if (marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC) {
+                if (offset + 9 > data.length) {
+                    break;
+                }
+                int height = (data[offset + 5] & 0xFF) << 8 | (data[offset + 6] & 0xFF);
+                int width = (data[offset + 7] & 0xFF) << 8 | (data[offset + 8] & 0xFF);
+                return Pair.of(width, height);
+            }
+            offset += 2 + length;
+        }
+        throw new IOException("Missing JPEG frame header");
+    }
+
+    private static boolean isPNG(byte[] data) {
+        if (data.length < PNG_SIGNATURE.length) {
+            return false;
+        }
+        for (int i = 0; i < PNG_SIGNATURE.length; i++) {
+            if (data[i] != PNG_SIGNATURE[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isTGA(byte[] data) {
+        // TGA has no magic number, check that the header is sane for the image types we can read
+        if (data.length < 18) {
+            return false;
+        }
+        int colorMapType = data[1] & 0xFF;
+        int imageType = data[2] & 0xFF;
+        int pixelDepth = data[16] & 0xFF;
+        switch (imageType) {
+            case 1:
+            case 9:
+                return colorMapType == 1 && pixelDepth == 8;
+            case 2:
+            case 10:
+                return colorMapType == 0 && (pixelDepth == 24 || pixelDepth == 32);
+            case 3:
+            case 11:
+                return colorMapType == 0 && pixelDepth == 8;
+            default:
+                return false;
+        }
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return (data[offset] & 0xFF) << 24 | (data[offset + 1] & 0xFF) << 16 | (data[offset + 2] & 0xFF) << 8 | (data[offset + 3] & 0xFF);
+    }
+
+    private static int readShortLE(byte[] data, int offset) {
+        return (data[offset] & 0xFF) | (data[offset + 1] & 0xFF) << 8;
+    }
+
+    private static BufferedImage create(int width, int height) throws IOException {
+        if (width <= 0 || height <= 0 || (long) width * height > Integer.MAX_VALUE) {
+            throw new IOException(String.format("Invalid image size %sx%s", width, height));
+        }
+        return new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+    }
+
+    private static int[] pixels(BufferedImage image) {
+        return ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+    }
+
+    private static BufferedImage readPNG(byte[] data) throws IOException {
+        int width = 0;
+        int height = 0;
+        int bitDepth = 0;
+        int colorType = -1;
+        int[] palette = null;
+        byte[] transparency = null;
+        // offset, length pairs
+        List<int[]> idat = new ArrayList<>();
+
+        int offset = PNG_SIGNATURE.length;
+        while (offset + 8 <= data.length) {
+            int length = readInt(data, offset);
+            int start = offset + 8;
+            if (length < 0 || start + length > data.length) {
+                throw new IOException("Truncated PNG chunk");
+            }
+            switch (new String(data, offset + 4, 4, StandardCharsets.US_ASCII)) {
+                case "IHDR":
+                    width = readInt(data, start);
+                    height = readInt(data, start + 4);
+                    bitDepth = data[start + 8] & 0xFF;
+                    colorType = data[start + 9] & 0xFF;
+                    if (data[start + 10] != 0 || data[start + 11] != 0) {
+                        throw new IOException("Unknown PNG compression or filter method");
+                    }
+                    if (data[start + 12] != 0) {
+                        // Interlaced
+                        return null;
+                    }
+                    break;
+                case "PLTE":
+                    palette = new int[length / 3];
+                    for (int i = 0; i < palette.length; i++) {
+                        int p = start + i * 3;
+                        palette[i] = 0xFF000000 | (data[p] & 0xFF) << 16 | (data[p + 1] & 0xFF) << 8 | (data[p + 2] & 0xFF);
+                    }
+                    break;
+                case "tRNS":
+                    transparency = new byte[length];
+                    System.arraycopy(data, start, transparency, 0, length);
+                    break;
+                case "IDAT":
+                    idat.add(new int[]{start, length});
+                    break;
+            }
+            // length, type, data and crc
+            offset = start + length + 4;
+        }
+
+        int channels;
+        switch (colorType) {
+            case 0:
+                channels = 1;
+                break;
+            case 2:
+                channels = 3;
+                break;
+            case 3:
+                channels = 1;
+                if (palette == null) {
+                    throw new IOException("Missing PNG palette");
+                }
+                break;
+            case 4:
+                channels = 2;
+                break;
+            case 6:
+                channels = 4;
+                break;
+            default:
+                throw new IOException("Unknown PNG color type " + colorType);
+        }
+        boolean validDepth = bitDepth == 8 || bitDepth == 16 && colorType != 3 || bitDepth < 8 && (colorType == 0 || colorType == 3) && Integer.bitCount(bitDepth) == 1;
+        if (!validDepth) {
+            throw new IOException(String.format("Invalid PNG bit depth %s for color type %s", bitDepth, colorType));
+        }
+
+        BufferedImage image = create(width, height);
+        int[] pixels = pixels(image);
+
+        if (colorType == 3 && transparency != null) {
+            for (int i = 0; i < transparency.length && i < palette.length; i++) {
+                palette[i] = (transparency[i] & 0xFF) << 24 | palette[i] & 0xFFFFFF;
+            }
+        }
+        // Sample values (at full bit depth) which are fully transparent
+        int transparentGray = -1;
+        long transparentRGB = -1;
+        if (transparency != null && colorType == 0 && transparency.length >= 2) {
+            transparentGray = (transparency[0] & 0xFF) << 8 | (transparency[1] & 0xFF);
+        }
+        if (transparency != null && colorType == 2 && transparency.length >= 6) {
+            transparentRGB = 0;
+            for (int i = 0; i < 6; i++) {
+                transparentRGB = transparentRGB << 8 | (transparency[i] & 0xFF);
+            }
+        }
+
+        int rowBytes = (int) (((long) width * channels * bitDepth + 7) / 8);
+        // Filters work on whole pixels, or whole bytes for sub byte depths
+        int filterStride = Math.max(1, channels * bitDepth / 8);
+        byte[] previous = new byte[rowBytes];
+        byte[] current = new byte[rowBytes];
+        byte[] filter = new byte[1];
+
+        Inflater inflater = new Inflater();
+        try {
+            int[] chunk = {0};
+            for (int y = 0; y < height; y++) {
+                inflate(inflater, data, idat, chunk, filter, 1);
+                inflate(inflater, data, idat, chunk, current, rowBytes);
+                unfilter(filter[0] & 0xFF, current, previous, filterStride);
+
+                int row = y * width;
+                switch (colorType) {
+                    case 0:
+                        if (bitDepth == 16) {
+                            for (int x = 0; x < width; x++) {
+                                int sample = (current[x * 2] & 0xFF) << 8 | (current[x * 2 + 1] & 0xFF);
+                                int gray = current[x * 2] & 0xFF;
+                                pixels[row + x] = (sample == transparentGray ? 0 : 0xFF000000) | gray << 16 | gray << 8 | gray;
+                            }
+                        } else {
+                            int max = (1 << bitDepth) - 1;
+                            for (int x = 0; x < width; x++) {
+                                int sample = bitDepth == 8 ? current[x] & 0xFF : subByte(current, x, bitDepth);
+                                int gray = sample * 255 / max;
+                                pixels[row + x] = (sample == transparentGray ? 0 : 0xFF000000) | gray << 16 | gray << 8 | gray;
+                            }
+                        }
+                        break;
+                    case 2:
+                        for (int x = 0, c = bitDepth / 8; x < width; x++) {
+                            int p = x * 3 * c;
+                            int r = current[p] & 0xFF;
+                            int g = current[p + c] & 0xFF;
+                            int b = current[p + 2 * c] & 0xFF;
+                            long sample = 0;
+                            for (int i = 0; i < 3; i++) {
+                                int high = c == 2 ? current[p + i * 2] & 0xFF : 0;
+                                sample = sample << 16 | high << 8 | (current[p + i * c + c - 1] & 0xFF);
+                            }
+                            pixels[row + x] = (sample == transparentRGB ? 0 : 0xFF000000) | r << 16 | g << 8 | b;
+                        }
+                        break;
+                    case 3:
+                        for (int x = 0; x < width; x++) {
+                            int index = bitDepth == 8 ? current[x] & 0xFF : subByte(current, x, bitDepth);
+                            pixels[row + x] = index < palette.length ? palette[index] : 0xFF000000;
+                        }
+                        break;
+                    case 4:
+                        for (int x = 0, step = 2 * (bitDepth / 8); x < width; x++) {
+                            int p = x * step;
+                            int gray = current[p] & 0xFF;
+                            int alpha = current[p + step / 2] & 0xFF;
+                            pixels[row + x] = alpha << 24 | gray << 16 | gray << 8 | gray;
+                        }
+                        break;
+                    case 6:
+                        for (int x = 0, step = 4 * (bitDepth / 8), c = bitDepth / 8; x < width; x++) {
+                            int p = x * step;
+                            pixels[row + x] = (current[p + 3 * c] & 0xFF) << 24 | (current[p] & 0xFF) << 16 | (current[p + c] & 0xFF) << 8 | (current[p + 2 * c] & 0xFF);
+                        }
+                        break;
+                }
+
+                byte[] swap = previous;
+                previous = current;
+                current = swap;
+            }
+        } finally {
+            inflater.end();
+        }
+        return image;
+    }
+
+    private static int subByte(byte[] row, int x, int bitDepth) {
+        int bit = x * bitDepth;
+        int shift = 8 - bitDepth - (bit & 7);
+        return (row[bit >> 3] & 0xFF) >> shift & ((1 << bitDepth) - 1);
+    }
+
+    private static void inflate(Inflater inflater, byte[] data, List<int[]> idat, int[] chunk, byte[] target, int length) throws IOException {
+        int filled = 0;
+        try {
+            while (filled < length) {
+                int read = inflater.inflate(target, filled, length - filled);
+                filled += read;
+                if (read == 0) {
+                    if (inflater.finished() || inflater.needsDictionary()) {
+                        throw new IOException("Truncated PNG image data");
+                    }
+                    if (inflater.needsInput()) {
+                        if (chunk[0] >= idat.size()) {
+                            throw new IOException("Truncated PNG image data");
+                        }
+                        int[] next = idat.get(chunk[0]++);
+                        inflater.setInput(data, next[0], next[1]);
+                    }
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static void unfilter(int type, byte[] current, byte[] previous, int stride) throws IOException {
+        int length = current.length;
+        switch (type) {
+            case 0:
+                break;
+            case 1:
+                for (int i = stride; i < length; i++) {
+                    current[i] += current[i - stride];
+                }
+                break;
+            case 2:
+                for (int i = 0; i < length; i++) {
+                    current[i] += previous[i];
+                }
+                break;
+            case 3:
+                for (int i = 0; i < stride && i < length; i++) {
+                    current[i] += (previous[i] & 0xFF) >> 1;
+                }
+                for (int i = stride; i < length; i++) {
+                    current[i] += ((current[i - stride] & 0xFF) + (previous[i] & 0xFF)) >> 1;
+                }
+                break;
+            case 4:
+                for (int i = 0; i < stride && i < length; i++) {
+                    current[i] += previous[i];
+                }
+                for (int i = stride; i < length; i++) {
+                    int a = current[i - stride] & 0xFF;
+                    int b = previous[i] & 0xFF;
+                    int c = previous[i - stride] & 0xFF;
+                    int p = a + b - c;
+                    int pa = Math.abs(p - a);
+                    int pb = Math.abs(p - b);
+                    int pc = Math.abs(p - c);
+                    current[i] += pa <= pb && pa <= pc ? a : pb <= pc ? b : c;
+                }
+                break;
+            default:
+                throw new IOException("Unknown PNG filter " + type);
+        }
+    }
+
+    private static BufferedImage readTGA(byte[] data) throws IOException {
+        int idLength = data[0] & 0xFF;
+        int imageType = data[2] & 0xFF;
+        int mapFirst = readShortLE(data, 3);
+        int mapLength = readShortLE(data, 5);
+        int mapDepth = data[7] & 0xFF;
+        int width = readShortLE(data, 12);
+        int height = readShortLE(data, 14);
+        int pixelDepth = data[16] & 0xFF;
+        int descriptor = data[17] & 0xFF;
+        if ((descriptor & 0x10) != 0) {
+            // Right to left
+            return null;
+        }
+        boolean topDown = (descriptor & 0x20) != 0;
+        // 32 bit images sometimes leave the alpha channel undeclared (and garbage)
+        boolean hasAlpha = (descriptor & 0x0F) != 0;
+
+        int offset = 18 + idLength;
+        int[] palette = null;
+        if (imageType == 1 || imageType == 9) {
+            if (mapDepth != 24 && mapDepth != 32) {
+                return null;
+            }
+            int bytes = mapDepth / 8;
+            if (offset + mapLength * bytes > data.length) {
+                throw new IOException("Truncated TGA color map");
+            }
+            palette = new int[mapFirst + mapLength];
+            for (int i = 0; i < mapLength; i++) {
+                palette[mapFirst + i] = bgra(data, offset + i * bytes, bytes, mapDepth == 32 && hasAlpha);
+            }
+            offset += mapLength * bytes;
+        }
+
+        BufferedImage image = create(width, height);
+        int[] pixels = pixels(image);
+        int bytes = pixelDepth / 8;
+        boolean rle = imageType >= 9;
+        int count = width * height;
+
+        int packet = 0;
+        boolean repeat = false;
+        int value = 0;
+        for (int i = 0; i < count; i++) {
+            if (rle && packet == 0) {
+                if (offset >= data.length) {
+                    throw new IOException("Truncated TGA image data");
+                }
+                int header = data[offset++] & 0xFF;
+                packet = (header & 0x7F) + 1;
+                repeat = (header & 0x80) != 0;
+                if (repeat) {
+                    value = tgaPixel(data, offset, bytes, imageType, palette, hasAlpha);
+                    offset += bytes;
+                }
+            }
+            int pixel;
+            if (rle && repeat) {
+                pixel = value;
+            } else {
+                pixel = tgaPixel(data, offset, bytes, imageType, palette, hasAlpha);
+                offset += bytes;
+            }
+            packet--;
+
+            int x = i % width;
+            int y = i / width;
+            pixels[(topDown ? y : height - 1 - y) * width + x] = pixel;
+        }
+        return image;
+    }
+
+    private static int tgaPixel(byte[] data, int offset, int bytes, int imageType, int[] palette, boolean hasAlpha) throws IOException {
+        if (offset + bytes > data.length) {
+            throw new IOException("Truncated TGA image data");
+        }
+        switch (imageType) {
+            case 1:
+            case 9:
+                int index = data[offset] & 0xFF;
+                return index < palette.length ? palette[index] : 0xFF000000;
+            case 3:
+            case 11:
+                int gray = data[offset] & 0xFF;
+                return 0xFF000000 | gray << 16 | gray << 8 | gray;
+            default:
+                return bgra(data, offset, bytes, bytes == 4 && hasAlpha);
+        }
+    }
+
+    private static int bgra(byte[] data, int offset, int bytes, boolean alpha) {
+        int a = alpha ? data[offset + 3] & 0xFF : 0xFF;
+        return a << 24 | (data[offset + 2] & 0xFF) << 16 | (data[offset + 1] & 0xFF) << 8 | (data[offset] & 0xFF);
+    }
+}
@@ -5,6 +5,7 @@ import org.apache.commons.lang3.tuple.Pair;
 
 import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 
 public class ImageUtils {
     public static Pair<Integer, Integer> scaleSize(int width, int height, int maxSize) {
@@ -30,9 +31,15 @@ public class ImageUtils {
     public static int[] toRGBA(BufferedImage image) {
         long start = System.currentTimeMillis();
         int[] pixels = new int[image.getWidth() * image.getHeight()];
-        image.getRGB(0, 0, image.getWidth(), image.getHeight(), pixels, 0, image.getWidth());
+        int[] argb = pixels;
+        if (image.getType() == BufferedImage.TYPE_INT_ARGB && image.getRaster().getParent() == null) {
+            // Already ARGB (texture sheets), read the raster directly instead of through getRGB's ColorModel lookups
+            argb = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        } else {
+            image.getRGB(0, 0, image.getWidth(), image.getHeight(), pixels, 0, image.getWidth());
+        }
         for (int i = 0; i < pixels.length; i++) {
-            int c_argb = pixels[i];
+            int c_argb = argb[i];
             int a = c_argb >> 24 & 255;
             int r = c_argb >> 16 & 255;
             int g = c_argb >> 8 & 255;
@@ -44,4 +51,89 @@ public class ImageUtils {
         ModCore.debug("Fetching pixels for %sx%s took %sms", image.getWidth(), image.getHeight(), (System.currentTimeMillis() - start));
         return pixels;
     }
+
+    /**
+     * Box filtered shrink of packed RGBA pixels (see toRGBA).  Each target pixel is the area weighted average of the
+     * source pixels it covers, with color weighted by alpha so transparent texels don't bleed into their neighbors.
+     */
+    public static int[] downsample(int[] pixels, int width, int height, int targetWidth, int targetHeight) {
+        int[] xFirst = new int[targetWidth];
+        float[][] xWeights = boxWeights(width, targetWidth, xFirst);
+        int[] yFirst = new int[targetHeight];
+        float[][] yWeights = boxWeights(height, targetHeight, yFirst);
+
+        // Horizontal pass, alpha premultiplied r, g, b, a per pixel
+        float[] rows = new float[height * targetWidth * 4];
+        for (int y = 0; y < height; y++) {
+            int row = y * width;
+            for (int x = 0; x < targetWidth; x++) {
+                float r = 0, g = 0, b = 0, a = 0;
+                float[] weights = xWeights[x];
+                int first = row + xFirst[x];
+                for (int i = 0; i < weights.length; i++) {
+                    int rgba = pixels[first + i];
+                    float wa = weights[i] * (rgba & 255);
+                    r += wa * (rgba >>> 24);
+                    g += wa * (rgba >> 16 & 255);
+                    b += wa * (rgba >> 8 & 255);
+                    a += wa;
+                }
+                int out = (y * targetWidth + x) * 4;
+                rows[out] = r;
+                rows[out + 1] = g;
+                rows[out + 2] = b;
+                rows[out + 3] = a;
+            }
+        }
+
+        // Vertical pass, back to straight alpha
+        int[] target = new int[targetWidth * targetHeight];
+        for (int y = 0; y < targetHeight; y++) {
+            float[] weights = yWeights[y];
+            for (int x = 0; x < targetWidth; x++) {
+                float r = 0, g = 0, b = 0, a = 0;
+                int in = (yFirst[y] * targetWidth + x) * 4;
+                for (int i = 0; i < weights.length; i++, in += targetWidth * 4) {
+                    float w = weights[i];
+                    r += w * rows[in];
+                    g += w * rows[in + 1];
+                    b += w * rows[in + 2];
+                    a += w * rows[in + 3];
+                }
+                int ri = 0, gi = 0, bi = 0;
+                if (a > 0) {
+                    ri = toByte(r / a);
+                    gi = toByte(g / a);
+                    bi = toByte(b / a);
+                }
+                target[y * targetWidth + x] = ri << 24 | gi << 16 | bi << 8 | toByte(a);
+            }
+        }
+        return target;
+    }
+
+    /**
+     * Coverage of each source pixel (starting at first[d]) by target pixel d, normalized to sum to 1
+     */
+    private static float[][] boxWeights(int size, int targetSize, int[] first) {
+        float[][] weights = new float[targetSize][];
+        double scale = size / (double) targetSize;
+        for (int d = 0; d < targetSize; d++) {
+            double start = d * scale;
+            double end = start + scale;
+            int from = Math.min((int) start, size - 1);
+            int to = Math.max(Math.min((int) Math.ceil(end), size), from + 1);
+            float[] w = new float[to - from];
+            for (int s = from; s < to; s++) {
+                w[s - from] = (float) ((Math.min(end, s + 1) - Math.max(start, s)) / scale);
+            }
+            first[d] = from;
+            weights[d] = w;
+        }
+        return weights;
+    }
+
+    private static int toByte(float value) {
+        return Math.max(0, Math.min(255, Math.round(value)));
+    }
 }
@@ -0,0 +1,102 @@
+package cam72cam.mod.model.obj;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Deduplicated form of a VertexBuffer
+ *
+ * Face corners which share the exact same vertex data (position, uv, color (material) and normal) are stored once,
+ * and indices[i] points at the unique vertex used by the i'th corner.  Corner order is unchanged, so face ranges
+ * (OBJGroup.faceStart/faceStop) map directly onto index ranges.
+ */
+public class IndexedVertexBuffer {
+    public final VertexBuffer vertices;
+    public final int[] indices;
+
+    public IndexedVertexBuffer(VertexBuffer vb) {
+        int stride = vb.stride;
+        float[] data = vb.data;
+        int count = data.length / stride;
+
+        // Open addressing table of (unique vertex + 1), 0 is empty
+        int capacity = Integer.highestOneBit(Math.max(count, 1) * 2 - 1) << 1;
+        int[] table = new int[capacity];
+        int mask = capacity - 1;
+
+        float[] unique = new float[data.length];
+        int uniqueCount = 0;
+        this.indices = new int[count];
+
+        for (int v = 0; v < count; v++) {
+            int base = v * stride;
+            int slot = hash(data, base, stride) & mask;
+            while (true) {
+                int entry = table[slot];
+                if (entry == 0) {
+                    System.arraycopy(data, base, unique, uniqueCount * stride, stride);
+                    table[slot] = ++uniqueCount;
+                    indices[v] = uniqueCount - 1;
+                    break;
+                }
+                if (equal(unique, (entry - 1) * stride, data, base, stride)) {
+                    indices[v] = entry - 1;
+                    break;
+                }
+                slot = (slot + 1) & mask;
+            }
+        }
+
+        float[] trimmed = new float[uniqueCount * stride];
+        System.arraycopy(unique, 0, trimmed, 0, trimmed.length);
+        this.vertices = new VertexBuffer(trimmed, vb.hasNormals);
+    }
+
+    private static int hash(float[] data, int start, int stride) {
+        int hash = 0;
+        for (int i = start; i < start + stride; i++) {
+            hash = hash * 31 + Float.floatToRawIntBits(data[i]);
+        }
+        // Spread the bits, the table is indexed by the low bits only
+        hash *= 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+    private static boolean equal(float[] a, int aStart, float[] b, int bStart, int stride) {
+        for (int i = 0; i < stride; i++) {
+            if (Float.floatToRawIntBits(a[aStart + i]) != Float.floatToRawIntBits(b[bStart + i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public int vertexCount() {
+        return vertices.data.length / vertices.stride;
+    }
+
+    /**
+     * @return true if the indices fit into unsigned shorts
+     */
+    public boolean isShort() {
+        return vertexCount() <= 0xFFFF + 1;
+    }
+
+    /**
+     * @return Native order, direct buffer of unsigned short or int indices (see isShort) ready for upload
+     */
+    public ByteBuffer indexData() {
+        boolean isShort = isShort();
+        ByteBuffer out = ByteBuffer.allocateDirect(indices.length * (isShort ? Short.BYTES : Integer.BYTES))
+                .order(ByteOrder.nativeOrder());
+        for (int index : indices) {
+            if (isShort) {
+                out.putShort((short) index);
+            } else {
+                out.putInt(index);
+            }
+        }
+        out.flip();
+        return out;
+    }
+}
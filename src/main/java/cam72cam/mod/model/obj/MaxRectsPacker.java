@@ -0,0 +1,160 @@
+package cam72cam.mod.model.obj;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * MaxRects bin packing (Jylanki, "A Thousand Ways to Pack the Bin"), without rotation.
+ *
+ * Rectangles are packed bottom-left into strips of a few candidate widths around the square root of the total area,
+ * in a couple of different orders.  The layout with the smallest longest side wins (that's what decides if a texture
+ * sheet must be downscaled).
+ */
+class MaxRectsPacker {
+    static class Result {
+        final int width;
+        final int height;
+        final int[] x;
+        final int[] y;
+
+        Result(int width, int height, int[] x, int[] y) {
+            this.width = width;
+            this.height = height;
+            this.x = x;
+            this.y = y;
+        }
+    }
+
+    static Result pack(int[] widths, int[] heights) {
+        long area = 0;
+        int maxWidth = 0;
+        int totalHeight = 0;
+        for (int i = 0; i < widths.length; i++) {
+            area += (long) widths[i] * heights[i];
+            maxWidth = Math.max(maxWidth, widths[i]);
+            totalHeight += heights[i];
+        }
+
+        // Largest first, by longest side or by height (better for rows of similar textures)
+        List<Integer[]> orders = Arrays.asList(
+                IntStream.range(0, widths.length).boxed().sorted(
+                        Comparator.<Integer>comparingInt(i -> -Math.max(widths[i], heights[i]))
+                                .thenComparingLong(i -> -(long) widths[i] * heights[i])
+                ).toArray(Integer[]::new),
+                IntStream.range(0, widths.length).boxed().sorted(
+                        Comparator.<Integer>comparingInt(i -> -heights[i]).thenComparingInt(i -> -widths[i])
+                ).toArray(Integer[]::new)
+        );
+
+        double side = Math.sqrt(area);
+        Result best = null;
+        int lastWidth = -1;
+        for (int step = 0; step <= 20; step++) {
+            int binWidth = Math.max(maxWidth, (int) Math.ceil(side * (0.8 + step * 0.06)));
+            if (binWidth == lastWidth) {
+                continue;
+            }
+            lastWidth = binWidth;
+
+            for (Integer[] order : orders) {
+                Result result = packStrip(widths, heights, order, binWidth, totalHeight);
+                if (best == null || score(result) < score(best)) {
+                    best = result;
+                }
+            }
+        }
+        return best;
+    }
+
+    private static long score(Result result) {
+        // Longest side first, area as a tie breaker
+        return (long) Math.max(result.width, result.height) << 32 | (long) result.width * result.height;
+    }
+
+    private static Result packStrip(int[] widths, int[] heights, Integer[] order, int binWidth, int binHeight) {
+        int[] xs = new int[widths.length];
+        int[] ys = new int[widths.length];
+        // x, y, width, height
+        List<int[]> free = new ArrayList<>();
+        free.add(new int[]{0, 0, binWidth, binHeight});
+        int usedWidth = 0;
+        int usedHeight = 0;
+
+        for (int i : order) {
+            int w = widths[i];
+            int h = heights[i];
+
+            // Bottom left: lowest top edge, then leftmost
+            int[] chosen = null;
+            for (int[] rect : free) {
+                if (rect[2] >= w && rect[3] >= h && (chosen == null || rect[1] < chosen[1] || rect[1] == chosen[1] && rect[0] < chosen[0])) {
+                    chosen = rect;
+                }
+            }
+            if (chosen == null) {
+                // binHeight is the sum of all heights, this can't happen
+                throw new IllegalStateException("Unable to fit rectangle");
+            }
+            int x = chosen[0];
+            int y = chosen[1];
+            xs[i] = x;
+            ys[i] = y;
+            usedWidth = Math.max(usedWidth, x + w);
+            usedHeight = Math.max(usedHeight, y + h);
+
+            split(free, x, y, w, h);
+        }
+        return new Result(usedWidth, usedHeight, xs, ys);
+    }
+
+    private static void split(List<int[]> free, int x, int y, int w, int h) {
+        List<int[]> added = new ArrayList<>();
+        for (int i = free.size() - 1; i >= 0; i--) {
+            int[] rect = free.get(i);
+            if (x >= rect[0] + rect[2] || x + w <= rect[0] || y >= rect[1] + rect[3] || y + h <= rect[1]) {
+                continue;
+            }
+            free.remove(i);
+            if (x > rect[0]) {
+                added.add(new int[]{rect[0], rect[1], x - rect[0], rect[3]});
+            }
+            if (x + w < rect[0] + rect[2]) {
+                added.add(new int[]{x + w, rect[1], rect[0] + rect[2] - (x + w), rect[3]});
+            }
+            if (y > rect[1]) {
+                added.add(new int[]{rect[0], rect[1], rect[2], y - rect[1]});
+            }
+            if (y + h < rect[1] + rect[3]) {
+                added.add(new int[]{rect[0], y + h, rect[2], rect[1] + rect[3] - (y + h)});
+            }
+        }
+        free.addAll(added);
+
+        // Only keep maximal rectangles
+        boolean[] contained = new boolean[free.size()];
+        for (int i = 0; i < free.size(); i++) {
+            for (int j = 0; j < free.size() && !contained[i]; j++) {
+                if (i != j && !contained[j] && contains(free.get(j), free.get(i))) {
+                    contained[i] = true;
+                }
+            }
+        }
+        List<int[]> kept = new ArrayList<>(free.size());
+        for (int i = 0; i < free.size(); i++) {
+            if (!contained[i]) {
+                kept.add(free.get(i));
+            }
+        }
+        free.clear();
+        free.addAll(kept);
+    }
+
+    private static boolean contains(int[] outer, int[] inner) {
+        return inner[0] >= outer[0] && inner[1] >= outer[1]
+                && inner[0] + inner[2] <= outer[0] + outer[2]
+                && inner[1] + inner[3] <= outer[1] + outer[3];
+    }
+}
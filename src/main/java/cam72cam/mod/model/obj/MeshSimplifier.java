@@ -0,0 +1,438 @@
+package cam72cam.mod.model.obj;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Quadric error edge collapse decimation of a triangle soup
+ *
+ * Each group is simplified on its own.  Corners are welded by position, and a vertex is collapsed onto one of its
+ * neighbors (half edge collapse) so no new vertex data is ever invented.  Vertices on a border (including group edges)
+ * or on a texture / material seam are never moved, which keeps the silhouette and the texture layout intact.
+ */
+class MeshSimplifier {
+    static class Mesh {
+        final VertexBuffer vbo;
+        final List<OBJGroup> groups;
+
+        Mesh(VertexBuffer vbo, List<OBJGroup> groups) {
+            this.vbo = vbo;
+            this.groups = groups;
+        }
+    }
+
+    /**
+     * @param ratio target fraction of faces to keep in each group
+     */
+    static Mesh simplify(VertexBuffer vb, List<OBJGroup> groups, float ratio) {
+        float[] out = new float[vb.data.length];
+        int outFaces = 0;
+        int faceFloats = vb.vertsPerFace * vb.stride;
+        List<OBJGroup> outGroups = new ArrayList<>(groups.size());
+        for (OBJGroup group : groups) {
+            int faces = group.faceStop - group.faceStart + 1;
+            int[] corners = new Group(vb, group.faceStart, faces).simplify(Math.max(1, (int) Math.ceil(faces * ratio)));
+
+            int faceStart = outFaces;
+            for (int i = 0; i < corners.length; i++) {
+                System.arraycopy(vb.data, corners[i] * vb.stride, out, faceStart * faceFloats + i * vb.stride, vb.stride);
+            }
+            outFaces += corners.length / vb.vertsPerFace;
+            outGroups.add(new OBJGroup(group.name, faceStart, outFaces - 1, group.min, group.max, group.normal));
+        }
+        return new Mesh(new VertexBuffer(Arrays.copyOf(out, outFaces * faceFloats), vb.hasNormals), outGroups);
+    }
+
+    private static class Candidate {
+        final double cost;
+        final int from;
+        final int to;
+        final int fromVersion;
+        final int toVersion;
+
+        Candidate(double cost, int from, int to, int fromVersion, int toVersion) {
+            this.cost = cost;
+            this.from = from;
+            this.to = to;
+            this.fromVersion = fromVersion;
+            this.toVersion = toVersion;
+        }
+    }
+
+    private static class Group {
+        private final VertexBuffer vb;
+        private final int faces;
+
+        // Per face corner: welded position and the source vertex providing the corner data
+        private final int[] triPos;
+        private final int[] triCorner;
+        private final boolean[] dead;
+        private int live;
+
+        // Per welded position
+        private final double[] xyz;
+        private final double[] quadrics;
+        private final int[] version;
+        private final boolean[] removed;
+        private final boolean[] locked;
+        private final int[][] fan;
+        private final int[] fanSize;
+
+        // Scratch neighbor marks, reset by bumping the stamp
+        private final int[] mark;
+        private final int[] markCount;
+        private final int[] otherMark;
+        private int stamp;
+
+        private final PriorityQueue<Candidate> queue = new PriorityQueue<>((a, b) -> {
+            int cmp = Double.compare(a.cost, b.cost);
+            if (cmp == 0) {
+                cmp = Integer.compare(a.from, b.from);
+            }
+            return cmp != 0 ? cmp : Integer.compare(a.to, b.to);
+        });
+
+        private Group(VertexBuffer vb, int faceStart, int faces) {
+            this.vb = vb;
+            this.faces = Math.max(faces, 0);
+            this.live = this.faces;
+
+            int corners = this.faces * 3;
+            triPos = new int[corners];
+            triCorner = new int[corners];
+            dead = new boolean[this.faces];
+
+            // Weld by exact position
+            int capacity = Integer.highestOneBit(Math.max(corners, 1) * 2 - 1) << 1;
+            int[] table = new int[capacity];
+            int[] owner = new int[corners];
+            int count = 0;
+            for (int i = 0; i < corners; i++) {
+                int corner = faceStart * 3 + i;
+                triCorner[i] = corner;
+                int base = corner * vb.stride + vb.vertexOffset;
+                int hash = Float.floatToRawIntBits(vb.data[base]);
+                hash = hash * 31 + Float.floatToRawIntBits(vb.data[base + 1]);
+                hash = hash * 31 + Float.floatToRawIntBits(vb.data[base + 2]);
+                hash *= 0x9E3779B9;
+                int slot = (hash ^ (hash >>> 16)) & (capacity - 1);
+                while (true) {
+                    int entry = table[slot];
+                    if (entry == 0) {
+                        owner[count] = corner;
+                        table[slot] = ++count;
+                        triPos[i] = count - 1;
+                        break;
+                    }
+                    if (samePosition(owner[entry - 1], corner)) {
+                        triPos[i] = entry - 1;
+                        break;
+                    }
+                    slot = (slot + 1) & (capacity - 1);
+                }
+            }
+
+            xyz = new double[count * 3];
+            for (int p = 0; p < count; p++) {
+                int base = owner[p] * vb.stride + vb.vertexOffset;
+                xyz[p * 3] = vb.data[base];
+                xyz[p * 3 + 1] = vb.data[base + 1];
+                xyz[p * 3 + 2] = vb.data[base + 2];
+            }
+            quadrics = new double[count * 10];
+            version = new int[count];
+            removed = new boolean[count];
+            locked = new boolean[count];
+            mark = new int[count];
+            markCount = new int[count];
+            otherMark = new int[count];
+
+            fanSize = new int[count];
+            for (int p : triPos) {
+                fanSize[p]++;
+            }
+            fan = new int[count][];
+            for (int p = 0; p < count; p++) {
+                fan[p] = new int[fanSize[p]];
+                fanSize[p] = 0;
+            }
+            for (int t = 0; t < this.faces; t++) {
+                for (int k = 0; k < 3; k++) {
+                    int p = triPos[t * 3 + k];
+                    fan[p][fanSize[p]++] = t;
+                }
+                int a = triPos[t * 3], b = triPos[t * 3 + 1], c = triPos[t * 3 + 2];
+                if (a == b || b == c || a == c) {
+                    // Degenerate face, leave it alone
+                    locked[a] = locked[b] = locked[c] = true;
+                }
+                addPlane(t);
+            }
+        }
+
+        private boolean samePosition(int a, int b) {
+            int ab = a * vb.stride + vb.vertexOffset;
+            int bb = b * vb.stride + vb.vertexOffset;
+            for (int i = 0; i < 3; i++) {
+                if (Float.floatToRawIntBits(vb.data[ab + i]) != Float.floatToRawIntBits(vb.data[bb + i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Same texture coordinates and color (material)
+         */
+        private boolean sameSurface(int a, int b) {
+            int ab = a * vb.stride;
+            int bb = b * vb.stride;
+            for (int i = 0; i < 2; i++) {
+                if (Float.floatToRawIntBits(vb.data[ab + vb.textureOffset + i]) != Float.floatToRawIntBits(vb.data[bb + vb.textureOffset + i])) {
+                    return false;
+                }
+            }
+            for (int i = 0; i < 4; i++) {
+                if (Float.floatToRawIntBits(vb.data[ab + vb.colorOffset + i]) != Float.floatToRawIntBits(vb.data[bb + vb.colorOffset + i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void addPlane(int t) {
+            int p0 = triPos[t * 3] * 3, p1 = triPos[t * 3 + 1] * 3, p2 = triPos[t * 3 + 2] * 3;
+            double ux = xyz[p1] - xyz[p0], uy = xyz[p1 + 1] - xyz[p0 + 1], uz = xyz[p1 + 2] - xyz[p0 + 2];
+            double vx = xyz[p2] - xyz[p0], vy = xyz[p2 + 1] - xyz[p0 + 1], vz = xyz[p2 + 2] - xyz[p0 + 2];
+            double a = uy * vz - uz * vy;
+            double b = uz * vx - ux * vz;
+            double c = ux * vy - uy * vx;
+            double length = Math.sqrt(a * a + b * b + c * c);
+            if (length == 0) {
+                return;
+            }
+            // Area weighted plane
+            double weight = length / 2;
+            a /= length;
+            b /= length;
+            c /= length;
+            double d = -(a * xyz[p0] + b * xyz[p0 + 1] + c * xyz[p0 + 2]);
+            double[] plane = {a * a, a * b, a * c, a * d, b * b, b * c, b * d, c * c, c * d, d * d};
+            for (int k = 0; k < 3; k++) {
+                int q = triPos[t * 3 + k] * 10;
+                for (int i = 0; i < 10; i++) {
+                    quadrics[q + i] += plane[i] * weight;
+                }
+            }
+        }
+
+        private double cost(int from, int to) {
+            int qa = from * 10;
+            int qb = to * 10;
+            double[] q = quadrics;
+            double x = xyz[to * 3], y = xyz[to * 3 + 1], z = xyz[to * 3 + 2];
+            return (q[qa] + q[qb]) * x * x + 2 * (q[qa + 1] + q[qb + 1]) * x * y + 2 * (q[qa + 2] + q[qb + 2]) * x * z + 2 * (q[qa + 3] + q[qb + 3]) * x
+                    + (q[qa + 4] + q[qb + 4]) * y * y + 2 * (q[qa + 5] + q[qb + 5]) * y * z + 2 * (q[qa + 6] + q[qb + 6]) * y
+                    + (q[qa + 7] + q[qb + 7]) * z * z + 2 * (q[qa + 8] + q[qb + 8]) * z
+                    + (q[qa + 9] + q[qb + 9]);
+        }
+
+        private void push(int from, int to) {
+            queue.add(new Candidate(cost(from, to), from, to, version[from], version[to]));
+        }
+
+        /**
+         * Drops dead faces from the fan of p
+         */
+        private void compact(int p) {
+            int[] list = fan[p];
+            int size = 0;
+            for (int i = 0; i < fanSize[p]; i++) {
+                if (!dead[list[i]]) {
+                    list[size++] = list[i];
+                }
+            }
+            fanSize[p] = size;
+        }
+
+        private int slot(int t, int p) {
+            for (int k = 0; k < 3; k++) {
+                if (triPos[t * 3 + k] == p) {
+                    return t * 3 + k;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * @return the corner providing the data for "to" in a face shared with "from", or -1 if the collapse is not
+         * allowed
+         */
+        private int check(int from, int to) {
+            if (locked[from]) {
+                return -1;
+            }
+            compact(from);
+            compact(to);
+
+            // Count the faces around each neighbor edge of from
+            stamp++;
+            int surface = -1;
+            int shared = 0;
+            int toCorner = -1;
+            for (int i = 0; i < fanSize[from]; i++) {
+                int t = fan[from][i];
+                int corner = triCorner[slot(t, from)];
+                if (surface == -1) {
+                    surface = corner;
+                } else if (!sameSurface(surface, corner)) {
+                    // Seam
+                    return -1;
+                }
+                for (int k = 0; k < 3; k++) {
+                    int p = triPos[t * 3 + k];
+                    if (p == from) {
+                        continue;
+                    }
+                    if (mark[p] != stamp) {
+                        mark[p] = stamp;
+                        markCount[p] = 0;
+                    }
+                    markCount[p]++;
+                    if (p == to) {
+                        shared++;
+                        toCorner = triCorner[t * 3 + k];
+                    }
+                }
+            }
+            if (shared != 2 || live - shared < 1) {
+                return -1;
+            }
+            for (int i = 0; i < fanSize[from]; i++) {
+                int t = fan[from][i];
+                for (int k = 0; k < 3; k++) {
+                    int p = triPos[t * 3 + k];
+                    if (p != from && markCount[p] != 2) {
+                        // Border or non-manifold
+                        return -1;
+                    }
+                }
+            }
+
+            // Link condition, only the two opposite vertices may be shared by both fans
+            int common = 0;
+            for (int i = 0; i < fanSize[to]; i++) {
+                int t = fan[to][i];
+                for (int k = 0; k < 3; k++) {
+                    int p = triPos[t * 3 + k];
+                    if (p != to && p != from && mark[p] == stamp && otherMark[p] != stamp) {
+                        otherMark[p] = stamp;
+                        common++;
+                    }
+                }
+            }
+            if (common != 2) {
+                return -1;
+            }
+
+            // Don't flip any of the remaining faces
+            for (int i = 0; i < fanSize[from]; i++) {
+                int t = fan[from][i];
+                if (slot(t, to) != -1) {
+                    continue;
+                }
+                double[] before = normal(t, from, from);
+                double[] after = normal(t, from, to);
+                if (before[0] * after[0] + before[1] * after[1] + before[2] * after[2] <= 0) {
+                    return -1;
+                }
+            }
+            return toCorner;
+        }
+
+        private double[] normal(int t, int replace, int with) {
+            int[] p = new int[3];
+            for (int k = 0; k < 3; k++) {
+                int pos = triPos[t * 3 + k];
+                p[k] = (pos == replace ? with : pos) * 3;
+            }
+            double ux = xyz[p[1]] - xyz[p[0]], uy = xyz[p[1] + 1] - xyz[p[0] + 1], uz = xyz[p[1] + 2] - xyz[p[0] + 2];
+            double vx = xyz[p[2]] - xyz[p[0]], vy = xyz[p[2] + 1] - xyz[p[0] + 1], vz = xyz[p[2] + 2] - xyz[p[0] + 2];
+            return new double[]{uy * vz - uz * vy, uz * vx - ux * vz, ux * vy - uy * vx};
+        }
+
+        private void collapse(int from, int to, int toCorner) {
+            for (int i = 0; i < fanSize[from]; i++) {
+                int t = fan[from][i];
+                if (slot(t, to) != -1) {
+                    dead[t] = true;
+                    live--;
+                } else {
+                    int slot = slot(t, from);
+                    triPos[slot] = to;
+                    triCorner[slot] = toCorner;
+                    if (fanSize[to] == fan[to].length) {
+                        fan[to] = Arrays.copyOf(fan[to], fan[to].length * 2 + 4);
+                    }
+                    fan[to][fanSize[to]++] = t;
+                }
+            }
+            fanSize[from] = 0;
+            removed[from] = true;
+            for (int i = 0; i < 10; i++) {
+                quadrics[to * 10 + i] += quadrics[from * 10 + i];
+            }
+            version[to]++;
+
+            compact(to);
+            for (int i = 0; i < fanSize[to]; i++) {
+                int t = fan[to][i];
+                for (int k = 0; k < 3; k++) {
+                    int p = triPos[t * 3 + k];
+                    if (p != to) {
+                        push(to, p);
+                        push(p, to);
+                    }
+                }
+            }
+        }
+
+        /**
+         * @return the source vertex of each corner of the remaining faces, in the original face order
+         */
+        int[] simplify(int target) {
+            if (live > target) {
+                for (int t = 0; t < faces; t++) {
+                    for (int k = 0; k < 3; k++) {
+                        push(triPos[t * 3 + k], triPos[t * 3 + (k + 1) % 3]);
+                        push(triPos[t * 3 + (k + 1) % 3], triPos[t * 3 + k]);
+                    }
+                }
+            }
+            while (live > target && !queue.isEmpty()) {
+                Candidate next = queue.poll();
+                if (removed[next.from] || removed[next.to] ||
+                        version[next.from] != next.fromVersion || version[next.to] != next.toVersion) {
+                    continue;
+                }
+                int toCorner = check(next.from, next.to);
+                if (toCorner != -1) {
+                    collapse(next.from, next.to, toCorner);
+                }
+            }
+
+            int[] out = new int[live * 3];
+            int idx = 0;
+            for (int t = 0; t < faces; t++) {
+                if (!dead[t]) {
+                    out[idx++] = triCorner[t * 3];
+                    out[idx++] = triCorner[t * 3 + 1];
+                    out[idx++] = triCorner[t * 3 + 2];
+                }
+            }
+            return out;
+        }
+    }
+}
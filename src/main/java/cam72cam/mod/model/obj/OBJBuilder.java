@@ -4,6 +4,7 @@ import cam72cam.mod.Config;
 import cam72cam.mod.ModCore;
 import cam72cam.mod.resource.Identifier;
 import cam72cam.mod.serialization.ResourceCache;
+import org.apache.commons.lang3.tuple.Pair;
 
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
@@ -20,6 +21,22 @@ public class OBJBuilder {
     private final int textureWidth;
     private final int textureHeight;
     private boolean smoothShading;
+    private final List<MeshSimplifier.Mesh> lods = new ArrayList<>();
+    /** Texture sheet levels of a single variant, keyed by max size (base sheet under Integer.MAX_VALUE) */
+    private final TreeMap<Integer, TextureLevel> textureLevels = new TreeMap<>();
+    private String textureLevelsVariant;
+
+    private static class TextureLevel {
+        final int width;
+        final int height;
+        final int[] pixels;
+
+        TextureLevel(int width, int height, int[] pixels) {
+            this.width = width;
+            this.height = height;
+            this.pixels = pixels;
+        }
+    }
 
     public OBJBuilder(Identifier modelLoc, ResourceCache.ResourceProvider input, float scale, float darken, Collection<String> variants) throws IOException {
         long start = System.currentTimeMillis();
@@ -30,7 +47,7 @@ public class OBJBuilder {
             variants.add("");
         }
 
-        OBJParser parser = new OBJParser(new ByteArrayInputStream(input.apply(modelLoc)), scale);
+        OBJParser parser = new OBJParser(input.apply(modelLoc), scale, Config.ThreadedModelLoading);
         this.groups = parser.getGroups();
         this.vbo = parser.getBuffer();
         this.smoothShading = parser.isSmoothShading();
@@ -159,6 +176,54 @@ public class OBJBuilder {
         return groups;
     }
 
+    /**
+     * Simplified copy of the geometry, each level has roughly half the faces of the previous one
+     */
+    MeshSimplifier.Mesh getLod(int level) {
+        while (lods.size() < level) {
+            long start = System.currentTimeMillis();
+            VertexBuffer vb = lods.isEmpty() ? vbo : lods.get(lods.size() - 1).vbo;
+            List<OBJGroup> groups = lods.isEmpty() ? this.groups : lods.get(lods.size() - 1).groups;
+            lods.add(MeshSimplifier.simplify(vb, groups, 0.5f));
+            ModCore.debug("Mesh LOD %s took %sms", lods.size(), System.currentTimeMillis() - start);
+        }
+        return lods.get(level - 1);
+    }
+
+    /**
+     * RGBA pixels of a variant's texture sheet, box filtered down to fit within maxSize (see ImageUtils.scaleSize).
+     *
+     * The sheet is only composited once per variant, smaller levels are filtered from the closest larger level
+     * already generated.  Request levels largest first for a proper mip chain.
+     */
+    public int[] getTexturePixels(String variant, int maxSize) {
+        if (!variant.equals(textureLevelsVariant)) {
+            // Only keep one variant around, sheets can be huge
+            textureLevels.clear();
+            textureLevelsVariant = variant;
+        }
+
+        TextureLevel base = textureLevels.computeIfAbsent(Integer.MAX_VALUE, k -> {
+            BufferedImage image = getTextures().get(variant).get();
+            return new TextureLevel(image.getWidth(), image.getHeight(), ImageUtils.toRGBA(image));
+        });
+        if (maxSize >= Math.max(base.width, base.height)) {
+            return base.pixels;
+        }
+
+        TextureLevel level = textureLevels.get(maxSize);
+        if (level == null) {
+            long start = System.currentTimeMillis();
+            TextureLevel source = textureLevels.ceilingEntry(maxSize).getValue();
+            Pair<Integer, Integer> size = ImageUtils.scaleSize(base.width, base.height, maxSize);
+            int[] pixels = ImageUtils.downsample(source.pixels, source.width, source.height, size.getLeft(), size.getRight());
+            level = new TextureLevel(size.getLeft(), size.getRight(), pixels);
+            textureLevels.put(maxSize, level);
+            ModCore.debug("Texture LOD %s for %s took %sms", maxSize, variant, System.currentTimeMillis() - start);
+        }
+        return level.pixels;
+    }
+
     public int getTextureWidth() {
         return textureWidth;
     }
@@ -0,0 +1,334 @@
+package cam72cam.mod.model.obj;
+
+import cam72cam.mod.Config;
+import cam72cam.mod.math.Vec3d;
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4FastDecompressor;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Versioned binary cache of a built OBJ model
+ *
+ * Layout:
+ *   magic, version, header length
+ *   header: model flags, texture info, vertex layout, group table, chunk table
+ *   chunks: one LZ4 block per (group, stream)
+ *
+ * Only the header is read up front.  Each chunk is compressed independently and referenced by offset, so a single
+ * stream of a single group can be loaded without touching the rest of the file.
+ */
+public class OBJCacheFile {
+    private static final int MAGIC = 0x554D434D; // UMCM
+    private static final int VERSION = 1;
+    private static final int PREFIX_BYTES = Integer.BYTES + Integer.BYTES + Integer.BYTES;
+
+    /** Vertex attribute streams, stored planar (one chunk per group per stream) */
+    public enum Stream {
+        POSITION(3),
+        TEXTURE(2),
+        COLOR(4),
+        NORMAL(3);
+
+        public final int components;
+
+        Stream(int components) {
+            this.components = components;
+        }
+
+        private int offset(VertexBuffer vb) {
+            switch (this) {
+                case POSITION:
+                    return vb.vertexOffset;
+                case TEXTURE:
+                    return vb.textureOffset;
+                case COLOR:
+                    return vb.colorOffset;
+                case NORMAL:
+                default:
+                    return vb.normalOffset;
+            }
+        }
+    }
+
+    // Storage type of each stream component, only float32 for now
+    private static final byte TYPE_FLOAT = 0;
+
+    private final File file;
+
+    public final boolean hasVertexNormals;
+    public final boolean isSmoothShading;
+    public final int textureWidth;
+    public final int textureHeight;
+    public final List<String> variants;
+    public final boolean hasNormals;
+    public final boolean hasSpeculars;
+    public final List<OBJGroup> groups;
+
+    private final List<Stream> streams;
+    // Indexed by group * streams.size() + stream index
+    private final long[] chunkOffsets;
+    private final int[] chunkCompressed;
+    private final int[] chunkRaw;
+
+    /**
+     * Reads the header of an existing cache file, chunks are loaded on demand
+     */
+    public OBJCacheFile(File file) throws IOException {
+        this.file = file;
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (input.readInt() != MAGIC) {
+                throw new IOException("Invalid model cache file " + file);
+            }
+            int version = input.readInt();
+            if (version != VERSION) {
+                throw new IOException(String.format("Unsupported model cache version %s in %s", version, file));
+            }
+            int headerLength = input.readInt();
+            long dataStart = PREFIX_BYTES + (long) headerLength;
+
+            hasVertexNormals = input.readBoolean();
+            isSmoothShading = input.readBoolean();
+
+            textureWidth = input.readInt();
+            textureHeight = input.readInt();
+            int variantCount = input.readInt();
+            List<String> variants = new ArrayList<>(variantCount);
+            for (int i = 0; i < variantCount; i++) {
+                variants.add(input.readUTF());
+            }
+            this.variants = Collections.unmodifiableList(variants);
+            hasNormals = input.readBoolean();
+            hasSpeculars = input.readBoolean();
+
+            int streamCount = input.readInt();
+            List<Stream> streams = new ArrayList<>(streamCount);
+            for (int i = 0; i < streamCount; i++) {
+                Stream stream = Stream.values()[input.readByte()];
+                byte components = input.readByte();
+                byte type = input.readByte();
+                if (components != stream.components || type != TYPE_FLOAT) {
+                    throw new IOException(String.format("Unsupported layout for %s in %s", stream, file));
+                }
+                streams.add(stream);
+            }
+            this.streams = streams;
+
+            int groupCount = input.readInt();
+            List<OBJGroup> groups = new ArrayList<>(groupCount);
+            for (int i = 0; i < groupCount; i++) {
+                groups.add(new OBJGroup(
+                        input.readUTF(),
+                        input.readInt(),
+                        input.readInt(),
+                        readVec3d(input),
+                        readVec3d(input),
+                        readVec3d(input)
+                ));
+            }
+            this.groups = Collections.unmodifiableList(groups);
+
+            int chunkCount = groupCount * streamCount;
+            chunkOffsets = new long[chunkCount];
+            chunkCompressed = new int[chunkCount];
+            chunkRaw = new int[chunkCount];
+            for (int i = 0; i < chunkCount; i++) {
+                chunkOffsets[i] = dataStart + input.readLong();
+                chunkCompressed[i] = input.readInt();
+                chunkRaw[i] = input.readInt();
+                if (chunkOffsets[i] + chunkCompressed[i] > file.length()) {
+                    // This sometimes happens on windows or after a failed launch attempt.
+                    throw new IOException("Truncated model cache file " + file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Serializes the model produced by the builder into the cache format
+     */
+    public static byte[] write(OBJBuilder builder) throws IOException {
+        return write(builder, 0);
+    }
+
+    /**
+     * Serializes a simplified mesh LOD (0 == full detail) of the model produced by the builder
+     */
+    public static byte[] write(OBJBuilder builder, int lod) throws IOException {
+        VertexBuffer vb = lod == 0 ? builder.vertexBufferObject() : builder.getLod(lod).vbo;
+        List<OBJGroup> groups = lod == 0 ? builder.getGroups() : builder.getLod(lod).groups;
+        List<Stream> streams = new ArrayList<>();
+        streams.add(Stream.POSITION);
+        streams.add(Stream.TEXTURE);
+        streams.add(Stream.COLOR);
+        if (vb.hasNormals) {
+            streams.add(Stream.NORMAL);
+        }
+
+        LZ4Compressor compressor = LZ4Factory.fastestInstance().highCompressor(2);
+        ByteArrayOutputStream chunks = new ByteArrayOutputStream();
+        ByteArrayOutputStream chunkTable = new ByteArrayOutputStream();
+        DataOutputStream table = new DataOutputStream(chunkTable);
+        for (OBJGroup group : groups) {
+            int vertStart = group.faceStart * vb.vertsPerFace;
+            int vertCount = (group.faceStop - group.faceStart + 1) * vb.vertsPerFace;
+            for (Stream stream : streams) {
+                int offset = stream.offset(vb);
+                ByteBuffer raw = ByteBuffer.allocate(vertCount * stream.components * Float.BYTES);
+                for (int v = vertStart; v < vertStart + vertCount; v++) {
+                    for (int c = 0; c < stream.components; c++) {
+                        raw.putFloat(vb.data[v * vb.stride + offset + c]);
+                    }
+                }
+                byte[] compressed = compressor.compress(raw.array());
+                table.writeLong(chunks.size());
+                table.writeInt(compressed.length);
+                table.writeInt(raw.capacity());
+                chunks.write(compressed);
+            }
+        }
+
+        ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+        DataOutputStream header = new DataOutputStream(headerBytes);
+        header.writeBoolean(vb.hasNormals);
+        header.writeBoolean(builder.isSmoothShading());
+
+        if (Config.getMaxTextureSize() > 0) {
+            header.writeInt(builder.getTextureWidth());
+            header.writeInt(builder.getTextureHeight());
+            header.writeInt(builder.getTextures().size());
+            for (String variant : builder.getTextures().keySet()) {
+                header.writeUTF(variant);
+            }
+        } else {
+            header.writeInt(-1);
+            header.writeInt(-1);
+            header.writeInt(0);
+        }
+        header.writeBoolean(!builder.getNormals().isEmpty());
+        header.writeBoolean(!builder.getSpeculars().isEmpty());
+
+        header.writeInt(streams.size());
+        for (Stream stream : streams) {
+            header.writeByte(stream.ordinal());
+            header.writeByte(stream.components);
+            header.writeByte(TYPE_FLOAT);
+        }
+
+        header.writeInt(groups.size());
+        for (OBJGroup group : groups) {
+            header.writeUTF(group.name);
+            header.writeInt(group.faceStart);
+            header.writeInt(group.faceStop);
+            writeVec3d(header, group.min);
+            writeVec3d(header, group.max);
+            writeVec3d(header, group.normal);
+        }
+        header.write(chunkTable.toByteArray());
+        header.flush();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(PREFIX_BYTES + headerBytes.size() + chunks.size());
+        DataOutputStream prefix = new DataOutputStream(out);
+        prefix.writeInt(MAGIC);
+        prefix.writeInt(VERSION);
+        prefix.writeInt(headerBytes.size());
+        prefix.flush();
+        headerBytes.writeTo(out);
+        chunks.writeTo(out);
+        return out.toByteArray();
+    }
+
+    private static void writeVec3d(DataOutputStream out, Vec3d vec) throws IOException {
+        out.writeDouble(vec.x);
+        out.writeDouble(vec.y);
+        out.writeDouble(vec.z);
+    }
+
+    private static Vec3d readVec3d(DataInputStream in) throws IOException {
+        return new Vec3d(in.readDouble(), in.readDouble(), in.readDouble());
+    }
+
+    public boolean hasStream(Stream stream) {
+        return streams.contains(stream);
+    }
+
+    private MappedByteBuffer map() throws IOException {
+        try (FileChannel channel = new FileInputStream(file).getChannel()) {
+            // Mapping outlives the channel, pages are only read in as chunks are touched
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    private ByteBuffer chunk(MappedByteBuffer mapped, LZ4FastDecompressor decompressor, int chunk, ByteBuffer scratch) {
+        int raw = chunkRaw[chunk];
+        if (scratch == null || scratch.capacity() < raw) {
+            scratch = ByteBuffer.allocate(raw);
+        }
+        scratch.clear();
+        decompressor.decompress(mapped, (int) chunkOffsets[chunk], scratch, 0, raw);
+        scratch.position(0);
+        scratch.limit(raw);
+        return scratch;
+    }
+
+    /**
+     * Decompress a single stream of a single group
+     * @return stream.components floats per vertex
+     */
+    public float[] read(String group, Stream stream) throws IOException {
+        int streamIdx = streams.indexOf(stream);
+        int groupIdx = -1;
+        for (int i = 0; i < groups.size(); i++) {
+            if (groups.get(i).name.equals(group)) {
+                groupIdx = i;
+                break;
+            }
+        }
+        if (streamIdx == -1 || groupIdx == -1) {
+            throw new IllegalArgumentException(String.format("Unknown stream %s for group %s", stream, group));
+        }
+        int chunk = groupIdx * streams.size() + streamIdx;
+        ByteBuffer data = chunk(map(), LZ4Factory.fastestInstance().fastDecompressor(), chunk, null);
+        float[] out = new float[chunkRaw[chunk] / Float.BYTES];
+        data.asFloatBuffer().get(out);
+        return out;
+    }
+
+    /**
+     * Decompress all groups and interleave them into a single vertex buffer
+     */
+    public VertexBuffer vertexBuffer() throws IOException {
+        int faces = 0;
+        for (OBJGroup group : groups) {
+            faces = Math.max(faces, group.faceStop + 1);
+        }
+        VertexBuffer vb = new VertexBuffer(faces, hasVertexNormals);
+
+        MappedByteBuffer mapped = map();
+        LZ4FastDecompressor decompressor = LZ4Factory.fastestInstance().fastDecompressor();
+        ByteBuffer scratch = null;
+        for (int g = 0; g < groups.size(); g++) {
+            OBJGroup group = groups.get(g);
+            int vertStart = group.faceStart * vb.vertsPerFace;
+            for (int s = 0; s < streams.size(); s++) {
+                Stream stream = streams.get(s);
+                int offset = stream.offset(vb);
+                scratch = chunk(mapped, decompressor, g * streams.size() + s, scratch);
+                int vertCount = scratch.limit() / (stream.components * Float.BYTES);
+                for (int v = vertStart; v < vertStart + vertCount; v++) {
+                    for (int c = 0; c < stream.components; c++) {
+                        vb.data[v * vb.stride + offset + c] = scratch.getFloat();
+                    }
+                }
+            }
+        }
+        return vb;
+    }
+}
@@ -3,17 +3,21 @@ package cam72cam.mod.model.obj;
 import cam72cam.mod.Config;
 import cam72cam.mod.ModCore;
 import cam72cam.mod.math.Vec3d;
+import cam72cam.mod.render.obj.GroupSet;
 import cam72cam.mod.render.obj.OBJTextureSheet;
 import cam72cam.mod.render.obj.OBJRender;
 import cam72cam.mod.render.opengl.CustomTexture;
+import cam72cam.mod.render.opengl.Instances;
+import cam72cam.mod.render.opengl.RenderQueue;
 import cam72cam.mod.render.opengl.RenderState;
+import cam72cam.mod.render.opengl.StateStack;
 import cam72cam.mod.resource.Identifier;
 import cam72cam.mod.serialization.*;
 import cam72cam.mod.serialization.ResourceCache.GenericByteBuffer;
 import org.apache.commons.lang3.tuple.Pair;
+import util.Matrix4;
 
 import javax.imageio.ImageIO;
-import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 import java.util.*;
@@ -24,8 +28,12 @@ import java.util.stream.Collectors;
 import static cam72cam.mod.model.obj.ImageUtils.*;
 
 public class OBJModel {
+    // Copies of the states binders modify for instance and queue, render thread only
+    private static final StateStack scratch = new StateStack();
     private static final OBJTextureSheet defTex = new OBJTextureSheet(1, 1, () -> new ResourceCache.GenericByteBuffer(new int[] { 0x0000FF }), Integer.MAX_VALUE/2);
     public final OBJRender vbo;
+    /** Simplified meshes, each with roughly half the faces of the previous one */
+    public final List<OBJRender> meshLods = new ArrayList<>();
     public final int textureWidth;
     public final int textureHeight;
     public final int defaultLodSize;
@@ -34,6 +42,10 @@ public class OBJModel {
     public final Map<String, OBJTextureSheet> speculars = new HashMap<>();
     public final LinkedHashMap<String, OBJGroup> groups; //Order by vertex start/stop
     public final boolean isSmoothShading;
+    private final Supplier<OBJCacheFile> modelData;
+    // Bounding sphere, used to estimate the projected size
+    private final Vec3d center;
+    private final double radius;
 
     public String hash;
 
@@ -60,7 +72,7 @@ public class OBJModel {
         }
 
         String settings = Arrays.toString(new Object[]{
-                "v1",
+                "v2",
                 scale,
                 darken,
                 variants == null ? "[]" : String.join(":", variants),
@@ -69,74 +81,69 @@ public class OBJModel {
         if (Config.DebugTextureSheets) {
             settings += "-debug";
         }
+        if (Config.TexturePacking != OBJTexturePacker.Packing.BINARY_TREE) {
+            // Texture coordinates depend on the layout
+            settings += "-" + Config.TexturePacking;
+        }
         ResourceCache<OBJBuilder> cache = new ResourceCache<>(
                 new Identifier(modelLoc.getDomain(), modelLoc.getPath() + "_" + settings.hashCode()),
                 provider -> new OBJBuilder(modelLoc, provider, (float)scale, darken, variants)
         );
 
-        Supplier<GenericByteBuffer> vboData = cache.getResource(
-                "model.bin",
-                builder -> new GenericByteBuffer(builder.vertexBufferObject().data)
-        );
-        TagCompound meta = new TagCompound(cache.getResource(
-                "meta.nbt",
+        this.modelData = cache.getFileResource(
+                "model.umc",
                 builder -> {
-                    TagCompound data = new TagCompound();
-                    data.setBoolean("hasVertexNormals", builder.vertexBufferObject().hasNormals);
-                    data.setBoolean("isSmoothShading", builder.isSmoothShading());
-                    if (Config.getMaxTextureSize() > 0) {
-                        data.setInteger("textureWidth", builder.getTextureWidth());
-                        data.setInteger("textureHeight", builder.getTextureHeight());
-                        data.setList("variants", new ArrayList<>(builder.getTextures().keySet()), k -> new TagCompound().setString("variant", k));
-                    }
-                    data.setBoolean("hasNormals", !builder.getNormals().isEmpty());
-                    data.setBoolean("hasSpeculars", !builder.getSpeculars().isEmpty());
-                    data.setList("groups", builder.getGroups(), OBJGroup::toTag);
                     try {
-                        return new GenericByteBuffer(data.toBytes());
+                        return new GenericByteBuffer(OBJCacheFile.write(builder));
                     } catch (IOException e) {
                         throw new RuntimeException(e);
                     }
-                }
-        ).get().bytes());
+                },
+                OBJCacheFile::new
+        );
+        OBJCacheFile meta = modelData.get();
 
-        boolean hasVertexNormals = meta.getBoolean("hasVertexNormals");
-        this.isSmoothShading = meta.hasKey("isSmoothShading") && meta.getBoolean("isSmoothShading");
+        this.isSmoothShading = meta.isSmoothShading;
         if (Config.getMaxTextureSize() > 0) {
-            this.textureWidth = meta.getInteger("textureWidth");
-            this.textureHeight = meta.getInteger("textureHeight");
+            this.textureWidth = meta.textureWidth;
+            this.textureHeight = meta.textureHeight;
 
-            boolean hasNormals = meta.getBoolean("hasNormals");
-            boolean hasSpeculars = meta.getBoolean("hasSpeculars");
+            boolean hasNormals = meta.hasNormals;
+            boolean hasSpeculars = meta.hasSpeculars;
 
 
-            for (String variant : meta.getList("variants", k -> k.getString("variant"))) {
+            for (String variant : meta.variants) {
                 ModCore.debug("%s : tex %s", modelLoc, variant);
                 Map<Integer, OBJTextureSheet> lodMap = new HashMap<>();
 
                 int texSize = Math.max(textureWidth, textureHeight);
-                Supplier<GenericByteBuffer> texData = cache.getResource(variant + ".rgba", builder -> {
-                    BufferedImage img = builder.getTextures().get(variant).get();
+                boolean compress = Config.TextureCompression;
+                String format = compress ? ".bc" : ".rgba";
+                String sheet = variant + format;
+                Supplier<GenericByteBuffer> texData = cache.getResource(sheet, builder -> {
                     if (Config.DebugTextureSheets) {
                         try {
                             File cacheFile = ModCore.cacheFile(new Identifier(modelLoc.getDomain() + "debug", modelLoc.getPath() + "_" + variant + ".png"));
                             ModCore.info("Writing debug to " + cacheFile);
-                            ImageIO.write(img, "png", cacheFile);
+                            ImageIO.write(builder.getTextures().get(variant).get(), "png", cacheFile);
                         } catch (IOException e) {
                             ModCore.catching(e);
                         }
                     }
-                    return new GenericByteBuffer(toRGBA(img));
+                    return sheetData(builder.getTexturePixels(variant, texSize), textureWidth, textureHeight, compress);
                 });
-                lodMap.put(texSize, new OBJTextureSheet(textureWidth, textureHeight, texData, cacheSeconds));
+                lodMap.put(texSize, new OBJTextureSheet(textureWidth, textureHeight, texData, cacheSeconds, compress));
 
-                for (Integer lodValue : lodValues) {
+                // Largest first, each level is filtered from the previous one (see OBJBuilder.getTexturePixels)
+                // The builder memoizes the composited sheet, so the textures are only read while generating the sheet
+                for (Integer lodValue : lodValues.stream().sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
                     if (lodValue < texSize) {
                         Pair<Integer, Integer> size = scaleSize(textureWidth, textureHeight, lodValue);
-                        Supplier<GenericByteBuffer> lodData = cache.getResource(variant + String.format("_%s.rgba", lodValue),
-                                builder -> new GenericByteBuffer(toRGBA(scaleImage(builder.getTextures().get(variant).get(), lodValue)))
+                        Supplier<GenericByteBuffer> lodData = cache.getResource(variant + String.format("_%s", lodValue) + format,
+                                Collections.singletonList(sheet),
+                                builder -> sheetData(builder.getTexturePixels(variant, lodValue), size.getLeft(), size.getRight(), compress)
                         );
-                        lodMap.put(lodValue, new OBJTextureSheet(size.getLeft(), size.getRight(), lodData, cacheSeconds));
+                        lodMap.put(lodValue, new OBJTextureSheet(size.getLeft(), size.getRight(), lodData, cacheSeconds, compress));
                     }
                 }
                 this.textures.put(variant, lodMap);
@@ -166,15 +173,67 @@ public class OBJModel {
             this.textureHeight = -1;
         }
 
-        this.groups = meta.getList("groups", OBJGroup::new).stream().collect(Collectors.toMap(k -> k.name, v -> v, (x, y) -> y, LinkedHashMap::new));
+        this.groups = meta.groups.stream().collect(Collectors.toMap(k -> k.name, v -> v, (x, y) -> y, LinkedHashMap::new));
+        if (groups.isEmpty()) {
+            this.center = Vec3d.ZERO;
+            this.radius = 0;
+        } else {
+            Vec3d min = minOfGroup(groups.keySet());
+            Vec3d max = maxOfGroup(groups.keySet());
+            this.center = centerOfGroups(groups.keySet());
+            this.radius = max.subtract(min).length() / 2;
+        }
+
+        this.vbo = new OBJRender(this, () -> {
+            try {
+                return modelData.get().vertexBuffer();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
 
-        this.vbo = new OBJRender(this, () -> new VertexBuffer(vboData.get().floats(), hasVertexNormals));
+        for (int level = 1; level <= Config.MeshLodLevels; level++) {
+            int lod = level;
+            Supplier<OBJCacheFile> lodData = cache.getFileResource(
+                    String.format("model_lod%s.umc", lod),
+                    builder -> {
+                        try {
+                            return new GenericByteBuffer(OBJCacheFile.write(builder, lod));
+                        } catch (IOException e) {
+                            throw new RuntimeException(e);
+                        }
+                    },
+                    OBJCacheFile::new
+            );
+            Map<String, OBJGroup> lodGroups = lodData.get().groups.stream().collect(Collectors.toMap(k -> k.name, v -> v, (x, y) -> y));
+            this.meshLods.add(new OBJRender(this, () -> {
+                try {
+                    return lodData.get().vertexBuffer();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }, lodGroups));
+        }
 
         this.hash = cache.close();
 
         ModCore.debug("End obj model " + modelLoc);
     }
 
+    /**
+     * Diffuse texture sheet, either RGBA or block compressed.  Normal and specular maps stay RGBA, block compression
+     * artifacts are far more visible in lighting than in color.
+     */
+    private static GenericByteBuffer sheetData(int[] pixels, int width, int height, boolean compress) {
+        if (!compress) {
+            return new GenericByteBuffer(pixels);
+        }
+        long start = System.currentTimeMillis();
+        GenericByteBuffer data = new GenericByteBuffer(BlockCompression.encode(pixels, width, height));
+        ModCore.debug("Compressing %sx%s took %sms", width, height, System.currentTimeMillis() - start);
+        return data;
+    }
+
     public Set<String> groups() {
         return groups.keySet();
     }
@@ -232,12 +291,14 @@ public class OBJModel {
     /** WARNING This is a very slow function and should be used for debug only */
     public List<Vec3d> points(OBJGroup group) {
         List<Vec3d> points = new ArrayList<>();
-        VertexBuffer vbo = this.vbo.buffer.get();
-        for (int face = group.faceStart; face <= group.faceStop; face++) {
-            for (int point = 0; point < 3; point++) {
-                int idx = (face * 3 + point) * vbo.stride + vbo.vertexOffset;
-                points.add(new Vec3d(vbo.data[idx], vbo.data[idx+1], vbo.data[idx+2]));
-            }
+        float[] positions;
+        try {
+            positions = modelData.get().read(group.name, OBJCacheFile.Stream.POSITION);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        for (int idx = 0; idx < positions.length; idx += 3) {
+            points.add(new Vec3d(positions[idx], positions[idx+1], positions[idx+2]));
         }
         return points;
     }
@@ -250,6 +311,8 @@ public class OBJModel {
         private boolean wait = false;
         private int lodSize = Config.MaxTextureSize;
         private String texName = "";
+        // Distance from the camera to the model, nearer models load first
+        private double loadPriority = 0;
 
         private Binder() {
 
@@ -279,6 +342,8 @@ public class OBJModel {
             if (tex == null) {
                 tex = OBJModel.this.textures.get(texName).get(defaultLodSize);
             }
+            loadPriority = viewDistance(state.model_view());
+            tex.setLoadPriority(loadPriority);
             if (wait) {
                 state.texture(tex.synchronous(true));
             } else {
@@ -301,11 +366,13 @@ public class OBJModel {
 
 
             if (lodSize == defaultLodSize && OBJModel.this.normals.containsKey(texName)) {
+                OBJModel.this.normals.get(texName).setLoadPriority(loadPriority);
                 state.normals(OBJModel.this.normals.get(texName).synchronous(wait));
             } else {
                 state.normals(defTex);
             }
             if (lodSize == defaultLodSize && OBJModel.this.speculars.containsKey(texName)) {
+                OBJModel.this.speculars.get(texName).setLoadPriority(loadPriority);
                 state.specular(OBJModel.this.speculars.get(texName).synchronous(wait));
             } else {
                 state.specular(defTex);
@@ -320,7 +387,137 @@ public class OBJModel {
         public OBJRender.Binding bind(RenderState state, boolean waitForLoad) {
             state = state.clone();
             apply(state);
-            return vbo.bind(state, waitForLoad);
+            OBJRender render = waitForLoad ? vbo : meshLod(state);
+            render.setLoadPriority(loadPriority);
+            return render.bind(state, waitForLoad);
+        }
+
+        /**
+         * Queue a copy of the entire model for instances.draw(), with this binder's texture and mesh LOD
+         */
+        public void instance(Instances instances, RenderState state) {
+            RenderState copy = scratch.push(state);
+            try {
+                prepare(copy).instance(instances, copy);
+            } finally {
+                scratch.pop();
+            }
+        }
+
+        /**
+         * Queue a copy of these groups for instances.draw(), with this binder's texture and mesh LOD
+         */
+        public void instance(Instances instances, RenderState state, Collection<String> groups) {
+            RenderState copy = scratch.push(state);
+            try {
+                prepare(copy).instance(instances, copy, groups);
+            } finally {
+                scratch.pop();
+            }
+        }
+
+        /**
+         * Record a draw of the entire model in queue, with this binder's texture and mesh LOD
+         */
+        public void queue(RenderQueue queue, RenderState state) {
+            RenderState copy = scratch.push(state);
+            try {
+                prepare(copy).queue(queue, copy);
+            } finally {
+                scratch.pop();
+            }
+        }
+
+        /**
+         * Record a draw of these groups in queue, with this binder's texture and mesh LOD
+         */
+        public void queue(RenderQueue queue, RenderState state, Collection<String> groups) {
+            RenderState copy = scratch.push(state);
+            try {
+                prepare(copy).queue(queue, copy, groups);
+            } finally {
+                scratch.pop();
+            }
+        }
+
+        public void instance(Instances instances, RenderState state, GroupSet groups) {
+            RenderState copy = scratch.push(state);
+            try {
+                prepare(copy).instance(instances, copy, groups);
+            } finally {
+                scratch.pop();
+            }
+        }
+
+        public void queue(RenderQueue queue, RenderState state, GroupSet groups) {
+            RenderState copy = scratch.push(state);
+            try {
+                prepare(copy).queue(queue, copy, groups);
+            } finally {
+                scratch.pop();
+            }
+        }
+
+        /**
+         * Apply this binder to a copy of the caller's state and pick its mesh LOD
+         */
+        private OBJRender prepare(RenderState copy) {
+            apply(copy);
+            OBJRender render = meshLod(copy);
+            render.setLoadPriority(loadPriority);
+            return render;
+        }
+
+        /**
+         * Pick a mesh LOD based on the projected size of the model, falling back to any loaded mesh while the
+         * preferred one is loading
+         */
+        private OBJRender meshLod(RenderState state) {
+            if (meshLods.isEmpty()) {
+                return vbo;
+            }
+
+            Matrix4 mv = state.model_view();
+            double scale = Math.sqrt(mv.m00 * mv.m00 + mv.m10 * mv.m10 + mv.m20 * mv.m20);
+            double distance = viewDistance(mv);
+            double size = radius * scale;
+            int level = 0;
+            if (distance > size) {
+                double screenSize = size * Math.abs(state.projection().m11) / distance;
+                double threshold = Config.MeshLodScreenSize;
+                while (level < meshLods.size() && screenSize < threshold) {
+                    level++;
+                    threshold /= 2;
+                }
+            }
+
+            OBJRender preferred = level == 0 ? vbo : meshLods.get(level - 1);
+            preferred.setLoadPriority(loadPriority);
+            if (preferred.prepare()) {
+                return preferred;
+            }
+            for (int i = level - 1; i >= 0; i--) {
+                OBJRender finer = i == 0 ? vbo : meshLods.get(i - 1);
+                if (finer.isLoaded()) {
+                    return finer;
+                }
+            }
+            for (OBJRender coarser : meshLods.subList(level, meshLods.size())) {
+                if (coarser.isLoaded()) {
+                    return coarser;
+                }
+            }
+            return preferred;
+        }
+
+        /**
+         * Distance from the camera to the model's center, same as mv.apply(center).length() without the temporaries
+         */
+        private double viewDistance(Matrix4 mv) {
+            double x = mv.m00 * center.x + mv.m01 * center.y + mv.m02 * center.z + mv.m03;
+            double y = mv.m10 * center.x + mv.m11 * center.y + mv.m12 * center.z + mv.m13;
+            double z = mv.m20 * center.x + mv.m21 * center.y + mv.m22 * center.z + mv.m23;
+            return Math.sqrt(x * x + y * y + z * z);
         }
 
         public OBJRender.Builder builder() {
@@ -335,5 +532,8 @@ public class OBJModel {
             }
         }
         vbo.free();
+        for (OBJRender lod : meshLods) {
+            lod.free();
+        }
     }
 }
@@ -2,22 +2,25 @@ package cam72cam.mod.model.obj;
 
 import cam72cam.mod.math.Vec3d;
 import cam72cam.mod.model.obj.Buffers.*;
+import org.apache.commons.io.IOUtils;
 
 import java.io.*;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.ForkJoinPool;
 
 public class OBJParser {
     public static final float UNSPECIFIED = Float.MIN_VALUE;
+    // Below this size the thread handoff costs more than it saves
+    private static final int MIN_CHUNK_BYTES = 256 * 1024;
 
     // 3 floats per vertex (x, y, z)
-    private final FloatBuffer vertices = new FloatBuffer(1024);
+    private final FloatBuffer vertices;
     // 3 floats per normal (x, y, z)
-    private final FloatBuffer vertexNormals = new FloatBuffer(1024);
+    private final FloatBuffer vertexNormals;
     // 2 floats per normal (u, v)
-    private final FloatBuffer vertexTextures = new FloatBuffer(1024);
+    private final FloatBuffer vertexTextures;
     // 3 ints per vert, 3 verts per face (v1, vt1, vn1, v2, vt2, vn2, v3, vt3, vn3)
-    private final IntBuffer faceVerts = new IntBuffer(1024);
+    private final IntBuffer faceVerts;
     // 1 int per face, which face to use (mtlLookup)
     private final List<String> faceMaterials = new ArrayList<>();
     // List of material files to load as part of this obj
@@ -25,95 +28,100 @@ public class OBJParser {
     // Group -> Face # ranges
     private final List<OBJGroup> groups = new ArrayList<>();
 
-    private final float scale;
-
     private final List<OBJGroup> correctedGroups;
     private final VertexBuffer buffer;
     private final String[] correctedFaceMaterials;
     private boolean smoothShading = false;
 
-    private String currentMaterial = null;
     private int currentGroupStart = 0;
     private String currentGroupName = "defaultName";
     private boolean hasNormals = true;
 
     public OBJParser(InputStream stream, float scale) throws IOException {
-        this.scale = scale;
-        try (BufferedReader reader = new BufferedReader(new InputStreamReader(stream))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                if (line.startsWith("#")) {
-                    continue;
-                }
-                if (line.length() == 0) {
-                    continue;
-                }
-                String[] args = line.split(" ");
-                String cmd = args[0];
-                switch (cmd) {
-                    case "mtllib":
-                        addMaterialLibrary(args[1]);
-                        break;
-                    case "usemtl":
-                        if (args.length >= 2) {
-                            String mtlName = args[1];
-                            for (int i = 2; i < args.length; i++) {
-                                mtlName += " " + args[i];
-                            }
-                            setCurrentMTL(mtlName);
-                        } else {
-                            setCurrentMTL("undefined");
-                        }
-                        break;
-                    case "o":
-                    case "g":
-                        String groupName = args[1];
-                        for (int i = 2; i < args.length; i++) {
-                            groupName += " " + args[i];
-                        }
-                        addGroup(groupName);
-                        break;
-                    case "v":
-                        addVertex(args[1], args[2], args[3]);
-                        break;
-                    case "vn":
-                        addVertexNormal(args[1], args[2], args[3]);
-                        break;
-                    case "vt":
-                        addVertexTexture(args[1], args[2]);
-                        break;
-                    case "f":
-                        if (args.length == 4) {
-                            addFace(args[1], args[2], args[3]);
-                        } else if (args.length == 5) {
-                            addFace(args[1], args[2], args[3]);
-                            addFace(args[3], args[4], args[1]);
-                        } else {
-                            for (int i = 2; i < args.length - 1; i++) {
-                                addFace(args[1], args[i], args[i + 1]);
-                            }
-                        }
-                        break;
-                    case "s":
-                        if (args.length == 2 && args[1].equals("1")) {
-                            // Technically this should be for every group, but this is a close enough approximation
-                            this.smoothShading = true;
-                        }
-                        break;
-                    case "l":
-                        // Ignore
-                        // TODO might be able to use this for details
-                        break;
-                    default:
-                        //System.out.println("OBJ: ignored line '" + line + "'");
-                        break;
-                }
+        this(readAll(stream), scale);
+    }
+
+    private static byte[] readAll(InputStream stream) throws IOException {
+        try (InputStream input = stream) {
+            return IOUtils.toByteArray(input);
+        }
+    }
+
+    public OBJParser(byte[] data, float scale) throws IOException {
+        this(data, scale, false);
+    }
+
+    /**
+     * @param parallel split large files at line boundaries and parse the pieces on the common ForkJoin pool
+     */
+    public OBJParser(byte[] data, float scale, boolean parallel) throws IOException {
+        List<Chunk> chunks = new ArrayList<>();
+        int chunkCount = parallel ? Math.min(ForkJoinPool.getCommonPoolParallelism(), data.length / MIN_CHUNK_BYTES) : 1;
+        int start = 0;
+        for (int i = 1; i < chunkCount; i++) {
+            int stop = Math.max(start + 1, (int) ((long) data.length * i / chunkCount));
+            while (stop < data.length && data[stop - 1] != '\n') {
+                stop++;
+            }
+            if (stop < data.length) {
+                chunks.add(new Chunk(data, start, stop, scale));
+                start = stop;
+            }
+        }
+        chunks.add(new Chunk(data, start, data.length, scale));
+
+        if (chunks.size() == 1) {
+            chunks.get(0).parse();
+        } else {
+            try {
+                chunks.parallelStream().forEach(chunk -> {
+                    try {
+                        chunk.parse();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+
+        // Stitch the chunks back together in file order.  Face indices are absolute, so only the group boundaries and
+        // the material carried over from the previous chunk need to be fixed up.
+        Chunk head = chunks.get(0);
+        this.vertices = head.vertices;
+        this.vertexNormals = head.vertexNormals;
+        this.vertexTextures = head.vertexTextures;
+        this.faceVerts = head.faceVerts;
+        String currentMaterial = null;
+        for (Chunk chunk : chunks) {
+            if (chunk != head) {
+                vertices.addAll(chunk.vertices);
+                vertexNormals.addAll(chunk.vertexNormals);
+                vertexTextures.addAll(chunk.vertexTextures);
+                faceVerts.addAll(chunk.faceVerts);
+            }
+
+            int faceOffset = faceMaterials.size();
+            int inherited = chunk.firstMaterialFace == -1 ? chunk.faceMaterials.size() : chunk.firstMaterialFace;
+            for (int i = 0; i < chunk.faceMaterials.size(); i++) {
+                faceMaterials.add(i < inherited ? currentMaterial : chunk.faceMaterials.get(i));
+            }
+            if (chunk.firstMaterialFace != -1) {
+                currentMaterial = chunk.currentMaterial;
+            }
+
+            for (int i = 0; i < chunk.groupNames.size(); i++) {
+                addGroup(chunk.groupNames.get(i), faceOffset + chunk.groupFaces.get(i));
             }
-            addGroup(null); // Finalize last group
+
+            materialLibraries.addAll(chunk.materialLibraries);
+            hasNormals &= chunk.hasNormals;
+            smoothShading |= chunk.smoothShading;
         }
+        addGroup(null, faceMaterials.size()); // Finalize last group
 
         groups.sort(Comparator.comparing(a -> a.name));
-        this.correctedGroups = new ArrayList<>();
 
         float[] vertices = this.vertices.array();
         float[] vertexNormals = this.vertexNormals.array();
@@ -123,33 +131,65 @@ public class OBJParser {
 
         this.buffer = new VertexBuffer(faceMaterials.size(), hasNormals);
 
-        int faceCount = 0;
-        int vertexOffset = buffer.vertexOffset;
-        int normalOffset = buffer.normalOffset;
-        int textureOffset = buffer.textureOffset;
+        // Groups are written out in name order, so each group's output range is known up front
+        int[] correctedStarts = new int[groups.size() + 1];
+        for (int i = 0; i < groups.size(); i++) {
+            OBJGroup group = groups.get(i);
+            correctedStarts[i + 1] = correctedStarts[i] + group.faceStop - group.faceStart + 1;
+        }
+
+        // Split the groups into batches of roughly equal face counts, each with its own scratch space
+        int batchCount = parallel ? Math.max(1, Math.min(ForkJoinPool.getCommonPoolParallelism(), faceVerts.length / (9 * 4096))) : 1;
+        List<int[]> batches = new ArrayList<>();
+        int batchStart = 0;
+        for (int i = 1; i <= groups.size(); i++) {
+            if (i == groups.size() || correctedStarts[i] >= (long) correctedStarts[groups.size()] * (batches.size() + 1) / batchCount) {
+                batches.add(new int[]{batchStart, i});
+                batchStart = i;
+            }
+        }
+
+        OBJGroup[] corrected = new OBJGroup[groups.size()];
+        (batches.size() > 1 ? batches.parallelStream() : batches.stream()).forEach(batch ->
+                copyGroups(batch[0], batch[1], correctedStarts, vertices, vertexNormals, vertexTextures, faceVerts, corrected)
+        );
+        this.correctedGroups = new ArrayList<>(Arrays.asList(corrected));
+    }
+
+    /**
+     * Copies the faces of groups [from, to) into the vertex buffer and computes their bounds
+     */
+    private void copyGroups(int from, int to, int[] correctedStarts, float[] vertices, float[] vertexNormals, float[] vertexTextures, int[] faceVerts, OBJGroup[] corrected) {
+        // Group (+1) which last used each vertex, avoids a per group boolean[]
+        int[] usedVerts = new int[vertices.length / 3];
+        // Unique vertex indices of the current group, in the order they are first used
+        int[] points = new int[1024];
+
+        for (int g = from; g < to; g++) {
+            OBJGroup group = groups.get(g);
+            int faceCount = correctedStarts[g];
+            int vertexOffset = faceCount * buffer.vertsPerFace * buffer.stride + buffer.vertexOffset;
+            int normalOffset = faceCount * buffer.vertsPerFace * buffer.stride + buffer.normalOffset;
+            int textureOffset = faceCount * buffer.vertsPerFace * buffer.stride + buffer.textureOffset;
+            int pointCount = 0;
 
-        for (OBJGroup group : groups) {
-            int startFace = faceCount;
-            List<Vec3d> points = new ArrayList<>();
-            // primitive array here only takes up maybe 1-2MB at worst
-            boolean[] usedVerts = new boolean[this.vertices.size()/3];
             for (int face = group.faceStart; face <= group.faceStop; face++) {
                 correctedFaceMaterials[faceCount] = faceMaterials.get(face);
                 for (int point = 0; point < 3; point++) {
                     int faceVertexIdx = face * 3 * 3 + point * 3;
 
                     int vertex = faceVerts[faceVertexIdx+0] * 3;
-                    float x = vertices[vertex+0];
-                    float y = vertices[vertex+1];
-                    float z = vertices[vertex+2];
-                    buffer.data[vertexOffset+0] = x;
-                    buffer.data[vertexOffset+1] = y;
-                    buffer.data[vertexOffset+2] = z;
+                    buffer.data[vertexOffset+0] = vertices[vertex+0];
+                    buffer.data[vertexOffset+1] = vertices[vertex+1];
+                    buffer.data[vertexOffset+2] = vertices[vertex+2];
                     vertexOffset += buffer.stride;
 
-                    if (!usedVerts[vertex/3]) {
-                        usedVerts[vertex/3] = true;
-                        points.add(new Vec3d(x, y, z));
+                    if (usedVerts[vertex/3] != g + 1) {
+                        usedVerts[vertex/3] = g + 1;
+                        if (pointCount == points.length) {
+                            points = Arrays.copyOf(points, points.length * 2);
+                        }
+                        points[pointCount++] = vertex;
                     }
 
                     int texture = faceVerts[faceVertexIdx+1] * 2;
@@ -173,36 +213,97 @@ public class OBJParser {
                 faceCount++;
             }
 
-            Vec3d first = points.get(0);
-            Vec3d groupMin = points.stream().reduce(first, Vec3d::min);
-            Vec3d groupMax = points.stream().reduce(first, Vec3d::max);
-            Vec3d center = groupMax.add(groupMin).scale(0.5);
-
-            Vec3d min = first;
-            Vec3d max = first;
-            // Furthest from center
-            for (Vec3d point : points) {
-                if (max.distanceToSquared(center) < point.distanceToSquared(center)) {
-                    max = point;
-                }
+            corrected[g] = bounds(group.name, correctedStarts[g], faceCount - 1, vertices, points, pointCount);
+        }
+    }
+
+    /**
+     * Bounds and approximate "normal" axis of a group, working directly on the vertex array.
+     * The math (and order of operations) matches the original Vec3d based version exactly.
+     */
+    private static OBJGroup bounds(String name, int faceStart, int faceStop, float[] vertices, int[] points, int pointCount) {
+        int first = points[0];
+        double minX = vertices[first], minY = vertices[first+1], minZ = vertices[first+2];
+        double maxX = minX, maxY = minY, maxZ = minZ;
+        for (int i = 1; i < pointCount; i++) {
+            int p = points[i];
+            minX = Math.min(minX, vertices[p]);
+            minY = Math.min(minY, vertices[p+1]);
+            minZ = Math.min(minZ, vertices[p+2]);
+            maxX = Math.max(maxX, vertices[p]);
+            maxY = Math.max(maxY, vertices[p+1]);
+            maxZ = Math.max(maxZ, vertices[p+2]);
+        }
+        double centerX = (maxX + minX) * 0.5;
+        double centerY = (maxY + minY) * 0.5;
+        double centerZ = (maxZ + minZ) * 0.5;
+
+        // Furthest from center
+        int max = first;
+        double maxDist = distanceSquared(vertices, max, centerX, centerY, centerZ);
+        for (int i = 0; i < pointCount; i++) {
+            int p = points[i];
+            double dist = distanceSquared(vertices, p, centerX, centerY, centerZ);
+            if (maxDist < dist) {
+                max = p;
+                maxDist = dist;
             }
-            //
-            for (Vec3d point : points) {
-                if (min.distanceToSquared(max) < point.distanceToSquared(max)) {
-                    min = point;
-                }
+        }
+        // Furthest from that
+        int min = first;
+        double minDist = distanceSquared(vertices, min, vertices[max], vertices[max+1], vertices[max+2]);
+        for (int i = 0; i < pointCount; i++) {
+            int p = points[i];
+            double dist = distanceSquared(vertices, p, vertices[max], vertices[max+1], vertices[max+2]);
+            if (minDist < dist) {
+                min = p;
+                minDist = dist;
             }
-            Vec3d finalMin = min.lengthSquared() < max.lengthSquared() ? min : max;
-            Vec3d finalMax = min.lengthSquared() < max.lengthSquared() ? max : min;
-            List<Vec3d> minG = points.stream().filter(p -> p.distanceToSquared(finalMin) < p.distanceToSquared(finalMax)).collect(Collectors.toList());
-            List<Vec3d> maxG = points.stream().filter(p -> p.distanceToSquared(finalMin) > p.distanceToSquared(finalMax)).collect(Collectors.toList());
-            Vec3d minN = minG.stream().reduce(Vec3d.ZERO, Vec3d::add).scale(1. / minG.size());
-            Vec3d maxN = maxG.stream().reduce(Vec3d.ZERO, Vec3d::add).scale(1. / maxG.size());
-            Vec3d normal = maxN.subtract(minN).normalize();
-
-            correctedGroups.add(new OBJGroup(group.name, startFace, faceCount-1, groupMin, groupMax, normal));
         }
+
+        boolean swap = !(distanceSquared(vertices, min, 0, 0, 0) < distanceSquared(vertices, max, 0, 0, 0));
+        int finalMin = swap ? max : min;
+        int finalMax = swap ? min : max;
+
+        double minSumX = 0, minSumY = 0, minSumZ = 0;
+        double maxSumX = 0, maxSumY = 0, maxSumZ = 0;
+        int minCount = 0;
+        int maxCount = 0;
+        for (int i = 0; i < pointCount; i++) {
+            int p = points[i];
+            double toMin = distanceSquared(vertices, p, vertices[finalMin], vertices[finalMin+1], vertices[finalMin+2]);
+            double toMax = distanceSquared(vertices, p, vertices[finalMax], vertices[finalMax+1], vertices[finalMax+2]);
+            if (toMin < toMax) {
+                minSumX += vertices[p];
+                minSumY += vertices[p+1];
+                minSumZ += vertices[p+2];
+                minCount++;
+            }
+            if (toMin > toMax) {
+                maxSumX += vertices[p];
+                maxSumY += vertices[p+1];
+                maxSumZ += vertices[p+2];
+                maxCount++;
+            }
+        }
+        double minScale = 1. / minCount;
+        double maxScale = 1. / maxCount;
+        double normalX = maxSumX * maxScale - minSumX * minScale;
+        double normalY = maxSumY * maxScale - minSumY * minScale;
+        double normalZ = maxSumZ * maxScale - minSumZ * minScale;
+        double length = Math.sqrt(normalX * normalX + normalY * normalY + normalZ * normalZ);
+        Vec3d normal = length < 1.0E-4D ? Vec3d.ZERO : new Vec3d(normalX * (1 / length), normalY * (1 / length), normalZ * (1 / length));
+
+        return new OBJGroup(name, faceStart, faceStop, new Vec3d(minX, minY, minZ), new Vec3d(maxX, maxY, maxZ), normal);
     }
+
+    private static double distanceSquared(float[] vertices, int p, double x, double y, double z) {
+        double dx = vertices[p] - x;
+        double dy = vertices[p+1] - y;
+        double dz = vertices[p+2] - z;
+        return dx * dx + dy * dy + dz * dz;
+    }
+
     public VertexBuffer getBuffer() {
         return buffer;
     }
@@ -219,56 +320,139 @@ public class OBJParser {
         return smoothShading;
     }
 
-    private void addMaterialLibrary(String lib) {
-        materialLibraries.add(lib);
-    }
-
-    private void setCurrentMTL(String name) {
-        currentMaterial = name.intern();
-    }
-
-    private void addGroup(String name) {
-        if (currentGroupStart != faceMaterials.size()) {
-            groups.add(new OBJGroup(currentGroupName, currentGroupStart, faceMaterials.size() - 1, null, null, null));
+    private void addGroup(String name, int faceCount) {
+        if (currentGroupStart != faceCount) {
+            groups.add(new OBJGroup(currentGroupName, currentGroupStart, faceCount - 1, null, null, null));
         }
         currentGroupName = name;
-        currentGroupStart = faceMaterials.size();
+        currentGroupStart = faceCount;
     }
 
-    private void addVertex(String x, String y, String z) {
-        vertices.add(Float.parseFloat(x) * scale);
-        vertices.add(Float.parseFloat(y) * scale);
-        vertices.add(Float.parseFloat(z) * scale);
-    }
-    private void addVertexTexture(String u, String v) {
-        vertexTextures.add(Float.parseFloat(u));
-        vertexTextures.add(Float.parseFloat(v));
-    }
-    private void addVertexNormal(String x, String y, String z) {
-        vertexNormals.add(Float.parseFloat(x));
-        vertexNormals.add(Float.parseFloat(y));
-        vertexNormals.add(Float.parseFloat(z));
-    }
+    /**
+     * Line aligned slice of the OBJ file, parsed independently of the other chunks
+     */
+    private static class Chunk {
+        private final byte[] data;
+        private final int start;
+        private final int stop;
+        private final float scale;
 
-    private void addFace(String a, String b, String c) {
-        parsePoint(a);
-        parsePoint(b);
-        parsePoint(c);
-        faceMaterials.add(currentMaterial);
-    }
+        private final FloatBuffer vertices = new FloatBuffer(1024);
+        private final FloatBuffer vertexNormals = new FloatBuffer(1024);
+        private final FloatBuffer vertexTextures = new FloatBuffer(1024);
+        private final IntBuffer faceVerts = new IntBuffer(1024);
+        private final List<String> faceMaterials = new ArrayList<>();
+        private final List<String> materialLibraries = new ArrayList<>();
+        // Group name -> local face it starts at
+        private final List<String> groupNames = new ArrayList<>();
+        private final IntBuffer groupFaces = new IntBuffer(16);
+        // Faces before the first usemtl keep the material from the end of the previous chunk
+        private int firstMaterialFace = -1;
+        private String currentMaterial = null;
+        private boolean hasNormals = true;
+        private boolean smoothShading = false;
+
+        private Chunk(byte[] data, int start, int stop, float scale) {
+            this.data = data;
+            this.start = start;
+            this.stop = stop;
+            this.scale = scale;
+        }
+
+        private void parse() throws IOException {
+            // (v, vt, vn) per point, reused for every face line
+            int[] facePoints = new int[3 * 16];
 
-    private void parsePoint(String point) {
-        String[] sp = point.split("/");
-        for (int i = 0; i < 3; i++) {
-            if (i < sp.length && !sp[i].equals("")) {
-                faceVerts.add(Integer.parseInt(sp[i]) - 1);
-            } else {
-                faceVerts.add(-1);
-                if (i == 2) {
-                    //VN
-                    this.hasNormals = false;
+            OBJTokenizer line = new OBJTokenizer(data, start, stop);
+            while (line.nextLine()) {
+                int args = line.tokens();
+                int cmdLength = line.length(0);
+                byte cmd = line.charAt(0, 0);
+                if (cmdLength == 1 && cmd == 'v') {
+                    requireArgs(line, 4);
+                    vertices.add(line.parseFloat(1) * scale);
+                    vertices.add(line.parseFloat(2) * scale);
+                    vertices.add(line.parseFloat(3) * scale);
+                } else if (cmdLength == 2 && cmd == 'v' && line.charAt(0, 1) == 'n') {
+                    requireArgs(line, 4);
+                    vertexNormals.add(line.parseFloat(1));
+                    vertexNormals.add(line.parseFloat(2));
+                    vertexNormals.add(line.parseFloat(3));
+                } else if (cmdLength == 2 && cmd == 'v' && line.charAt(0, 1) == 't') {
+                    requireArgs(line, 3);
+                    vertexTextures.add(line.parseFloat(1));
+                    vertexTextures.add(line.parseFloat(2));
+                } else if (cmdLength == 1 && cmd == 'f' && args >= 4) {
+                    if (facePoints.length < args * 3) {
+                        facePoints = new int[args * 3 * 2];
+                    }
+                    for (int i = 1; i < args; i++) {
+                        if (!line.parsePoint(i, facePoints, i * 3)) {
+                            hasNormals = false;
+                        }
+                    }
+                    if (args == 4) {
+                        addFace(facePoints, 1, 2, 3);
+                    } else if (args == 5) {
+                        addFace(facePoints, 1, 2, 3);
+                        addFace(facePoints, 3, 4, 1);
+                    } else {
+                        for (int i = 2; i < args - 1; i++) {
+                            addFace(facePoints, 1, i, i + 1);
+                        }
+                    }
+                } else if (cmdLength == 1 && (cmd == 'o' || cmd == 'g')) {
+                    requireArgs(line, 2);
+                    addGroup(line.rest(1));
+                } else if (line.is(0, "usemtl")) {
+                    setCurrentMTL(args >= 2 ? line.rest(1) : "undefined");
+                } else if (line.is(0, "mtllib")) {
+                    requireArgs(line, 2);
+                    addMaterialLibrary(line.string(1));
+                } else if (cmdLength == 1 && cmd == 's') {
+                    if (args == 2 && line.is(1, "1")) {
+                        // Technically this should be for every group, but this is a close enough approximation
+                        this.smoothShading = true;
+                    }
                 }
+                // "l" might be able to be used for details
+                // Everything else is ignored
+            }
+        }
+
+        private void addMaterialLibrary(String lib) {
+            materialLibraries.add(lib);
+        }
+
+        private void setCurrentMTL(String name) {
+            if (firstMaterialFace == -1) {
+                firstMaterialFace = faceMaterials.size();
+            }
+            currentMaterial = name.intern();
+        }
+
+        private void addGroup(String name) {
+            groupNames.add(name);
+            groupFaces.add(faceMaterials.size());
+        }
+
+        private void addFace(int[] facePoints, int a, int b, int c) {
+            for (int i = 0; i < 3; i++) {
+                faceVerts.add(facePoints[a * 3 + i]);
             }
+            for (int i = 0; i < 3; i++) {
+                faceVerts.add(facePoints[b * 3 + i]);
+            }
+            for (int i = 0; i < 3; i++) {
+                faceVerts.add(facePoints[c * 3 + i]);
+            }
+            faceMaterials.add(currentMaterial);
+        }
+    }
+
+    private static void requireArgs(OBJTokenizer line, int count) throws IOException {
+        if (line.tokens() < count) {
+            throw new IOException(String.format("Invalid OBJ line '%s'", line.rest(0)));
         }
     }
 }
@@ -10,10 +10,14 @@ import javax.imageio.ImageReader;
 import javax.imageio.stream.ImageInputStream;
 import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.ref.SoftReference;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.*;
 import java.util.function.Function;
 import java.util.function.Supplier;
 import java.util.stream.Collectors;
@@ -22,6 +26,29 @@ import static cam72cam.mod.model.obj.ImageUtils.scaleImage;
 
 /* primer: https://codeincomplete.com/articles/bin-packing/ */
 public class OBJTexturePacker {
+    public enum Packing {
+        /** Growing binary tree, see primer above */
+        BINARY_TREE,
+        /** MaxRects, usually a tighter (and more square) sheet */
+        MAX_RECTS,
+    }
+
+    private static final ExecutorService compositePool;
+    static {
+        int threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads,
+                5L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(),
+                runnable -> {
+                    Thread thread = new Thread(runnable);
+                    thread.setName("UMC-TextureCompositor");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        pool.allowCoreThreadTimeOut(true);
+        compositePool = pool;
+    }
+
     private int width = 0;
     private int height = 0;
     private int scaledWidth = 0;
@@ -29,12 +56,16 @@ public class OBJTexturePacker {
     private Function<String, Identifier> paths;
     private Function<String, InputStream> lookup;
 
+    // Every node (including empty spacers) with its sheet position, in drawing order
+    private final List<Node> layout = new ArrayList<>();
+
     public final Map<String, UVConverter> converters = new HashMap<>();
     public final Map<String, Supplier<BufferedImage>> textures = new HashMap<>();
     public final Map<String, Supplier<BufferedImage>> normals = new HashMap<>();
     public final Map<String, Supplier<BufferedImage>> speculars = new HashMap<>();
 
-    private final Map<String, BufferedImage> imageCache = new HashMap<>();
+    // Decoded base images, shared between variants.  Soft so large packs don't keep every texture on the heap
+    private final Map<String, SoftReference<BufferedImage>> imageCache = new ConcurrentHashMap<>();
 
     private BufferedImage getCachedImage(String origPath, String variant) {
         if (variant != null && !variant.isEmpty()) {
@@ -44,7 +75,7 @@ public class OBJTexturePacker {
                 String[] sp = path.split("/");
                 String fname = sp[sp.length - 1];
                 path = path.replaceAll(fname, variant + "/" + fname);
-                return ImageIO.read(lookup.apply(path));
+                return readImage(lookup.apply(path));
             } catch (Exception e) {
                 //Fallback
                 return getCachedImage(origPath, null);
@@ -52,13 +83,53 @@ public class OBJTexturePacker {
         }
 
         // Base image should be cached and re-used when applicable
-        return imageCache.computeIfAbsent(origPath, path -> {
+        SoftReference<BufferedImage> cached = imageCache.get(origPath);
+        BufferedImage image = cached != null ? cached.get() : null;
+        if (image == null) {
             try {
-                return ImageIO.read(lookup.apply(origPath));
+                image = readImage(lookup.apply(origPath));
             } catch (IOException e) {
                 throw new RuntimeException(e);
             }
-        });
+            imageCache.put(origPath, new SoftReference<>(image));
+        }
+        return image;
+    }
+
+    private static BufferedImage readImage(InputStream stream) throws IOException {
+        byte[] data = stream.readAllBytes();
+        BufferedImage image = ImageDecoder.read(data);
+        if (image == null) {
+            image = ImageIO.read(new ByteArrayInputStream(data));
+        }
+        if (image == null) {
+            throw new IOException("Unable to decode image");
+        }
+        return image;
+    }
+
+    /**
+     * Image dimensions from the file header, without decoding any pixels
+     */
+    private static Dimension readSize(InputStream stream) throws IOException {
+        byte[] data = stream.readAllBytes();
+        Pair<Integer, Integer> size = ImageDecoder.size(data);
+        if (size != null) {
+            return new Dimension(size.getLeft(), size.getRight());
+        }
+        try (ImageInputStream input = ImageIO.createImageInputStream(new ByteArrayInputStream(data))) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) {
+                throw new IOException("Unknown image format");
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                return new Dimension(reader.getWidth(0), reader.getHeight(0));
+            } finally {
+                reader.dispose();
+            }
+        }
     }
 
     class Node {
@@ -69,6 +140,9 @@ public class OBJTexturePacker {
         int height;
         Node down;
         Node right;
+        // Position in the sheet, set by the packing strategy
+        int x;
+        int y;
 
         public Node(List<Material> materials) {
             this.materials = materials;
@@ -79,8 +153,8 @@ public class OBJTexturePacker {
 
             if (materials.get(0).hasTexture()) {
                 try {
-                    BufferedImage image = getCachedImage(materials.get(0).texKd, null);
-                    size = new Dimension(image.getWidth(), image.getHeight());
+                    // Only the layout is needed here, pixels are decoded when the sheet is composited
+                    size = readSize(lookup.apply(materials.get(0).texKd));
                     this.width = materials.stream().mapToInt(x -> x.copiesU).max().getAsInt() * size.width;
                     this.height = materials.stream().mapToInt(x -> x.copiesV).max().getAsInt() * size.height;
                     this.texture = materials.get(0);
@@ -149,7 +223,24 @@ public class OBJTexturePacker {
             return down != null ? down.getFurthestDown() : this;
         }
 
-        public void converters(int x, int y) {
+        /**
+         * Assign sheet positions in the order the tree is walked (spacers are leaves)
+         */
+        public void layout(int x, int y, List<Node> layout) {
+            this.x = x;
+            this.y = y;
+            layout.add(this);
+            if (materials != null) {
+                if (right != null) {
+                    right.layout(x + width, y, layout);
+                }
+                if (down != null) {
+                    down.layout(x, y + height, layout);
+                }
+            }
+        }
+
+        public void converters() {
             if (materials != null) {
                 int copiesU = materials.stream().mapToInt(m -> m.copiesU).max().getAsInt();
                 int copiesV = materials.stream().mapToInt(m -> m.copiesV).max().getAsInt();
@@ -162,16 +253,10 @@ public class OBJTexturePacker {
                 for (Material material : materials) {
                     converters.put(material.name, converter);
                 }
-                if (right != null) {
-                    right.converters(x + width, y);
-                }
-                if (down != null) {
-                    down.converters(x, y + height);
-                }
             }
         }
 
-        public void draw(int x, int y, String variant, Graphics2D graphics, Function<Material, String> texlu) {
+        public void draw(String variant, Graphics2D graphics, Function<Material, String> texlu) {
             if (materials == null) {
                 graphics.setColor(Color.BLACK);
                 graphics.fillRect(x, y, width, height);
@@ -180,15 +265,15 @@ public class OBJTexturePacker {
 
             BufferedImage image;
             if (texture != null) {
-                String origPath = texlu.apply(texture);
-                image = getCachedImage(origPath, variant);
+                image = decode(variant, texlu);
+                if (image == null) {
+                    // Sized from the header, fill the whole node instead
+                    graphics.setColor(new Color(color(), true));
+                    graphics.fillRect(x, y, width, height);
+                    return;
+                }
             } else {
-                Material mat = materials.get(0);
-                int r = (int) (Math.max(0, mat.KdR) * 255);
-                int g = (int) (Math.max(0, mat.KdG) * 255);
-                int b = (int) (Math.max(0, mat.KdB) * 255);
-                int a = (int) (mat.KdA * 255);
-                int cint = (a << 24) | (r << 16) | (g << 8) | b;
+                int cint = color();
                 image = new BufferedImage(this.width, this.height, BufferedImage.TYPE_INT_ARGB);
                 for (int px = 0; px < this.width; px++) {
                     for (int py = 0; py < this.height; py++) {
@@ -207,15 +292,100 @@ public class OBJTexturePacker {
                     graphics.drawImage(image, null, offX, offY);
                 }
             }
-            if (right != null) {
-                right.draw(x + width, y, variant, graphics, texlu);
+        }
+
+        /**
+         * Same as draw, but textured nodes become a task which copies their pixels into the atlas raster.  Tasks
+         * return false if the image does not fit in the node (variant larger than the base texture), those overlap
+         * their neighbors and need to be blended in draw order instead.
+         */
+        public void tiles(String variant, Function<Material, String> texlu, int[] raster, List<Callable<Boolean>> tiles) {
+            if (materials == null) {
+                // Color.BLACK
+                fill(raster, x, y, width, height, 0xFF000000);
+                return;
+            }
+
+            tiles.add(() -> {
+                BufferedImage image = texture != null ? decode(variant, texlu) : null;
+
+                int copiesU = materials.stream().mapToInt(m -> m.copiesU).max().getAsInt();
+                int copiesV = materials.stream().mapToInt(m -> m.copiesV).max().getAsInt();
+
+                if (image == null) {
+                    // Untextured, or the texture could not be decoded (the node is then sized for every copy)
+                    if (texture == null && (copiesU != 1 || copiesV != 1)) {
+                        return false;
+                    }
+                    BufferedImage pixel = new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB);
+                    pixel.setRGB(0, 0, color());
+                    fill(raster, x, y, width, height, toARGB(pixel)[0]);
+                    return true;
+                }
+
+                int imageWidth = image.getWidth();
+                int imageHeight = image.getHeight();
+                if (imageWidth * copiesU > width || imageHeight * copiesV > height) {
+                    return false;
+                }
+                int[] pixels = toARGB(image);
+                for (int cU = 0; cU < copiesU; cU++) {
+                    for (int cV = 0; cV < copiesV; cV++) {
+                        int offX = x + imageWidth * cU;
+                        int offY = y + imageHeight * cV;
+                        for (int row = 0; row < imageHeight; row++) {
+                            System.arraycopy(pixels, row * imageWidth, raster, (offY + row) * OBJTexturePacker.this.width + offX, imageWidth);
+                        }
+                    }
+                }
+                return true;
+            });
+        }
+
+        /**
+         * Pixels of this node's texture, null (and logged) if they can't be decoded
+         */
+        private BufferedImage decode(String variant, Function<Material, String> texlu) {
+            try {
+                return getCachedImage(texlu.apply(texture), variant);
+            } catch (Exception e) {
+                ModCore.catching(e, "Unable to load image %s", texlu.apply(texture));
+                return null;
             }
-            if (down != null) {
-                down.draw(x, y + height, variant, graphics, texlu);
+        }
+
+        /**
+         * Kd color as ARGB, used in place of a missing texture
+         */
+        private int color() {
+            Material mat = materials.get(0);
+            int r = (int) (Math.max(0, mat.KdR) * 255);
+            int g = (int) (Math.max(0, mat.KdG) * 255);
+            int b = (int) (Math.max(0, mat.KdB) * 255);
+            int a = (int) (mat.KdA * 255);
+            return (a << 24) | (r << 16) | (g << 8) | b;
+        }
+
+        private void fill(int[] raster, int x, int y, int width, int height, int color) {
+            for (int row = y; row < y + height; row++) {
+                int start = row * OBJTexturePacker.this.width + x;
+                Arrays.fill(raster, start, start + width, color);
             }
         }
     }
 
+    /**
+     * Pixels of image as they would be drawn onto an empty ARGB image, keeps translucent blending and color
+     * conversion identical to Graphics2D
+     */
+    private static int[] toARGB(BufferedImage image) {
+        BufferedImage argb = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_ARGB);
+        Graphics2D graphics = argb.createGraphics();
+        graphics.drawImage(image, null, 0, 0);
+        graphics.dispose();
+        return ((DataBufferInt) argb.getRaster().getDataBuffer()).getData();
+    }
+
     public static class UVConverter {
         private final int x;
         private final int y;
@@ -266,27 +436,50 @@ public class OBJTexturePacker {
                 .sorted(Comparator.comparingInt(x -> -10000 * x.height + x.width))
                 .collect(Collectors.toList());
 
-        Node rootNode = inputNodes.remove(0);
-        for (Node node : inputNodes) {
-            if (!rootNode.addNode(node)) {
-                boolean fitsRight = rootNode.getFullHeight() >= node.height;
-                boolean fitsDown = rootNode.getFullWidth() >= node.width;
-                boolean betterFitRight = rootNode.getFullWidth() + node.width < rootNode.getFullHeight() + node.height;
-                if (fitsRight && (!fitsDown || betterFitRight)) {
-                    // Expand right
-                    rootNode.getFurthestRight().right = new Node(node.width, rootNode.getFullHeight());
-                } else if (fitsDown) {
-                    // Expand down
-                    rootNode.getFurthestDown().down = new Node(rootNode.getFullWidth(), node.height);
-                } else {
-                    throw new RuntimeException("Impossible!!!!");
+        if (Config.TexturePacking == Packing.MAX_RECTS) {
+            MaxRectsPacker.Result result = MaxRectsPacker.pack(
+                    inputNodes.stream().mapToInt(n -> n.width).toArray(),
+                    inputNodes.stream().mapToInt(n -> n.height).toArray()
+            );
+            for (int i = 0; i < inputNodes.size(); i++) {
+                Node node = inputNodes.get(i);
+                node.x = result.x[i];
+                node.y = result.y[i];
+                layout.add(node);
+            }
+            this.width = result.width;
+            this.height = result.height;
+            addSpacers();
+        } else {
+            Node rootNode = inputNodes.remove(0);
+            for (Node node : inputNodes) {
+                if (!rootNode.addNode(node)) {
+                    boolean fitsRight = rootNode.getFullHeight() >= node.height;
+                    boolean fitsDown = rootNode.getFullWidth() >= node.width;
+                    boolean betterFitRight = rootNode.getFullWidth() + node.width < rootNode.getFullHeight() + node.height;
+                    if (fitsRight && (!fitsDown || betterFitRight)) {
+                        // Expand right
+                        rootNode.getFurthestRight().right = new Node(node.width, rootNode.getFullHeight());
+                    } else if (fitsDown) {
+                        // Expand down
+                        rootNode.getFurthestDown().down = new Node(rootNode.getFullWidth(), node.height);
+                    } else {
+                        throw new RuntimeException("Impossible!!!!");
+                    }
+                    rootNode.addNode(node);
                 }
-                rootNode.addNode(node);
             }
+            rootNode.layout(0, 0, layout);
+            this.width = rootNode.getFullWidth();
+            this.height = rootNode.getFullHeight();
         }
 
-        this.width = rootNode.getFullWidth();
-        this.height = rootNode.getFullHeight();
+        long used = layout.stream().filter(n -> n.materials != null).mapToLong(n -> (long) n.width * n.height).sum();
+        long total = (long) width * height;
+        ModCore.debug("Packed %s textures for %s (%s) into %sx%s, %s%% occupied, %s pixels wasted",
+                layout.stream().filter(n -> n.materials != null).count(), ident, Config.TexturePacking,
+                width, height, String.format("%.1f", used * 100.0 / total), total - used);
+
         if (needsScaling()) {
             Pair<Integer, Integer> size = ImageUtils.scaleSize(width, height, Config.getMaxTextureSize());
             this.scaledWidth = size.getLeft();
@@ -295,53 +488,103 @@ public class OBJTexturePacker {
             this.scaledWidth = width;
             this.scaledHeight = height;
         }
-        rootNode.converters(0, 0);
+        layout.forEach(Node::converters);
 
         for (String variant : variants) {
-            textures.put(variant, () -> {
-                BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
-                Graphics2D graphics = image.createGraphics();
-                rootNode.draw(0, 0, variant, graphics, m -> m.texKd);
-                if (needsScaling()) {
-                    int originalWidth = image.getWidth();
-                    int originalHeight = image.getHeight();
-                    image = scaleImage(image, Config.getMaxTextureSize());
-                    ModCore.warn("Scaling texture '%s' for %s from (%s x %s) to (%s x %s)", variant, ident, originalWidth, originalHeight, image.getWidth(), image.getHeight());
-                }
-                return image;
-            });
+            textures.put(variant, () -> composite(ident, variant, m -> m.texKd));
 
             if (materials.stream().anyMatch(x -> x.texBump != null)) {
-                normals.put(variant, () -> {
-                    BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
-                    Graphics2D graphics = image.createGraphics();
-                    rootNode.draw(0, 0, variant, graphics, m -> m.texBump);
-                    if (needsScaling()) {
-                        int originalWidth = image.getWidth();
-                        int originalHeight = image.getHeight();
-                        image = scaleImage(image, Config.getMaxTextureSize());
-                        ModCore.warn("Scaling texture '%s' for %s from (%s x %s) to (%s x %s)", variant, ident, originalWidth, originalHeight, image.getWidth(), image.getHeight());
-                    }
-                    return image;
-                });
+                normals.put(variant, () -> composite(ident, variant, m -> m.texBump));
             }
 
             if (materials.stream().anyMatch(x -> x.texNs != null)) {
-                speculars.put(variant, () -> {
-                    BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
-                    Graphics2D graphics = image.createGraphics();
-                    rootNode.draw(0, 0, variant, graphics, m -> m.texNs);
-                    if (needsScaling()) {
-                        int originalWidth = image.getWidth();
-                        int originalHeight = image.getHeight();
-                        image = scaleImage(image, Config.getMaxTextureSize());
-                        ModCore.warn("Scaling texture '%s' for %s from (%s x %s) to (%s x %s)", variant, ident, originalWidth, originalHeight, image.getWidth(), image.getHeight());
-                    }
-                    return image;
-                });
+                speculars.put(variant, () -> composite(ident, variant, m -> m.texNs));
+            }
+        }
+    }
+
+    /**
+     * Cover the sheet area between packed nodes with spacers, so the unused area is black like the spacers of the tree
+     * packing and filtering across tile borders gives the same colors with either packing
+     */
+    private void addSpacers() {
+        // Nodes only start or stop at these rows, every band between them has the same gaps throughout
+        TreeSet<Integer> edges = new TreeSet<>();
+        edges.add(0);
+        edges.add(height);
+        for (Node node : layout) {
+            edges.add(node.y);
+            edges.add(node.y + node.height);
+        }
+
+        List<Node> spacers = new ArrayList<>();
+        Integer top = edges.first();
+        for (Integer bottom = edges.higher(top); bottom != null && bottom <= height; top = bottom, bottom = edges.higher(top)) {
+            int bandTop = top;
+            List<Node> band = layout.stream()
+                    .filter(n -> n.y <= bandTop && bandTop < n.y + n.height)
+                    .sorted(Comparator.comparingInt(n -> n.x))
+                    .collect(Collectors.toList());
+            int x = 0;
+            for (Node node : band) {
+                if (node.x > x) {
+                    spacers.add(spacer(x, top, node.x - x, bottom - top));
+                }
+                x = Math.max(x, node.x + node.width);
+            }
+            if (x < width) {
+                spacers.add(spacer(x, top, width - x, bottom - top));
             }
         }
-        imageCache.clear();
+        layout.addAll(spacers);
+    }
+
+    private Node spacer(int x, int y, int width, int height) {
+        Node spacer = new Node(width, height);
+        spacer.x = x;
+        spacer.y = y;
+        return spacer;
+    }
+
+    private BufferedImage composite(Identifier ident, String variant, Function<Material, String> texlu) {
+        long start = System.currentTimeMillis();
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+
+        // Nodes don't overlap, decode and copy each one in parallel
+        int[] raster = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        List<Callable<Boolean>> tiles = new ArrayList<>();
+        for (Node node : layout) {
+            node.tiles(variant, texlu, raster, tiles);
+        }
+        boolean fits = true;
+        try {
+            for (Future<Boolean> tile : compositePool.invokeAll(tiles)) {
+                fits &= tile.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : new RuntimeException(e.getCause());
+        }
+
+        if (!fits) {
+            ModCore.debug("Texture '%s' for %s has oversized images, compositing in order", variant, ident);
+            image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+            Graphics2D graphics = image.createGraphics();
+            for (Node node : layout) {
+                node.draw(variant, graphics, texlu);
+            }
+        }
+        ModCore.debug("Compositing texture '%s' for %s took %sms", variant, ident, System.currentTimeMillis() - start);
+
+        if (needsScaling()) {
+            int originalWidth = image.getWidth();
+            int originalHeight = image.getHeight();
+            image = scaleImage(image, Config.getMaxTextureSize());
+            ModCore.warn("Scaling texture '%s' for %s from (%s x %s) to (%s x %s)", variant, ident, originalWidth, originalHeight, image.getWidth(), image.getHeight());
+        }
+        return image;
     }
 
     private boolean needsScaling() {
@@ -0,0 +1,248 @@
+package cam72cam.mod.model.obj;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Byte level OBJ line tokenizer
+ *
+ * Walks a byte[] line by line and records the bounds of each whitespace separated token.  Numbers are parsed straight
+ * out of the backing array, so the hot v/vn/vt/f records never allocate a String.
+ */
+class OBJTokenizer {
+    private static final double[] POW10 = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+            1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+    // Largest mantissa which can be represented exactly by a double
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+    private final byte[] data;
+    private final int limit;
+    private int pos;
+
+    private int[] tokenStart = new int[16];
+    private int[] tokenEnd = new int[16];
+    private int tokenCount;
+
+    OBJTokenizer(byte[] data, int start, int limit) {
+        this.data = data;
+        this.pos = start;
+        this.limit = limit;
+    }
+
+    /**
+     * Advance to the next line containing at least one token, skipping blank lines and comments
+     * @return false once the end of the input has been reached
+     */
+    boolean nextLine() {
+        while (pos < limit) {
+            int lineEnd = pos;
+            while (lineEnd < limit && data[lineEnd] != '\n' && data[lineEnd] != '\r') {
+                lineEnd++;
+            }
+
+            tokenCount = 0;
+            if (data[pos] != '#') {
+                int i = pos;
+                while (i < lineEnd) {
+                    while (i < lineEnd && isSpace(data[i])) {
+                        i++;
+                    }
+                    if (i == lineEnd) {
+                        break;
+                    }
+                    int start = i;
+                    while (i < lineEnd && !isSpace(data[i])) {
+                        i++;
+                    }
+                    addToken(start, i);
+                }
+            }
+
+            pos = lineEnd + 1;
+            if (tokenCount != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t';
+    }
+
+    private void addToken(int start, int end) {
+        if (tokenCount == tokenStart.length) {
+            int[] newStart = new int[tokenCount * 2];
+            int[] newEnd = new int[tokenCount * 2];
+            System.arraycopy(tokenStart, 0, newStart, 0, tokenCount);
+            System.arraycopy(tokenEnd, 0, newEnd, 0, tokenCount);
+            tokenStart = newStart;
+            tokenEnd = newEnd;
+        }
+        tokenStart[tokenCount] = start;
+        tokenEnd[tokenCount] = end;
+        tokenCount++;
+    }
+
+    int tokens() {
+        return tokenCount;
+    }
+
+    int length(int token) {
+        return tokenEnd[token] - tokenStart[token];
+    }
+
+    byte charAt(int token, int offset) {
+        return data[tokenStart[token] + offset];
+    }
+
+    boolean is(int token, String value) {
+        int start = tokenStart[token];
+        int len = tokenEnd[token] - start;
+        if (len != value.length()) {
+            return false;
+        }
+        for (int i = 0; i < len; i++) {
+            if (data[start + i] != value.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    String string(int token) {
+        return new String(data, tokenStart[token], length(token), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return every token from the given one until the end of the line, as written in the source
+     */
+    String rest(int token) {
+        int start = tokenStart[token];
+        return new String(data, start, tokenEnd[tokenCount - 1] - start, StandardCharsets.UTF_8);
+    }
+
+    float parseFloat(int token) {
+        return parseFloat(data, tokenStart[token], tokenEnd[token]);
+    }
+
+    /**
+     * Parses a face point (v, v/vt, v//vn or v/vt/vn) into out[offset..offset+2] as zero based indices, with -1 for
+     * any component which was not specified
+     * @return false if the normal index was not specified
+     */
+    boolean parsePoint(int token, int[] out, int offset) {
+        int start = tokenStart[token];
+        int end = tokenEnd[token];
+        for (int i = 0; i < 3; i++) {
+            int sep = start;
+            while (sep < end && data[sep] != '/') {
+                sep++;
+            }
+            out[offset + i] = sep == start ? -1 : parseInt(data, start, sep) - 1;
+            start = Math.min(sep + 1, end);
+        }
+        return out[offset + 2] != -1;
+    }
+
+    /**
+     * Same result as Float.parseFloat for the given range, without allocating for the common decimal formats.
+     */
+    static float parseFloat(byte[] data, int start, int end) {
+        int i = start;
+        boolean negative = false;
+        if (i < end && (data[i] == '-' || data[i] == '+')) {
+            negative = data[i] == '-';
+            i++;
+        }
+
+        long mantissa = 0;
+        int exponent = 0;
+        boolean digits = false;
+        for (; i < end && data[i] >= '0' && data[i] <= '9'; i++) {
+            if (mantissa > MAX_EXACT_MANTISSA) {
+                return slowFloat(data, start, end);
+            }
+            mantissa = mantissa * 10 + (data[i] - '0');
+            digits = true;
+        }
+        if (i < end && data[i] == '.') {
+            i++;
+            for (; i < end && data[i] >= '0' && data[i] <= '9'; i++) {
+                if (mantissa > MAX_EXACT_MANTISSA) {
+                    return slowFloat(data, start, end);
+                }
+                mantissa = mantissa * 10 + (data[i] - '0');
+                exponent--;
+                digits = true;
+            }
+        }
+        if (digits && i < end && (data[i] == 'e' || data[i] == 'E')) {
+            i++;
+            boolean negativeExp = false;
+            if (i < end && (data[i] == '-' || data[i] == '+')) {
+                negativeExp = data[i] == '-';
+                i++;
+            }
+            int exp = 0;
+            int expStart = i;
+            for (; i < end && data[i] >= '0' && data[i] <= '9' && exp < 1000; i++) {
+                exp = exp * 10 + (data[i] - '0');
+            }
+            if (i == expStart) {
+                return slowFloat(data, start, end);
+            }
+            exponent += negativeExp ? -exp : exp;
+        }
+
+        if (!digits || i != end || mantissa > MAX_EXACT_MANTISSA || exponent < -22 || exponent > 22) {
+            // Hex, NaN, Infinity, type suffixes, garbage or simply outside of the exact range
+            return slowFloat(data, start, end);
+        }
+        if (mantissa == 0) {
+            return negative ? -0f : 0f;
+        }
+
+        // Both operands are exact, so the double result is correctly rounded
+        double value = exponent < 0 ? mantissa / POW10[-exponent] : mantissa * POW10[exponent];
+
+        // Rounding double -> float only differs from rounding the exact value directly when the double landed exactly
+        // on a float midpoint.  Denormals use a different spacing, so they go through the slow path as well.
+        if (value < Float.MIN_NORMAL || value > Float.MAX_VALUE ||
+                (Double.doubleToRawLongBits(value) & 0x1FFFFFFFL) == 0x10000000L) {
+            return slowFloat(data, start, end);
+        }
+        float result = (float) value;
+        return negative ? -result : result;
+    }
+
+    private static float slowFloat(byte[] data, int start, int end) {
+        return Float.parseFloat(new String(data, start, end - start, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Same result as Integer.parseInt for the given range, without allocating for valid input
+     */
+    static int parseInt(byte[] data, int start, int end) {
+        int i = start;
+        boolean negative = false;
+        if (i < end && (data[i] == '-' || data[i] == '+')) {
+            negative = data[i] == '-';
+            i++;
+        }
+        if (i == end || end - i > 9) {
+            // Empty or potentially overflowing, let the JDK decide
+            return Integer.parseInt(new String(data, start, end - start, StandardCharsets.UTF_8));
+        }
+        int value = 0;
+        for (; i < end; i++) {
+            int digit = data[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return Integer.parseInt(new String(data, start, end - start, StandardCharsets.UTF_8));
+            }
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+    }
+}
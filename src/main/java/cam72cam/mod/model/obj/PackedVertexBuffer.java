@@ -0,0 +1,137 @@
+package cam72cam.mod.model.obj;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Quantized GPU layout for a VertexBuffer, 20 bytes per vertex instead of 48
+ *
+ * (x, y, z, pad) unsigned normalized shorts relative to the buffer bounds
+ * (u, v) unsigned normalized shorts
+ * (r, g, b, a) unsigned normalized bytes
+ * (nx, ny, nz, pad) signed normalized bytes
+ *
+ * Every attribute is expanded by the fixed function vertex fetch, so the standard shaders can consume it as is.
+ * Positions are stored in [0, 1] and need min + pos * extent applied, which VBO folds into the model view.
+ */
+public class PackedVertexBuffer {
+    public static final int STRIDE = 20;
+    public static final int VERTEX_OFFSET = 0;
+    public static final int TEXTURE_OFFSET = 8;
+    public static final int COLOR_OFFSET = 12;
+    public static final int NORMAL_OFFSET = 16;
+
+    public final boolean hasNormals;
+    public final int vertices;
+    /** Position bounds, used to dequantize */
+    public final float minX, minY, minZ;
+    public final float extentX, extentY, extentZ;
+    /** Native order, direct buffer ready for upload */
+    public final ByteBuffer data;
+
+    public PackedVertexBuffer(VertexBuffer vb) {
+        this.hasNormals = vb.hasNormals;
+        this.vertices = vb.data.length / vb.stride;
+
+        float minX = Float.POSITIVE_INFINITY, minY = Float.POSITIVE_INFINITY, minZ = Float.POSITIVE_INFINITY;
+        float maxX = Float.NEGATIVE_INFINITY, maxY = Float.NEGATIVE_INFINITY, maxZ = Float.NEGATIVE_INFINITY;
+        for (int i = vb.vertexOffset; i < vb.data.length; i += vb.stride) {
+            minX = Math.min(minX, vb.data[i]);
+            minY = Math.min(minY, vb.data[i+1]);
+            minZ = Math.min(minZ, vb.data[i+2]);
+            maxX = Math.max(maxX, vb.data[i]);
+            maxY = Math.max(maxY, vb.data[i+1]);
+            maxZ = Math.max(maxZ, vb.data[i+2]);
+        }
+        if (vertices == 0) {
+            minX = minY = minZ = maxX = maxY = maxZ = 0;
+        }
+        this.minX = minX;
+        this.minY = minY;
+        this.minZ = minZ;
+        // Flat axis, avoid a degenerate transform
+        this.extentX = maxX > minX ? maxX - minX : 1;
+        this.extentY = maxY > minY ? maxY - minY : 1;
+        this.extentZ = maxZ > minZ ? maxZ - minZ : 1;
+
+        this.data = ByteBuffer.allocateDirect(vertices * STRIDE).order(ByteOrder.nativeOrder());
+        for (int v = 0; v < vertices; v++) {
+            int src = v * vb.stride;
+            int dst = v * STRIDE;
+            data.putShort(dst + VERTEX_OFFSET, encodeUnorm16((vb.data[src + vb.vertexOffset] - minX) / extentX));
+            data.putShort(dst + VERTEX_OFFSET + 2, encodeUnorm16((vb.data[src + vb.vertexOffset + 1] - minY) / extentY));
+            data.putShort(dst + VERTEX_OFFSET + 4, encodeUnorm16((vb.data[src + vb.vertexOffset + 2] - minZ) / extentZ));
+
+            data.putShort(dst + TEXTURE_OFFSET, encodeUnorm16(vb.data[src + vb.textureOffset]));
+            data.putShort(dst + TEXTURE_OFFSET + 2, encodeUnorm16(vb.data[src + vb.textureOffset + 1]));
+
+            for (int c = 0; c < 4; c++) {
+                data.put(dst + COLOR_OFFSET + c, encodeUnorm8(vb.data[src + vb.colorOffset + c]));
+            }
+
+            if (hasNormals) {
+                for (int c = 0; c < 3; c++) {
+                    data.put(dst + NORMAL_OFFSET + c, encodeSnorm8(vb.data[src + vb.normalOffset + c]));
+                }
+            }
+        }
+    }
+
+    /**
+     * Expands the packed data back into floats, mostly useful for debugging and tests
+     */
+    public VertexBuffer unpack() {
+        VertexBuffer vb = new VertexBuffer(0, hasNormals);
+        float[] out = new float[vertices * vb.stride];
+        for (int v = 0; v < vertices; v++) {
+            int src = v * STRIDE;
+            int dst = v * vb.stride;
+            out[dst + vb.vertexOffset] = minX + decodeUnorm16(data.getShort(src + VERTEX_OFFSET)) * extentX;
+            out[dst + vb.vertexOffset + 1] = minY + decodeUnorm16(data.getShort(src + VERTEX_OFFSET + 2)) * extentY;
+            out[dst + vb.vertexOffset + 2] = minZ + decodeUnorm16(data.getShort(src + VERTEX_OFFSET + 4)) * extentZ;
+
+            out[dst + vb.textureOffset] = decodeUnorm16(data.getShort(src + TEXTURE_OFFSET));
+            out[dst + vb.textureOffset + 1] = decodeUnorm16(data.getShort(src + TEXTURE_OFFSET + 2));
+
+            for (int c = 0; c < 4; c++) {
+                out[dst + vb.colorOffset + c] = decodeUnorm8(data.get(src + COLOR_OFFSET + c));
+            }
+
+            if (hasNormals) {
+                for (int c = 0; c < 3; c++) {
+                    out[dst + vb.normalOffset + c] = decodeSnorm8(data.get(src + NORMAL_OFFSET + c));
+                }
+            }
+        }
+        return new VertexBuffer(out, hasNormals);
+    }
+
+    static short encodeUnorm16(float value) {
+        return (short) Math.round(clamp(value, 0, 1) * 65535);
+    }
+
+    static float decodeUnorm16(short value) {
+        return (value & 0xFFFF) / 65535f;
+    }
+
+    static byte encodeUnorm8(float value) {
+        return (byte) Math.round(clamp(value, 0, 1) * 255);
+    }
+
+    static float decodeUnorm8(byte value) {
+        return (value & 0xFF) / 255f;
+    }
+
+    static byte encodeSnorm8(float value) {
+        return (byte) Math.round(clamp(value, -1, 1) * 127);
+    }
+
+    static float decodeSnorm8(byte value) {
+        return Math.max(value / 127f, -1);
+    }
+
+    private static float clamp(float value, float min, float max) {
+        // NaN (or UNSPECIFIED garbage) ends up as min
+        return value >= min ? Math.min(value, max) : min;
+    }
+}
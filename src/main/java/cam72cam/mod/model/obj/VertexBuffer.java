@@ -1,5 +1,7 @@
 package cam72cam.mod.model.obj;
 
+import util.Matrix4;
+
 public class VertexBuffer {
     public final boolean hasNormals;
     public final int vertsPerFace;
@@ -29,4 +31,55 @@ public class VertexBuffer {
     public VertexBuffer(float[] data, boolean hasNormals) {
         this(data, 0, hasNormals);
     }
+
+    /**
+     * Copy data[from, to) into dest at destOffset, transforming positions by m and normals by its inverse transpose
+     * (renormalized).  A null m copies the vertices as is.
+     */
+    public void transform(int from, int to, Matrix4 m, float[] dest, int destOffset) {
+        System.arraycopy(data, from, dest, destOffset, to - from);
+        if (m == null) {
+            return;
+        }
+
+        // Cofactors of the upper 3x3, the inverse transpose scaled by the determinant
+        double c00 = m.m11 * m.m22 - m.m12 * m.m21;
+        double c01 = m.m12 * m.m20 - m.m10 * m.m22;
+        double c02 = m.m10 * m.m21 - m.m11 * m.m20;
+        double c10 = m.m02 * m.m21 - m.m01 * m.m22;
+        double c11 = m.m00 * m.m22 - m.m02 * m.m20;
+        double c12 = m.m01 * m.m20 - m.m00 * m.m21;
+        double c20 = m.m01 * m.m12 - m.m02 * m.m11;
+        double c21 = m.m02 * m.m10 - m.m00 * m.m12;
+        double c22 = m.m00 * m.m11 - m.m01 * m.m10;
+        // Mirroring transforms must not flip the normals
+        double sign = m.m00 * c00 + m.m01 * c01 + m.m02 * c02 < 0 ? -1 : 1;
+
+        int end = destOffset + (to - from);
+        for (int i = destOffset + vertexOffset; i < end; i += stride) {
+            double x = dest[i];
+            double y = dest[i + 1];
+            double z = dest[i + 2];
+            dest[i] = (float) (m.m00 * x + m.m01 * y + m.m02 * z + m.m03);
+            dest[i + 1] = (float) (m.m10 * x + m.m11 * y + m.m12 * z + m.m13);
+            dest[i + 2] = (float) (m.m20 * x + m.m21 * y + m.m22 * z + m.m23);
+        }
+        if (hasNormals) {
+            for (int i = destOffset + normalOffset; i < end; i += stride) {
+                double x = dest[i];
+                double y = dest[i + 1];
+                double z = dest[i + 2];
+                double nx = c00 * x + c01 * y + c02 * z;
+                double ny = c10 * x + c11 * y + c12 * z;
+                double nz = c20 * x + c21 * y + c22 * z;
+                double length = Math.sqrt(nx * nx + ny * ny + nz * nz);
+                if (length > 0) {
+                    double scale = sign / length;
+                    dest[i] = (float) (nx * scale);
+                    dest[i + 1] = (float) (ny * scale);
+                    dest[i + 2] = (float) (nz * scale);
+                }
+            }
+        }
+    }
 }
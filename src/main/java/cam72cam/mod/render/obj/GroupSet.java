@@ -0,0 +1,55 @@
+package cam72cam.mod.render.obj;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Precompiled set of group names, for drawing the same groups every frame
+ *
+ * The merged vertex ranges are worked out the first time the set is drawn from an OBJRender (each mesh LOD has its own
+ * face ranges) and reused after that, so drawing a group set does no sorting or name lookups.  A set does not keep
+ * the renders it was drawn from alive.  Render thread only.
+ */
+public class GroupSet {
+    /** Sorted */
+    public final List<String> groups;
+
+    // By render identity (VBO does not override equals), weak so released models can still be collected
+    private final Map<OBJRender, Ranges> ranges = new WeakHashMap<>();
+
+    static class Ranges {
+        /** (first vertex, vertex count) pairs, adjacent groups merged */
+        final int[] pairs;
+        final int[] firsts;
+        final int[] counts;
+
+        private Ranges(int[] pairs) {
+            this.pairs = pairs;
+            this.firsts = new int[pairs.length / 2];
+            this.counts = new int[pairs.length / 2];
+            for (int i = 0; i < firsts.length; i++) {
+                firsts[i] = pairs[i * 2];
+                counts[i] = pairs[i * 2 + 1];
+            }
+        }
+    }
+
+    public GroupSet(Collection<String> groups) {
+        List<String> sorted = new ArrayList<>(groups);
+        sorted.sort(null);
+        this.groups = Collections.unmodifiableList(sorted);
+    }
+
+    Ranges ranges(OBJRender render) {
+        Ranges found = ranges.get(render);
+        if (found == null) {
+            found = new Ranges(render.ranges(groups));
+            ranges.put(render, found);
+        }
+        return found;
+    }
+}
@@ -1,14 +1,14 @@
 package cam72cam.mod.render.obj;
 
-import cam72cam.mod.math.Vec3d;
 import cam72cam.mod.model.obj.OBJGroup;
 import cam72cam.mod.model.obj.OBJModel;
 import cam72cam.mod.model.obj.VertexBuffer;
+import cam72cam.mod.render.opengl.Instances;
 import cam72cam.mod.render.opengl.RenderContext;
+import cam72cam.mod.render.opengl.RenderQueue;
 import cam72cam.mod.util.With;
 import cam72cam.mod.render.opengl.VBO;
 import cam72cam.mod.render.opengl.RenderState;
-import org.lwjgl.opengl.GL32;
 import util.Matrix4;
 
 import java.util.*;
@@ -18,11 +18,18 @@ import java.util.function.Supplier;
 public class OBJRender extends VBO {
     public final OBJModel model;
     public final Supplier<VertexBuffer> buffer;
+    // Face ranges in this buffer, differs from model.groups for mesh LODs
+    private final Map<String, OBJGroup> groups;
 
     public OBJRender(OBJModel model, Supplier<VertexBuffer> buffer) {
+        this(model, buffer, model.groups);
+    }
+
+    public OBJRender(OBJModel model, Supplier<VertexBuffer> buffer, Map<String, OBJGroup> groups) {
         super(buffer, s -> {});
         this.model = model;
         this.buffer = buffer;
+        this.groups = groups;
     }
 
     public Binding bind(RenderState state) {
@@ -46,6 +53,28 @@ public class OBJRender extends VBO {
             }
         }
 
+        public void draw(GroupSet groups, Consumer<RenderState> mod) {
+            if (!isLoaded()) {
+                return;
+            }
+            try (With pus = super.push(mod)) {
+                draw(groups);
+            }
+        }
+
+        /**
+         * Draw a precompiled set of groups in the VB
+         */
+        public void draw(GroupSet groups) {
+            if (!isLoaded()) {
+                return;
+            }
+            RenderContext.checkError();
+            GroupSet.Ranges ranges = groups.ranges(OBJRender.this);
+            drawRanges(ranges.firsts, ranges.counts);
+            RenderContext.checkError();
+        }
+
         /**
          * Draw these groups in the VB
          */
@@ -54,107 +83,122 @@ public class OBJRender extends VBO {
                 return;
             }
             RenderContext.checkError();
-            List<String> sorted = new ArrayList<>(groups);
-            sorted.sort(Comparator.naturalOrder());
-            int start = -1;
-            int stop = -1;
-            for (String group : sorted) {
-                OBJGroup info = model.groups.get(group);
-                if (start == stop) {
-                    start = info.faceStart;
-                    stop = info.faceStop + 1;
-                } else if (info.faceStart == stop) {
-                    stop = info.faceStop + 1;
-                } else {
-                    GL32.glDrawArrays(GL32.GL_TRIANGLES, start * 3, (stop - start) * 3);
-                    start = info.faceStart;
-                    stop = info.faceStop + 1;
-                }
-            }
-            if (start != stop) {
-                GL32.glDrawArrays(GL32.GL_TRIANGLES, start * 3, (stop - start) * 3);
+            int[] ranges = ranges(groups);
+            for (int i = 0; i < ranges.length; i += 2) {
+                drawRange(ranges[i], ranges[i + 1]);
             }
             RenderContext.checkError();
         }
     }
 
+    /**
+     * Vertex ranges covering these groups, as (first, count) pairs with adjacent groups merged
+     */
+    int[] ranges(Collection<String> groups) {
+        List<String> sorted = new ArrayList<>(groups);
+        sorted.sort(Comparator.naturalOrder());
+        int[] ranges = new int[sorted.size() * 2];
+        int length = 0;
+        int start = -1;
+        int stop = -1;
+        for (String group : sorted) {
+            OBJGroup info = this.groups.get(group);
+            if (start == stop) {
+                start = info.faceStart;
+                stop = info.faceStop + 1;
+            } else if (info.faceStart == stop) {
+                stop = info.faceStop + 1;
+            } else {
+                ranges[length++] = start * 3;
+                ranges[length++] = (stop - start) * 3;
+                start = info.faceStart;
+                stop = info.faceStop + 1;
+            }
+        }
+        if (start != stop) {
+            ranges[length++] = start * 3;
+            ranges[length++] = (stop - start) * 3;
+        }
+        return length == ranges.length ? ranges : Arrays.copyOf(ranges, length);
+    }
+
+    /**
+     * Queue a copy of these groups for instances.draw(), see VBO.instance
+     */
+    public void instance(Instances instances, RenderState state, Collection<String> groups) {
+        instance(instances, state, ranges(groups));
+    }
+
+    /**
+     * Record a draw of these groups in queue, see VBO.queue
+     */
+    public void queue(RenderQueue queue, RenderState state, Collection<String> groups) {
+        queue(queue, state, ranges(groups));
+    }
+
+    public void instance(Instances instances, RenderState state, GroupSet groups) {
+        instance(instances, state, groups.ranges(this).pairs);
+    }
+
+    public void queue(RenderQueue queue, RenderState state, GroupSet groups) {
+        queue(queue, state, groups.ranges(this).pairs);
+    }
+
     public class Builder {
         private final Consumer<RenderState> settings;
-        private final List<Consumer<Buffer>> actions = new ArrayList<>();
+        private final List<Draw> draws = new ArrayList<>();
 
         private Builder(Consumer<RenderState> settings) {
             this.settings = settings;
         }
 
-        private class Buffer {
-            private VertexBuffer vb;
-            private float[] built;
-            private int builtIdx;
-
-            private Buffer() {
-                this.vb = buffer.get();
-                this.built = new float[vb.data.length];
-                this.builtIdx = 0;
-            }
+        private class Draw {
+            // null for the whole buffer
+            private final Collection<String> groups;
+            private final Matrix4 m;
 
-            private void require(int size) {
-                while (built.length <= builtIdx + size) {
-                    float[] tmp = new float[built.length * 2];
-                    System.arraycopy(built, 0, tmp, 0, builtIdx);
-                    built = tmp;
-                }
+            private Draw(Collection<String> groups, Matrix4 m) {
+                this.groups = groups;
+                this.m = m;
             }
+        }
 
-            private void add(float[] buff, Matrix4 m) {
-                require(buff.length);
-
-                if (m != null) {
-                    for (int i = 0; i < buff.length; i += vb.stride) {
-                        float x = buff[i+0];
-                        float y = buff[i+1];
-                        float z = buff[i+2];
-                        Vec3d v = m.apply(new Vec3d(x, y, z));
-                        buff[i+0] = (float) v.x;
-                        buff[i+1] = (float) v.y;
-                        buff[i+2] = (float) v.z;
+        /**
+         * Transform every draw straight from the source buffer into an output sized up front from the group ranges
+         */
+        private VertexBuffer bake(List<Draw> draws) {
+            VertexBuffer vb = buffer.get();
+            int faceFloats = vb.vertsPerFace * vb.stride;
+
+            int size = 0;
+            for (Draw draw : draws) {
+                if (draw.groups == null) {
+                    size += vb.data.length;
+                } else {
+                    for (String group : draw.groups) {
+                        OBJGroup info = OBJRender.this.groups.get(group);
+                        size += (info.faceStop + 1 - info.faceStart) * faceFloats;
                     }
                 }
-
-                System.arraycopy(buff, 0, built, builtIdx, buff.length);
-                builtIdx += buff.length;
             }
 
-            public void draw(Matrix4 m) {
-                if (m == null) {
-                    add(vb.data, null);
+            float[] out = new float[size];
+            int offset = 0;
+            for (Draw draw : draws) {
+                if (draw.groups == null) {
+                    vb.transform(0, vb.data.length, draw.m, out, offset);
+                    offset += vb.data.length;
                 } else {
-                    float[] buff = new float[vb.data.length];
-                    System.arraycopy(vb.data, 0, buff, 0, vb.data.length);
-                    add(buff, m);
-                }
-            }
-
-            public void draw(Collection<String> groups, Matrix4 m) {
-                for (String group : groups) {
-                    OBJGroup info = model.groups.get(group);
-
-                    int start = info.faceStart * vb.vertsPerFace * vb.stride;
-                    int stop = (info.faceStop + 1) * vb.vertsPerFace * vb.stride;
-
-                    float[] buff = new float[stop - start];
-                    System.arraycopy(vb.data, start, buff, 0, stop - start);
-                    add(buff, m);
+                    for (String group : draw.groups) {
+                        OBJGroup info = OBJRender.this.groups.get(group);
+                        int start = info.faceStart * faceFloats;
+                        int stop = (info.faceStop + 1) * faceFloats;
+                        vb.transform(start, stop, draw.m, out, offset);
+                        offset += stop - start;
+                    }
                 }
             }
-
-            public VertexBuffer build() {
-                float[] out = new float[builtIdx];
-                System.arraycopy(built, 0, out, 0, builtIdx);
-                boolean hasNormals = vb.hasNormals;
-                vb = null;
-                built = null;
-                return new VertexBuffer(out, hasNormals);
-            }
+            return new VertexBuffer(out, vb.hasNormals);
         }
 
         public void draw() {
@@ -162,7 +206,7 @@ public class OBJRender extends VBO {
         }
 
         public void draw(Matrix4 m) {
-            actions.add(b -> b.draw(m));
+            draws.add(new Draw(null, m));
         }
 
         public void draw(Collection<String> groups) {
@@ -170,16 +214,12 @@ public class OBJRender extends VBO {
         }
 
         public void draw(Collection<String> groups, Matrix4 m) {
-            actions.add(b -> b.draw(groups, m));
+            draws.add(new Draw(groups, m));
         }
 
         public VBO build() {
-            List<Consumer<Buffer>> actions = new ArrayList<>(this.actions); // Snapshot
-            return new VBO(() -> {
-                Buffer buff = new Buffer();
-                actions.forEach(c -> c.accept(buff));
-                return buff.build();
-            }, settings);
+            List<Draw> draws = new ArrayList<>(this.draws); // Snapshot
+            return new VBO(() -> bake(draws), settings);
         }
     }
 
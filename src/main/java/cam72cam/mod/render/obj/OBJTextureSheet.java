@@ -9,16 +9,34 @@ import java.util.function.Supplier;
 
 public class OBJTextureSheet extends CustomTexture {
     private final Supplier<ResourceCache.GenericByteBuffer> data;
+    private final boolean compressed;
 
     public OBJTextureSheet(int width, int height, Supplier<ResourceCache.GenericByteBuffer> data, int cacheSeconds) {
+        this(width, height, data, cacheSeconds, false);
+    }
+
+    /**
+     * @param compressed data is in the BlockCompression format instead of RGBA bytes
+     */
+    public OBJTextureSheet(int width, int height, Supplier<ResourceCache.GenericByteBuffer> data, int cacheSeconds, boolean compressed) {
         super(width, height, cacheSeconds);
         this.data = data;
+        this.compressed = compressed;
+    }
+
+    @Override
+    protected boolean isBlockCompressed() {
+        return compressed;
     }
 
     @Override
     protected ByteBuffer getData() {
-        byte[] raw = data.get().bytes();
-        ByteBuffer buffer = BufferUtils.createByteBuffer(raw.length);
+        ByteBuffer raw = data.get().buffer();
+        if (raw.isDirect()) {
+            // Mapped or decompressed straight into native memory, no need for another copy
+            return raw;
+        }
+        ByteBuffer buffer = BufferUtils.createByteBuffer(raw.remaining());
         buffer.put(raw);
         buffer.flip();
         return buffer;
@@ -0,0 +1,163 @@
+package cam72cam.mod.render.opengl;
+
+import cam72cam.mod.Config;
+import cam72cam.mod.ModCore;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Background loader shared by textures and vertex buffers
+ *
+ * Queued jobs are started lowest priority value first (distance to the camera), instead of in submission order.  Jobs
+ * which are no longer requested (their asset left the view) are dropped before they start, and a job only starts
+ * while the memory it decodes fits in Config.AssetLoaderMemory next to the jobs already running.
+ */
+public class AssetLoader {
+    /** Queued jobs which have not been requested for this long are cancelled */
+    private static final long STALE_MILLIS = 2000;
+    private static final int THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+
+    private static final List<Job<?>> queue = new ArrayList<>();
+    private static final List<Thread> workers = new ArrayList<>();
+    private static long sequence = 0;
+    private static long runningBytes = 0;
+    private static int running = 0;
+
+    // Counters, guarded by queue
+    private static long completed = 0;
+    private static long cancelled = 0;
+    private static long totalWaitMillis = 0;
+    private static long maxWaitMillis = 0;
+
+    public static class Job<T> extends FutureTask<T> {
+        private final long bytes;
+        private final long order;
+        private final long submitted;
+        private volatile double priority;
+        private volatile long requested;
+
+        private Job(Callable<T> task, long bytes, double priority, long order) {
+            super(task);
+            this.bytes = bytes;
+            this.order = order;
+            this.priority = priority;
+            this.submitted = System.currentTimeMillis();
+            this.requested = submitted;
+        }
+
+        /**
+         * Keep this job queued, lower priorities start first
+         */
+        public void request(double priority) {
+            this.priority = priority;
+            this.requested = System.currentTimeMillis();
+        }
+
+        private boolean isStale(long now) {
+            return now - requested > STALE_MILLIS;
+        }
+    }
+
+    /**
+     * @param bytes memory the task is expected to allocate while running (0 if unknown or small)
+     * @param priority lower starts first, usually the distance to the camera
+     */
+    public static <T> Job<T> submit(Callable<T> task, long bytes, double priority) {
+        synchronized (queue) {
+            Job<T> job = new Job<>(task, bytes, priority, sequence++);
+            queue.add(job);
+            if (workers.size() < THREADS) {
+                Thread thread = new Thread(AssetLoader::work);
+                thread.setName("UMC-AssetLoader-" + workers.size());
+                thread.setPriority(Thread.MIN_PRIORITY);
+                thread.setDaemon(true);
+                workers.add(thread);
+                thread.start();
+            }
+            queue.notifyAll();
+            return job;
+        }
+    }
+
+    /**
+     * Highest priority queued job that fits in the memory budget, dropping stale jobs along the way
+     */
+    private static Job<?> next() {
+        long now = System.currentTimeMillis();
+        long budget = Config.AssetLoaderMemory * 1024L * 1024L;
+        Job<?> best = null;
+        for (int i = queue.size() - 1; i >= 0; i--) {
+            Job<?> job = queue.get(i);
+            if (job.isCancelled() || job.isStale(now)) {
+                queue.remove(i);
+                job.cancel(false);
+                cancelled++;
+                continue;
+            }
+            // Always allow one job, even if it is larger than the budget on its own
+            boolean fits = running == 0 || runningBytes + job.bytes <= budget;
+            if (fits && (best == null || job.priority < best.priority || job.priority == best.priority && job.order < best.order)) {
+                best = job;
+            }
+        }
+        return best;
+    }
+
+    private static void work() {
+        while (true) {
+            Job<?> job;
+            synchronized (queue) {
+                while ((job = next()) == null) {
+                    try {
+                        // Timeout so stale jobs are still dropped while waiting on memory
+                        queue.wait(STALE_MILLIS);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                queue.remove(job);
+                running++;
+                runningBytes += job.bytes;
+                long wait = System.currentTimeMillis() - job.submitted;
+                totalWaitMillis += wait;
+                maxWaitMillis = Math.max(maxWaitMillis, wait);
+            }
+
+            try {
+                job.run();
+            } catch (Throwable ex) {
+                // FutureTask captures task exceptions, this is only for errors in the scheduler itself
+                ModCore.catching(ex);
+            } finally {
+                synchronized (queue) {
+                    running--;
+                    runningBytes -= job.bytes;
+                    completed++;
+                    queue.notifyAll();
+                }
+            }
+        }
+    }
+
+    /** Jobs waiting to start */
+    public static int queued() {
+        synchronized (queue) {
+            return queue.size();
+        }
+    }
+
+    /**
+     * Queue depth and latency, for the F3 screen
+     */
+    public static String debug() {
+        synchronized (queue) {
+            long started = completed + running;
+            return String.format("UMC Loader: %d queued, %d running (%dMB), %d done, %d dropped, wait %dms avg %dms max",
+                    queue.size(), running, runningBytes / 1024 / 1024, completed, cancelled,
+                    started == 0 ? 0 : totalWaitMillis / started, maxWaitMillis);
+        }
+    }
+}
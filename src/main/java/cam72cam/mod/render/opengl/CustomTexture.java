@@ -3,57 +3,58 @@ package cam72cam.mod.render.opengl;
 import cam72cam.mod.Config;
 import cam72cam.mod.ModCore;
 import cam72cam.mod.event.ClientEvents;
+import cam72cam.mod.model.obj.BlockCompression;
+import cam72cam.mod.model.obj.ImageUtils;
 import cam72cam.mod.util.With;
+import net.minecraft.client.Minecraft;
+import org.lwjgl.opengl.GL;
 import org.lwjgl.opengl.GL32;
 
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.*;
 
 public abstract class CustomTexture implements Texture {
     private final int width;
     private final int height;
-    private final int cacheSeconds;
 
-    private static final ExecutorService pool = Executors.newFixedThreadPool(1, runnable -> {
-        Thread thread = new Thread(runnable);
-        thread.setName("UMC-TextureLoader");
-        thread.setPriority(Thread.MIN_PRIORITY);
-        return thread;
-    });
-
-    private Future<ByteBuffer> loader = null;
-    private long lastUsed;
+    private AssetLoader.Job<List<ByteBuffer>> loader = null;
+    private double loadPriority = 0;
+    private Upload upload = null;
+    private final VRAMBudget.Resident resident;
     private Integer textureID;
 
-    private static final List<CustomTexture> textures = new ArrayList<>();
+    // Textures with an Upload in progress, render thread only
+    private static final List<CustomTexture> streaming = new ArrayList<>();
+    private static boolean warnedS3TC = false;
+
+    // Upload metrics, render thread only
+    private static long frameUploadBytes;
+    private static long frameUploadNanos;
+    private static long lastFrameUploadBytes;
+    private static double lastFrameUploadMillis;
+    private static double maxFrameUploadMillis;
+    private static int pendingUploads;
 
     public static void registerClientEvents() {
-        // free unused textures
-        ClientEvents.TICK.subscribe(() -> {
-            try {
-                synchronized (textures) {
-                    for (CustomTexture texture : textures) {
-                        if (texture.textureID != null && System.currentTimeMillis() - texture.lastUsed > texture.cacheSeconds * 1000 && (texture.loader == null || !texture.loader.isDone())) {
-                            texture.dealloc();
-                        }
-                    }
-                }
-            } catch (Exception ex) {
-                ModCore.catching(ex);
+        ClientEvents.FRAME.subscribe(CustomTexture::uploadFrame);
+
+        ClientEvents.RENDER_DEBUG.subscribe(event -> {
+            if (Minecraft.getInstance().options.renderDebug) {
+                event.getRight().add(debug());
+                event.getRight().add(AssetLoader.debug());
             }
         });
     }
 
 
     public CustomTexture(int width, int height, int cacheSeconds) {
-        synchronized (textures) {
-            textures.add(this);
-        }
         this.width = width;
         this.height = height;
-        this.cacheSeconds = cacheSeconds;
+        this.resident = new VRAMBudget.Resident(cacheSeconds * 1000L, this::dealloc);
     }
 
     protected abstract ByteBuffer getData();
@@ -61,49 +62,306 @@ public abstract class CustomTexture implements Texture {
         return GL32.GL_RGBA;
     }
 
-    private void createTexture(ByteBuffer buffer) {
-        textureID = GL32.glGenTextures();
-        try (With ctx = RenderContext.apply(new RenderState().texture(Texture.wrap(textureID)))) {
-            GL32.glPixelStorei(GL32.GL_UNPACK_SWAP_BYTES, GL32.GL_FALSE);
-            GL32.glPixelStorei(GL32.GL_UNPACK_LSB_FIRST, GL32.GL_FALSE);
-            GL32.glPixelStorei(GL32.GL_UNPACK_ROW_LENGTH, 0);
-            GL32.glPixelStorei(GL32.GL_UNPACK_SKIP_ROWS, 0);
-            GL32.glPixelStorei(GL32.GL_UNPACK_SKIP_PIXELS, 0);
-            GL32.glPixelStorei(GL32.GL_UNPACK_ALIGNMENT, 4);
+    /**
+     * @return true if getData() is in the BlockCompression format instead of RGBA bytes
+     */
+    protected boolean isBlockCompressed() {
+        return false;
+    }
+
+    /**
+     * Level 0 followed by the mipmap chain (if enabled), each half the size of the previous one
+     */
+    private List<ByteBuffer> getLevels() {
+        ByteBuffer data = getData();
+        if (!Config.TextureMipmaps || isBlockCompressed() || (width == 1 && height == 1)) {
+            return Collections.singletonList(data);
+        }
+
+        long start = System.currentTimeMillis();
+        List<ByteBuffer> levels = new ArrayList<>();
+        levels.add(data);
+
+        // Pixels are packed as r, g, b, a bytes, same as ImageUtils.toRGBA
+        int[] pixels = new int[width * height];
+        data.duplicate().order(ByteOrder.BIG_ENDIAN).asIntBuffer().get(pixels);
+        int levelWidth = width;
+        int levelHeight = height;
+        while (levelWidth > 1 || levelHeight > 1) {
+            int nextWidth = Math.max(1, levelWidth / 2);
+            int nextHeight = Math.max(1, levelHeight / 2);
+            pixels = ImageUtils.downsample(pixels, levelWidth, levelHeight, nextWidth, nextHeight);
+            levelWidth = nextWidth;
+            levelHeight = nextHeight;
+
+            ByteBuffer level = ByteBuffer.allocateDirect(pixels.length * Integer.BYTES).order(ByteOrder.BIG_ENDIAN);
+            level.asIntBuffer().put(pixels);
+            levels.add(level);
+        }
+        ModCore.debug("Mipmaps for %sx%s took %sms", width, height, System.currentTimeMillis() - start);
+        return levels;
+    }
+
+    private static void unpackDefaults() {
+        GL32.glPixelStorei(GL32.GL_UNPACK_SWAP_BYTES, GL32.GL_FALSE);
+        GL32.glPixelStorei(GL32.GL_UNPACK_LSB_FIRST, GL32.GL_FALSE);
+        GL32.glPixelStorei(GL32.GL_UNPACK_ROW_LENGTH, 0);
+        GL32.glPixelStorei(GL32.GL_UNPACK_SKIP_ROWS, 0);
+        GL32.glPixelStorei(GL32.GL_UNPACK_SKIP_PIXELS, 0);
+        GL32.glPixelStorei(GL32.GL_UNPACK_ALIGNMENT, 4);
+    }
 
-            GL32.glTexParameteri(GL32.GL_TEXTURE_2D, GL32.GL_TEXTURE_MIN_FILTER, GL32.GL_NEAREST);
+    /**
+     * @param stream upload over multiple frames if larger than Config.TextureUploadBudget
+     */
+    private void createTexture(List<ByteBuffer> levels, boolean stream) {
+        long start = System.nanoTime();
+        int compressedFormat = 0;
+        if (isBlockCompressed()) {
+            ByteBuffer data = levels.get(0);
+            if (GL.getCapabilities().GL_EXT_texture_compression_s3tc) {
+                compressedFormat = BlockCompression.format(data);
+                levels = Collections.singletonList(BlockCompression.blocks(data));
+            } else {
+                if (!warnedS3TC) {
+                    warnedS3TC = true;
+                    ModCore.warn("S3TC texture compression is not supported by this driver, decompressing textures on the CPU");
+                }
+                int[] pixels = BlockCompression.decode(data, width, height);
+                data = ByteBuffer.allocateDirect(pixels.length * Integer.BYTES).order(ByteOrder.BIG_ENDIAN);
+                data.asIntBuffer().put(pixels);
+                levels = Collections.singletonList(data);
+            }
+        }
+
+        long bytes = levels.stream().mapToLong(ByteBuffer::remaining).sum();
+        stream = stream && bytes > Config.TextureUploadBudget * 1024L;
+
+        int id = GL32.glGenTextures();
+        try (With ctx = RenderContext.apply(new RenderState().texture(Texture.wrap(id)))) {
+            unpackDefaults();
+
+            GL32.glTexParameteri(GL32.GL_TEXTURE_2D, GL32.GL_TEXTURE_MIN_FILTER, levels.size() > 1 ? GL32.GL_NEAREST_MIPMAP_LINEAR : GL32.GL_NEAREST);
             GL32.glTexParameteri(GL32.GL_TEXTURE_2D, GL32.GL_TEXTURE_MAG_FILTER, GL32.GL_NEAREST);
             GL32.glTexParameteri(GL32.GL_TEXTURE_2D, GL32.GL_TEXTURE_WRAP_S, GL32.GL_CLAMP_TO_EDGE);
             GL32.glTexParameteri(GL32.GL_TEXTURE_2D, GL32.GL_TEXTURE_WRAP_T, GL32.GL_CLAMP_TO_EDGE);
+            GL32.glTexParameteri(GL32.GL_TEXTURE_2D, GL32.GL_TEXTURE_MAX_LEVEL, levels.size() - 1);
+
+            for (int level = 0; level < levels.size(); level++) {
+                int levelWidth = Math.max(1, width >> level);
+                int levelHeight = Math.max(1, height >> level);
+                // Streamed textures only allocate storage here, the contents follow in Upload.step
+                if (compressedFormat != 0) {
+                    if (stream) {
+                        GL32.glCompressedTexImage2D(GL32.GL_TEXTURE_2D, level, compressedFormat, levelWidth, levelHeight, 0, levels.get(level).remaining(), 0L);
+                    } else {
+                        GL32.glCompressedTexImage2D(GL32.GL_TEXTURE_2D, level, compressedFormat, levelWidth, levelHeight, 0, levels.get(level));
+                    }
+                } else {
+                    GL32.glTexImage2D(GL32.GL_TEXTURE_2D, level, internalGLFormat(), levelWidth, levelHeight, 0, GL32.GL_RGBA, GL32.GL_UNSIGNED_BYTE, stream ? null : levels.get(level));
+                }
+            }
+        }
+
+        VRAMBudget.loaded(resident, bytes);
+        if (stream) {
+            upload = new Upload(id, levels, compressedFormat);
+            streaming.add(this);
+        } else {
+            textureID = id;
+            frameUploadBytes += bytes;
+        }
+        frameUploadNanos += System.nanoTime() - start;
+    }
+
+    /**
+     * Texture contents copied through a pixel buffer object in bands of rows, a few per frame
+     */
+    private class Upload {
+        private final int id;
+        private final List<ByteBuffer> levels;
+        private final int compressedFormat;
+        private final int pbo;
+        private int level = 0;
+        // Pixel row within the level
+        private int row = 0;
+
+        private Upload(int id, List<ByteBuffer> levels, int compressedFormat) {
+            this.id = id;
+            this.levels = levels;
+            this.compressedFormat = compressedFormat;
+            this.pbo = GL32.glGenBuffers();
+        }
+
+        /**
+         * Upload at least one band, then continue while within the budget
+         *
+         * @return bytes uploaded
+         */
+        private long step(long budget) {
+            long uploaded = 0;
+            int prevPBO = GL32.glGetInteger(GL32.GL_PIXEL_UNPACK_BUFFER_BINDING);
+            try (With ctx = RenderContext.apply(new RenderState().texture(Texture.wrap(id)))) {
+                unpackDefaults();
+                GL32.glBindBuffer(GL32.GL_PIXEL_UNPACK_BUFFER, pbo);
+                while (!isDone() && (uploaded == 0 || uploaded < budget)) {
+                    int levelWidth = Math.max(1, width >> level);
+                    int levelHeight = Math.max(1, height >> level);
+                    // Block compressed rows come in groups of 4
+                    int rowHeight = compressedFormat != 0 ? 4 : 1;
+                    int rowBytes = compressedFormat != 0 ? levels.get(level).remaining() / ((levelHeight + 3) / 4) : levelWidth * 4;
+
+                    int rows = (int) Math.max(1, Math.min((budget - uploaded) / rowBytes, (levelHeight - row + rowHeight - 1) / rowHeight));
+                    int bandHeight = Math.min(rows * rowHeight, levelHeight - row);
+                    int bandBytes = rows * rowBytes;
+
+                    ByteBuffer band = levels.get(level).duplicate();
+                    band.position(row / rowHeight * rowBytes);
+                    band.limit(band.position() + bandBytes);
+
+                    // Orphan the previous band (the GPU may still be reading it) and fill a fresh one
+                    GL32.glBufferData(GL32.GL_PIXEL_UNPACK_BUFFER, bandBytes, GL32.GL_STREAM_DRAW);
+                    ByteBuffer mapped = GL32.glMapBufferRange(GL32.GL_PIXEL_UNPACK_BUFFER, 0, bandBytes, GL32.GL_MAP_WRITE_BIT | GL32.GL_MAP_INVALIDATE_BUFFER_BIT);
+                    if (mapped == null) {
+                        throw new IllegalStateException("Unable to map texture upload buffer");
+                    }
+                    mapped.put(band);
+                    GL32.glUnmapBuffer(GL32.GL_PIXEL_UNPACK_BUFFER);
+
+                    if (compressedFormat != 0) {
+                        GL32.glCompressedTexSubImage2D(GL32.GL_TEXTURE_2D, level, 0, row, levelWidth, bandHeight, compressedFormat, bandBytes, 0L);
+                    } else {
+                        GL32.glTexSubImage2D(GL32.GL_TEXTURE_2D, level, 0, row, levelWidth, bandHeight, GL32.GL_RGBA, GL32.GL_UNSIGNED_BYTE, 0L);
+                    }
+
+                    uploaded += bandBytes;
+                    row += bandHeight;
+                    if (row >= levelHeight) {
+                        level++;
+                        row = 0;
+                    }
+                }
+            } finally {
+                GL32.glBindBuffer(GL32.GL_PIXEL_UNPACK_BUFFER, prevPBO);
+            }
+            return uploaded;
+        }
+
+        private boolean isDone() {
+            return level >= levels.size();
+        }
+
+        private void free() {
+            GL32.glDeleteBuffers(pbo);
+        }
+    }
 
-            GL32.glTexImage2D(GL32.GL_TEXTURE_2D, 0, internalGLFormat(), width, height, 0, GL32.GL_RGBA, GL32.GL_UNSIGNED_BYTE, buffer);
+    /**
+     * Called at the start of each frame, streams pending uploads within Config.TextureUploadBudget
+     */
+    private static void uploadFrame() {
+        lastFrameUploadBytes = frameUploadBytes;
+        lastFrameUploadMillis = frameUploadNanos / 1000000.0;
+        maxFrameUploadMillis = Math.max(maxFrameUploadMillis, lastFrameUploadMillis);
+        frameUploadBytes = 0;
+        frameUploadNanos = 0;
+
+        long start = System.nanoTime();
+        long budget = Config.TextureUploadBudget > 0 ? Config.TextureUploadBudget * 1024L : Long.MAX_VALUE;
+        for (int i = 0; i < streaming.size() && frameUploadBytes < budget; i++) {
+            CustomTexture texture = streaming.get(i);
+            Upload upload = texture.upload;
+            try {
+                frameUploadBytes += upload.step(budget - frameUploadBytes);
+            } catch (Exception ex) {
+                ModCore.catching(ex);
+                // Removes it from streaming
+                texture.dealloc();
+                i--;
+                continue;
+            }
+            if (upload.isDone()) {
+                texture.finishUpload();
+                i--;
+            }
         }
+        pendingUploads = streaming.size();
+        frameUploadNanos += System.nanoTime() - start;
+    }
+
+    /**
+     * Texture upload cost of the last frame, for the F3 screen
+     */
+    public static String debug() {
+        return String.format("UMC Textures: %.1fms %dKB last frame, %.1fms max, %d pending",
+                lastFrameUploadMillis, lastFrameUploadBytes / 1024, maxFrameUploadMillis, pendingUploads);
     }
 
     private void threadedLoader() {
-        synchronized (textures) {
+        synchronized (this) {
+            if (upload != null) {
+                // Streaming in, see uploadFrame
+                return;
+            }
+            if (loader != null && loader.isCancelled()) {
+                // Dropped from the queue while out of view
+                loader = null;
+            }
             if (loader != null) {
                 if (loader.isDone()) {
                     try {
-                        createTexture(loader.get());
+                        createTexture(loader.get(), Config.TextureUploadBudget > 0);
                     } catch (InterruptedException | ExecutionException e) {
                         e.printStackTrace();
                     }
                     loader = null;
+                } else {
+                    loader.request(loadPriority);
                 }
             } else {
                 // Start thread
-                loader = pool.submit(this::getData);
+                long bytes = width * (long) height * 4;
+                loader = AssetLoader.submit(this::getLevels, Config.TextureMipmaps ? bytes * 4 / 3 : bytes, loadPriority);
             }
         }
     }
 
     private void directLoader() {
-        createTexture(getData());
+        synchronized (this) {
+            if (upload != null) {
+                // Already streaming, finish it now instead of creating a second texture that the stream would replace
+                try {
+                    frameUploadBytes += upload.step(Long.MAX_VALUE);
+                    finishUpload();
+                    return;
+                } catch (Exception ex) {
+                    ModCore.catching(ex);
+                    dealloc();
+                }
+            }
+            createTexture(getLevels(), false);
+        }
+    }
+
+    /**
+     * Hand the completed upload's texture over and stop streaming it
+     */
+    private void finishUpload() {
+        upload.free();
+        textureID = upload.id;
+        upload = null;
+        streaming.remove(this);
+    }
+
+    /**
+     * Loading order for threaded loading, lower first (usually the distance to the camera)
+     */
+    public void setLoadPriority(double priority) {
+        this.loadPriority = priority;
     }
 
     public Texture synchronous(boolean sync) {
-        lastUsed = System.currentTimeMillis();
+        VRAMBudget.touch(resident);
 
         if (textureID == null) {
             if (sync) {
@@ -121,7 +379,7 @@ public abstract class CustomTexture implements Texture {
 
     @Override
     public int getId() {
-        lastUsed = System.currentTimeMillis();
+        VRAMBudget.touch(resident);
 
         if (textureID == null) {
             if (Config.ThreadedTextureLoading) {
@@ -134,7 +392,14 @@ public abstract class CustomTexture implements Texture {
     }
 
     public void dealloc() {
-        synchronized (textures) {
+        synchronized (this) {
+            VRAMBudget.freed(resident);
+            if (this.upload != null) {
+                streaming.remove(this);
+                this.upload.free();
+                GL32.glDeleteTextures(this.upload.id);
+                this.upload = null;
+            }
             if (this.textureID != null) {
                 GL32.glDeleteTextures(this.textureID);
                 this.textureID = null;
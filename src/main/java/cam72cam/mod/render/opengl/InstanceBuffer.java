@@ -0,0 +1,78 @@
+package cam72cam.mod.render.opengl;
+
+import util.Matrix4;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Per-instance attributes for instanced drawing, 72 bytes per instance
+ *
+ * (m00, m10, m20, m30, ..., m03, m13, m23, m33) model view as floats, one column per vec4 attribute
+ * (r, g, b, a) color tint as unsigned normalized bytes
+ * (block, sky) lightmap as shorts, 0-255 like the UV2 value VBO uses
+ *
+ * The backing buffer is reused across frames and only grows.
+ */
+public class InstanceBuffer {
+    public static final int STRIDE = 72;
+    public static final int MODEL_VIEW_OFFSET = 0;
+    public static final int COLOR_OFFSET = 64;
+    public static final int LIGHT_OFFSET = 68;
+
+    private ByteBuffer data = ByteBuffer.allocateDirect(16 * STRIDE).order(ByteOrder.nativeOrder());
+    private int count = 0;
+
+    /**
+     * @param color tint, null for white
+     * @param lightmap (block, sky) in [0, 1], null for full bright
+     */
+    public void add(Matrix4 modelView, float[] color, float[] lightmap) {
+        if ((count + 1) * STRIDE > data.capacity()) {
+            ByteBuffer grown = ByteBuffer.allocateDirect(data.capacity() * 2).order(ByteOrder.nativeOrder());
+            grown.put(data());
+            data = grown;
+        }
+
+        int i = count * STRIDE + MODEL_VIEW_OFFSET;
+        putColumn(i, modelView.m00, modelView.m10, modelView.m20, modelView.m30);
+        putColumn(i + 16, modelView.m01, modelView.m11, modelView.m21, modelView.m31);
+        putColumn(i + 32, modelView.m02, modelView.m12, modelView.m22, modelView.m32);
+        putColumn(i + 48, modelView.m03, modelView.m13, modelView.m23, modelView.m33);
+
+        i = count * STRIDE + COLOR_OFFSET;
+        for (int c = 0; c < 4; c++) {
+            data.put(i + c, color == null ? (byte) 255 : (byte) Math.round(Math.max(0, Math.min(1, color[c])) * 255));
+        }
+
+        i = count * STRIDE + LIGHT_OFFSET;
+        data.putShort(i, lightmap == null ? 255 : (short) (lightmap[0] * 255));
+        data.putShort(i + 2, lightmap == null ? 255 : (short) (lightmap[1] * 255));
+
+        count++;
+    }
+
+    private void putColumn(int i, double x, double y, double z, double w) {
+        data.putFloat(i, (float) x);
+        data.putFloat(i + 4, (float) y);
+        data.putFloat(i + 8, (float) z);
+        data.putFloat(i + 12, (float) w);
+    }
+
+    public int count() {
+        return count;
+    }
+
+    /**
+     * Packed instances, valid until the next add or clear
+     */
+    public ByteBuffer data() {
+        ByteBuffer view = data.duplicate().order(ByteOrder.nativeOrder());
+        view.clear().limit(count * STRIDE);
+        return view;
+    }
+
+    public void clear() {
+        count = 0;
+    }
+}
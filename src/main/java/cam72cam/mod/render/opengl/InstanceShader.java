@@ -0,0 +1,138 @@
+package cam72cam.mod.render.opengl;
+
+import cam72cam.mod.ModCore;
+import com.mojang.blaze3d.systems.RenderSystem;
+import org.lwjgl.opengl.GL32;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * GL program for instanced drawing, see assets/universalmodcore/shaders/instanced.vsh
+ *
+ * Attribute locations are fixed so VBO and Instances can set up the vertex arrays without looking them up.
+ */
+class InstanceShader {
+    static final int POSITION = 0;
+    static final int COLOR = 1;
+    static final int UV0 = 2;
+    static final int NORMAL = 3;
+    /** mat4, takes 4 locations */
+    static final int INSTANCE_MODEL_VIEW = 4;
+    static final int INSTANCE_COLOR = 8;
+    static final int INSTANCE_LIGHT = 9;
+
+    private static InstanceShader instance;
+    private static boolean failed = false;
+
+    private final int program;
+    private final int projMat;
+    private final int meshOffset;
+    private final int meshScale;
+    private final int fogStart;
+    private final int fogEnd;
+    private final int fogColor;
+    private final int fogShape;
+    private final float[] matrix = new float[16];
+
+    private InstanceShader(int program) {
+        this.program = program;
+        this.projMat = GL32.glGetUniformLocation(program, "ProjMat");
+        this.meshOffset = GL32.glGetUniformLocation(program, "MeshOffset");
+        this.meshScale = GL32.glGetUniformLocation(program, "MeshScale");
+        this.fogStart = GL32.glGetUniformLocation(program, "FogStart");
+        this.fogEnd = GL32.glGetUniformLocation(program, "FogEnd");
+        this.fogColor = GL32.glGetUniformLocation(program, "FogColor");
+        this.fogShape = GL32.glGetUniformLocation(program, "FogShape");
+        GL32.glUseProgram(program);
+        GL32.glUniform1i(GL32.glGetUniformLocation(program, "Sampler0"), 0);
+        GL32.glUniform1i(GL32.glGetUniformLocation(program, "Sampler2"), 2);
+    }
+
+    /**
+     * Compiled program, null if it failed to build (logged once)
+     */
+    static InstanceShader get() {
+        if (instance == null && !failed) {
+            int oldProgram = GL32.glGetInteger(GL32.GL_CURRENT_PROGRAM);
+            try {
+                instance = new InstanceShader(link(
+                        compile(GL32.GL_VERTEX_SHADER, "instanced.vsh"),
+                        compile(GL32.GL_FRAGMENT_SHADER, "instanced.fsh")
+                ));
+            } catch (IOException | RuntimeException e) {
+                ModCore.error("Unable to build the instancing shader, drawing instances one at a time: %s", e.getMessage());
+                failed = true;
+            }
+            GL32.glUseProgram(oldProgram);
+        }
+        return instance;
+    }
+
+    private static int compile(int type, String name) throws IOException {
+        String source;
+        try (InputStream input = InstanceShader.class.getResourceAsStream("/assets/universalmodcore/shaders/" + name)) {
+            if (input == null) {
+                throw new IOException("Missing " + name);
+            }
+            source = new String(input.readAllBytes(), StandardCharsets.UTF_8);
+        }
+        int shader = GL32.glCreateShader(type);
+        GL32.glShaderSource(shader, source);
+        GL32.glCompileShader(shader);
+        if (GL32.glGetShaderi(shader, GL32.GL_COMPILE_STATUS) == GL32.GL_FALSE) {
+            String log = GL32.glGetShaderInfoLog(shader);
+            GL32.glDeleteShader(shader);
+            throw new RuntimeException(name + ": " + log);
+        }
+        return shader;
+    }
+
+    private static int link(int vertex, int fragment) {
+        int program = GL32.glCreateProgram();
+        GL32.glAttachShader(program, vertex);
+        GL32.glAttachShader(program, fragment);
+        GL32.glBindAttribLocation(program, POSITION, "Position");
+        GL32.glBindAttribLocation(program, COLOR, "Color");
+        GL32.glBindAttribLocation(program, UV0, "UV0");
+        GL32.glBindAttribLocation(program, NORMAL, "Normal");
+        GL32.glBindAttribLocation(program, INSTANCE_MODEL_VIEW, "InstanceModelView");
+        GL32.glBindAttribLocation(program, INSTANCE_COLOR, "InstanceColor");
+        GL32.glBindAttribLocation(program, INSTANCE_LIGHT, "InstanceLight");
+        GL32.glLinkProgram(program);
+        GL32.glDeleteShader(vertex);
+        GL32.glDeleteShader(fragment);
+        if (GL32.glGetProgrami(program, GL32.GL_LINK_STATUS) == GL32.GL_FALSE) {
+            String log = GL32.glGetProgramInfoLog(program);
+            GL32.glDeleteProgram(program);
+            throw new RuntimeException(log);
+        }
+        return program;
+    }
+
+    /**
+     * Use the program with the current projection, fog and lightmap
+     */
+    void bind() {
+        GL32.glUseProgram(program);
+        RenderSystem.getProjectionMatrix().get(matrix);
+        GL32.glUniformMatrix4fv(projMat, false, matrix);
+        GL32.glUniform1f(fogStart, RenderSystem.getShaderFogStart());
+        GL32.glUniform1f(fogEnd, RenderSystem.getShaderFogEnd());
+        GL32.glUniform4fv(fogColor, RenderSystem.getShaderFogColor());
+        GL32.glUniform1i(fogShape, RenderSystem.getShaderFogShape().getIndex());
+
+        RenderSystem.activeTexture(GL32.GL_TEXTURE2);
+        RenderSystem.bindTexture(RenderSystem.getShaderTexture(2));
+        RenderSystem.activeTexture(GL32.GL_TEXTURE0);
+    }
+
+    /**
+     * Expansion of compact vertex positions, see PackedVertexBuffer
+     */
+    void mesh(float offsetX, float offsetY, float offsetZ, float scaleX, float scaleY, float scaleZ) {
+        GL32.glUniform3f(meshOffset, offsetX, offsetY, offsetZ);
+        GL32.glUniform3f(meshScale, scaleX, scaleY, scaleZ);
+    }
+}
@@ -0,0 +1,259 @@
+package cam72cam.mod.render.opengl;
+
+import cam72cam.mod.Config;
+import com.mojang.blaze3d.systems.RenderSystem;
+import com.mojang.blaze3d.vertex.BufferUploader;
+import org.lwjgl.opengl.ARBInstancedArrays;
+import org.lwjgl.opengl.GL;
+import org.lwjgl.opengl.GL32;
+import org.lwjgl.opengl.GL33;
+import util.Matrix4;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import static cam72cam.mod.render.opengl.Texture.NO_TEXTURE;
+
+/**
+ * Collects copies of models for instanced drawing
+ *
+ * Models are queued with VBO.instance / OBJRender.instance during a render pass, then draw() issues one instanced draw
+ * per (model, group set, texture) with every instance's model view, color and lightmap read from a shared per-frame
+ * buffer.  Call draw() before the projection changes, it uses the projection, fog and lightmap current at that time.
+ *
+ * Batches are kept between frames so a steady scene does not allocate.  Render thread only.
+ */
+public class Instances {
+    private static Boolean supported = null;
+    // One streaming buffer shared by every Instances, orphaned on each draw
+    private static int instanceVbo = -1;
+
+    private final Map<Key, Batch> batches = new LinkedHashMap<>();
+    // Lookup key reused for every add
+    private final Key probe = new Key();
+    // Copy of the state being added, for applying VB settings without cloning
+    private RenderState scratch;
+    private ByteBuffer packed = ByteBuffer.allocateDirect(64 * InstanceBuffer.STRIDE).order(ByteOrder.nativeOrder());
+    private int count = 0;
+
+    private static class Key {
+        private VBO vbo;
+        private int[] ranges;
+        private int texture;
+
+        private Key set(VBO vbo, int[] ranges, int texture) {
+            this.vbo = vbo;
+            this.ranges = ranges;
+            this.texture = texture;
+            return this;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return vbo == other.vbo && texture == other.texture && Arrays.equals(ranges, other.ranges);
+        }
+
+        @Override
+        public int hashCode() {
+            return (System.identityHashCode(vbo) * 31 + Arrays.hashCode(ranges)) * 31 + texture;
+        }
+    }
+
+    static class Batch {
+        final VBO vbo;
+        /** (first vertex, vertex count) pairs */
+        final int[] ranges;
+        /** Texture id, NO_TEXTURE's for untextured states */
+        final int texture;
+        final InstanceBuffer instances = new InstanceBuffer();
+        /** Byte offset into the packed buffer, set by pack() */
+        int offset;
+
+        private Batch(VBO vbo, int[] ranges, int texture) {
+            this.vbo = vbo;
+            this.ranges = ranges;
+            this.texture = texture;
+        }
+
+        /**
+         * Texture to bind while drawing, untextured batches keep the one bound before the draw (like RenderQueue)
+         */
+        int bindTexture(int oldTexture) {
+            return texture != NO_TEXTURE.getId() ? texture : oldTexture;
+        }
+    }
+
+    /**
+     * Instancing is enabled and the GL has per-instance attributes (3.3 or ARB_instanced_arrays)
+     */
+    public static boolean isSupported() {
+        if (!Config.InstancedRendering) {
+            return false;
+        }
+        if (supported == null) {
+            supported = GL.getCapabilities().OpenGL33 || GL.getCapabilities().GL_ARB_instanced_arrays;
+        }
+        return supported && InstanceShader.get() != null;
+    }
+
+    /**
+     * glVertexAttribDivisor is only core from 3.3, older drivers expose it through ARB_instanced_arrays
+     */
+    private static void divisor(int location, int divisor) {
+        if (GL.getCapabilities().OpenGL33) {
+            GL33.glVertexAttribDivisor(location, divisor);
+        } else {
+            ARBInstancedArrays.glVertexAttribDivisorARB(location, divisor);
+        }
+    }
+
+    /**
+     * Queue one copy of these vertex ranges of the VB with the model view, color, lightmap and texture of state
+     */
+    void add(VBO vbo, int[] ranges, RenderState state) {
+        int texture = state.texture != null ? state.texture.getId() : NO_TEXTURE.getId();
+        add(vbo, ranges, texture, state.model_view(), state.color, state.lightmap);
+    }
+
+    /**
+     * Queue one copy with the values of state after settings have been applied to it, state is left unchanged
+     */
+    void add(VBO vbo, int[] ranges, RenderState state, Consumer<RenderState> settings) {
+        scratch = scratch == null ? state.clone() : scratch.set(state);
+        settings.accept(scratch);
+        add(vbo, ranges, scratch);
+    }
+
+    void add(VBO vbo, int[] ranges, int texture, Matrix4 modelView, float[] color, float[] lightmap) {
+        Batch batch = batches.get(probe.set(vbo, ranges, texture));
+        if (batch == null) {
+            batch = new Batch(vbo, ranges, texture);
+            batches.put(new Key().set(vbo, ranges, texture), batch);
+        }
+        batch.instances.add(modelView, color, lightmap);
+        count++;
+    }
+
+    /** Instances queued since the last draw */
+    public int count() {
+        return count;
+    }
+
+    /**
+     * Batches in the order they were first queued, including ones left empty since the last draw
+     */
+    Iterable<Batch> batches() {
+        return batches.values();
+    }
+
+    /**
+     * Concatenate every batch's instances, setting each batch's offset
+     */
+    ByteBuffer pack() {
+        if (count * InstanceBuffer.STRIDE > packed.capacity()) {
+            packed = ByteBuffer.allocateDirect(Integer.highestOneBit(count * InstanceBuffer.STRIDE) * 2).order(ByteOrder.nativeOrder());
+        }
+        packed.clear();
+        for (Batch batch : batches.values()) {
+            batch.offset = packed.position();
+            packed.put(batch.instances.data());
+        }
+        packed.flip();
+        return packed;
+    }
+
+    /**
+     * Draw and clear everything queued
+     */
+    public void draw() {
+        if (count == 0) {
+            clear();
+            return;
+        }
+        InstanceShader shader = InstanceShader.get();
+        if (shader == null) {
+            clear();
+            return;
+        }
+        RenderContext.checkError();
+
+        ByteBuffer data = pack();
+        int oldProgram = GL32.glGetInteger(GL32.GL_CURRENT_PROGRAM);
+        int oldTexture = RenderSystem.getShaderTexture(0);
+        shader.bind();
+
+        if (instanceVbo == -1) {
+            instanceVbo = GL32.glGenBuffers();
+        }
+        GL32.glBindBuffer(GL32.GL_ARRAY_BUFFER, instanceVbo);
+        GL32.glBufferData(GL32.GL_ARRAY_BUFFER, data.remaining(), GL32.GL_STREAM_DRAW);
+        GL32.glBufferSubData(GL32.GL_ARRAY_BUFFER, 0, data);
+
+        for (Batch batch : batches.values()) {
+            int instances = batch.instances.count();
+            if (instances == 0 || !batch.vbo.bindInstanced(shader)) {
+                // Evicted since it was queued
+                continue;
+            }
+
+            GL32.glBindBuffer(GL32.GL_ARRAY_BUFFER, instanceVbo);
+            for (int column = 0; column < 4; column++) {
+                int location = InstanceShader.INSTANCE_MODEL_VIEW + column;
+                GL32.glEnableVertexAttribArray(location);
+                GL32.glVertexAttribPointer(location, 4, GL32.GL_FLOAT, false, InstanceBuffer.STRIDE,
+                        batch.offset + InstanceBuffer.MODEL_VIEW_OFFSET + column * 4L * Float.BYTES);
+                divisor(location, 1);
+            }
+            GL32.glEnableVertexAttribArray(InstanceShader.INSTANCE_COLOR);
+            GL32.glVertexAttribPointer(InstanceShader.INSTANCE_COLOR, 4, GL32.GL_UNSIGNED_BYTE, true, InstanceBuffer.STRIDE,
+                    batch.offset + InstanceBuffer.COLOR_OFFSET);
+            divisor(InstanceShader.INSTANCE_COLOR, 1);
+            GL32.glEnableVertexAttribArray(InstanceShader.INSTANCE_LIGHT);
+            GL32.glVertexAttribIPointer(InstanceShader.INSTANCE_LIGHT, 2, GL32.GL_SHORT, InstanceBuffer.STRIDE,
+                    batch.offset + InstanceBuffer.LIGHT_OFFSET);
+            divisor(InstanceShader.INSTANCE_LIGHT, 1);
+
+            RenderSystem.bindTexture(batch.bindTexture(oldTexture));
+            for (int i = 0; i < batch.ranges.length; i += 2) {
+                batch.vbo.drawRangeInstanced(batch.ranges[i], batch.ranges[i + 1], instances);
+            }
+
+            // The VAO belongs to the VB, leave it as the standard shaders expect
+            for (int location = InstanceShader.INSTANCE_MODEL_VIEW; location <= InstanceShader.INSTANCE_LIGHT; location++) {
+                divisor(location, 0);
+                GL32.glDisableVertexAttribArray(location);
+            }
+        }
+
+        GL32.glUseProgram(oldProgram);
+        RenderSystem.bindTexture(oldTexture);
+        BufferUploader.reset();
+        RenderContext.checkError();
+        clear();
+    }
+
+    /**
+     * Drop everything queued, and the batches which were not used since the last clear
+     */
+    public void clear() {
+        Iterator<Batch> it = batches.values().iterator();
+        while (it.hasNext()) {
+            Batch batch = it.next();
+            if (batch.instances.count() == 0) {
+                it.remove();
+            } else {
+                batch.instances.clear();
+            }
+        }
+        count = 0;
+    }
+}
@@ -9,96 +9,116 @@ import org.lwjgl.opengl.GL11;
 import org.lwjgl.opengl.GL32;
 import util.Matrix4;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
 
 import static cam72cam.mod.render.opengl.Texture.NO_TEXTURE;
 
 public class RenderContext {
+    // GL state saved by each nested apply, reused so applying a state does not allocate
+    private static Applied[] applied = new Applied[8];
+    private static int depth = 0;
+    private static final Matrix4f target = new Matrix4f();
+    // ShaderInstance.setSampler takes an Object, boxed texture ids by id so binding a texture again does not allocate
+    private static Integer[] samplerIds = new Integer[256];
+
     private RenderContext() {
     }
 
+    private static class Applied implements With {
+        private final int level;
+        private final Matrix4f oldModelView = new Matrix4f();
+        private final Matrix4f oldProjection = new Matrix4f();
+        private final float[] oldColor = new float[4];
+        private boolean modelView;
+        private boolean projection;
+        private boolean texture;
+        private boolean color;
+        private int oldTexture;
+        private BlendMode blend;
+
+        private Applied(int level) {
+            this.level = level;
+        }
+
+        @Override
+        public void restore() {
+            if (modelView) {
+                RenderSystem.getModelViewMatrix().set(oldModelView);
+            }
+            if (projection) {
+                RenderSystem.getProjectionMatrix().set(oldProjection);
+            }
+            if (texture) {
+                RenderSystem.setShaderTexture(0, oldTexture);
+            }
+            if (color) {
+                RenderSystem.setShaderColor(oldColor[0], oldColor[1], oldColor[2], oldColor[3]);
+            }
+            if (blend != null) {
+                blend.apply().run();
+                blend = null;
+            }
+            // Also drops anything applied after this and not restored
+            depth = level;
+        }
+    }
+
     public static With apply(RenderState state) {
         RenderContext.checkError();
-        List<Runnable> restore = new ArrayList<>();
+        if (depth == applied.length) {
+            applied = Arrays.copyOf(applied, depth * 2);
+        }
+        Applied restore = applied[depth];
+        if (restore == null) {
+            restore = applied[depth] = new Applied(depth);
+        }
+        depth++;
 
         ShaderInstance shader = RenderSystem.getShader();
-        if (state.model_view != null) {
-            Matrix4f oldModelView = new Matrix4f(RenderSystem.getModelViewMatrix());
-            restore.add(() -> RenderSystem.getModelViewMatrix().set(oldModelView));
-            Matrix4 model_view = state.model_view.copy().transpose();
-            Matrix4f target = new Matrix4f(
-                    (float) model_view.m00,
-                    (float) model_view.m01,
-                    (float) model_view.m02,
-                    (float) model_view.m03,
-                    (float) model_view.m10,
-                    (float) model_view.m11,
-                    (float) model_view.m12,
-                    (float) model_view.m13,
-                    (float) model_view.m20,
-                    (float) model_view.m21,
-                    (float) model_view.m22,
-                    (float) model_view.m23,
-                    (float) model_view.m30,
-                    (float) model_view.m31,
-                    (float) model_view.m32,
-                    (float) model_view.m33
-            );
+        restore.modelView = state.model_view != null;
+        if (restore.modelView) {
+            restore.oldModelView.set(RenderSystem.getModelViewMatrix());
+            store(state.model_view, target);
 
             shader.MODEL_VIEW_MATRIX.set(target);
 
             RenderSystem.getModelViewMatrix().set(target);
 
         }
-        if (state.projection != null) {
-            Matrix4f oldProjection = new Matrix4f(RenderSystem.getProjectionMatrix());
-            restore.add(() -> RenderSystem.getProjectionMatrix().set(oldProjection));
-            Matrix4 projection = state.projection.copy().transpose();
-            Matrix4f target = new Matrix4f(
-                    (float) projection.m00,
-                    (float) projection.m01,
-                    (float) projection.m02,
-                    (float) projection.m03,
-                    (float) projection.m10,
-                    (float) projection.m11,
-                    (float) projection.m12,
-                    (float) projection.m13,
-                    (float) projection.m20,
-                    (float) projection.m21,
-                    (float) projection.m22,
-                    (float) projection.m23,
-                    (float) projection.m30,
-                    (float) projection.m31,
-                    (float) projection.m32,
-                    (float) projection.m33
-            );
+        restore.projection = state.projection != null;
+        if (restore.projection) {
+            restore.oldProjection.set(RenderSystem.getProjectionMatrix());
+            store(state.projection, target);
             shader.PROJECTION_MATRIX.set(target);
             RenderSystem.getProjectionMatrix().set(target);
         }
 
-        if (state.texture != NO_TEXTURE && state.texture != null) {
+        restore.texture = state.texture != NO_TEXTURE && state.texture != null;
+        if (restore.texture) {
             GL11.glBindTexture(GL11.GL_TEXTURE_2D, state.texture.getId());
-            shader.setSampler("Sampler0", state.texture.getId());
+            sampler(shader, state.texture.getId());
             // TODO normal and spec
-            int oldTexture = RenderSystem.getShaderTexture(0);
-            restore.add(() -> RenderSystem.setShaderTexture(0, oldTexture));
+            restore.oldTexture = RenderSystem.getShaderTexture(0);
             RenderSystem.setShaderTexture(0, state.texture.getId());
         }
 
-        if (state.color != null && shader.COLOR_MODULATOR != null) {
+        restore.color = state.color != null && shader.COLOR_MODULATOR != null;
+        if (restore.color) {
             shader.COLOR_MODULATOR.set(state.color);
-            float[] oldColor = RenderSystem.getShaderColor();
+            // The returned array is the live shader color
+            System.arraycopy(RenderSystem.getShaderColor(), 0, restore.oldColor, 0, 4);
 
             RenderSystem.setShaderColor(state.color[0], state.color[1], state.color[2], state.color[3]);
-            restore.add(() -> RenderSystem.setShaderColor(oldColor[0], oldColor[1], oldColor[2], oldColor[3]));
         }
         /* TODO 1.17.1
-        state.bools.forEach((glId, value) -> {
-            boolean oldValue = GL11.glGetBoolean(glId);
-            applyBool(glId, value);
-            restore.add(() -> applyBool(glId, oldValue));
-        });
+        for (int glId : RenderState.CAPS) {
+            Boolean value = state.bool(glId);
+            if (value != null) {
+                boolean oldValue = GL11.glGetBoolean(glId);
+                applyBool(glId, value);
+                restore.add(() -> applyBool(glId, oldValue));
+            }
+        }
         if (state.depth_mask != null) {
             boolean oldDepthMask = GL11.glGetBoolean(GL11.GL_DEPTH_WRITEMASK);
             GL11.glDepthMask(state.depth_mask);
@@ -115,10 +135,45 @@ public class RenderContext {
         checkError();
 
 
-        if (state.blend != null) {
-            restore.add(() -> state.blend.apply().run());
+        restore.blend = state.blend;
+        return restore;
+    }
+
+    /**
+     * Point the shader's Sampler0 at a texture, without boxing the id each time
+     */
+    static void sampler(ShaderInstance shader, int id) {
+        shader.setSampler("Sampler0", samplerId(id));
+    }
+
+    /**
+     * The same Integer for every call with this id
+     */
+    static Integer samplerId(int id) {
+        if (id < 0) {
+            // Not a texture name, only NO_TEXTURE style placeholders
+            return id;
         }
-        return () -> restore.forEach(Runnable::run);
+        if (id >= samplerIds.length) {
+            samplerIds = Arrays.copyOf(samplerIds, Math.max(id + 1, samplerIds.length * 2));
+        }
+        Integer boxed = samplerIds[id];
+        if (boxed == null) {
+            boxed = samplerIds[id] = id;
+        }
+        return boxed;
+    }
+
+    /**
+     * Convert a row major Matrix4 into a (column major) Matrix4f without the intermediate transposed copy
+     */
+    static Matrix4f store(Matrix4 m, Matrix4f dest) {
+        return dest.set(
+                (float) m.m00, (float) m.m10, (float) m.m20, (float) m.m30,
+                (float) m.m01, (float) m.m11, (float) m.m21, (float) m.m31,
+                (float) m.m02, (float) m.m12, (float) m.m22, (float) m.m32,
+                (float) m.m03, (float) m.m13, (float) m.m23, (float) m.m33
+        );
     }
 
     public static void applyBool(int opt, boolean currState) {
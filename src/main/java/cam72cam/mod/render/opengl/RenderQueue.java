@@ -0,0 +1,366 @@
+package cam72cam.mod.render.opengl;
+
+import cam72cam.mod.render.OptiFine;
+import com.mojang.blaze3d.systems.RenderSystem;
+import com.mojang.blaze3d.vertex.BufferUploader;
+import net.minecraft.client.renderer.GameRenderer;
+import net.minecraft.client.renderer.ShaderInstance;
+import org.joml.Matrix4f;
+import org.lwjgl.opengl.GL32;
+import util.Matrix4;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Objects;
+import java.util.function.Consumer;
+
+import static cam72cam.mod.render.opengl.Texture.NO_TEXTURE;
+
+/**
+ * Deferred draws, executed sorted by state
+ *
+ * Models are recorded with VBO.queue / OBJRender.queue / OBJModel.Binder.queue, then flush() draws them ordered by
+ * shader, texture, blend mode and depth state (then by VB), only changing state between runs which differ.  Consecutive
+ * draws of the same VB with the same matrices, color and lightmap are merged into one.
+ *
+ * Draws with equal state keep the order they were recorded in, but translucent models which need to be drawn back to
+ * front should not share a queue with opaque ones.  Commands and their copies of the recorded state are pooled between
+ * flushes, so a steady scene records and flushes without allocating.  Render thread only.
+ */
+public class RenderQueue {
+    /**
+     * State changes and draws issued by flush(), replaced with a recording backend in tests
+     */
+    interface Backend {
+        void begin();
+
+        void shader(OptiFine.Shaders shader);
+
+        void texture(Texture texture);
+
+        void blend(BlendMode blend);
+
+        /** null leaves the value as it was before the flush */
+        void depth(Boolean test, Boolean mask);
+
+        /** ranges holds rangeCount (first vertex, vertex count) pairs */
+        void draw(VBO vbo, int[] ranges, int rangeCount, RenderState state);
+
+        void end();
+    }
+
+    private static class Command {
+        private VBO vbo;
+        private int[] ranges = new int[8];
+        private int rangeCount;
+        /** Copy of the recorded state, reused by the next command in this slot */
+        private RenderState state;
+        // Sort keys
+        private int shader;
+        private int texture;
+        /** Identity hash, only groups blend modes for sorting (it can collide, compare state.blend instead) */
+        private int blend;
+        private int depth;
+        private int vboKey;
+        private int order;
+    }
+
+    private static final Comparator<Command> ORDER = Comparator
+            .comparingInt((Command c) -> c.shader)
+            .thenComparingInt(c -> c.texture)
+            .thenComparingInt(c -> c.blend)
+            .thenComparingInt(c -> c.depth)
+            .thenComparingInt(c -> c.vboKey)
+            .thenComparingInt(c -> c.order);
+
+    private final Backend backend;
+    private Command[] commands = new Command[64];
+    // Merge sort buffer
+    private Command[] sorted = new Command[64];
+    private int count = 0;
+
+    public RenderQueue() {
+        this(new GLBackend());
+    }
+
+    RenderQueue(Backend backend) {
+        this.backend = backend;
+    }
+
+    /**
+     * Record a draw of these vertex ranges with a copy of state
+     */
+    void add(VBO vbo, int[] ranges, RenderState state) {
+        add(vbo, ranges, state, null);
+    }
+
+    /**
+     * Record a draw of these vertex ranges with a copy of state, modified by settings
+     */
+    void add(VBO vbo, int[] ranges, RenderState state, Consumer<RenderState> settings) {
+        if (count == commands.length) {
+            commands = Arrays.copyOf(commands, count * 2);
+            sorted = new Command[commands.length];
+        }
+        Command command = commands[count];
+        if (command == null) {
+            command = commands[count] = new Command();
+        }
+        command.vbo = vbo;
+        command.state = command.state == null ? state.clone() : command.state.set(state);
+        if (settings != null) {
+            settings.accept(command.state);
+        }
+        state = command.state;
+        if (command.ranges.length < ranges.length) {
+            command.ranges = new int[ranges.length];
+        }
+        System.arraycopy(ranges, 0, command.ranges, 0, ranges.length);
+        command.rangeCount = ranges.length / 2;
+
+        command.shader = state.shader != null ? state.shader.ordinal() + 1 : 0;
+        command.texture = state.texture != null ? state.texture.getId() : NO_TEXTURE.getId();
+        command.blend = state.blend != null ? System.identityHashCode(state.blend) : 0;
+        command.depth = key(state.bool(GL32.GL_DEPTH_TEST)) * 3 + key(state.depth_mask);
+        command.vboKey = System.identityHashCode(vbo);
+        command.order = count++;
+    }
+
+    private static int key(Boolean value) {
+        return value == null ? 0 : value ? 2 : 1;
+    }
+
+    /** Draws recorded since the last flush */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Execute and clear everything recorded
+     */
+    public void flush() {
+        if (count == 0) {
+            return;
+        }
+        sort();
+
+        backend.begin();
+        Command prev = null;
+        int i = 0;
+        while (i < count) {
+            Command run = commands[i];
+            if (prev == null || run.shader != prev.shader) {
+                backend.shader(run.state.shader);
+            }
+            if (prev == null || run.texture != prev.texture) {
+                backend.texture(run.state.texture);
+            }
+            if (prev == null || run.state.blend != prev.state.blend) {
+                backend.blend(run.state.blend);
+            }
+            if (prev == null || run.depth != prev.depth) {
+                backend.depth(run.state.bool(GL32.GL_DEPTH_TEST), run.state.depth_mask);
+            }
+
+            i++;
+            while (i < count && mergeable(run, commands[i])) {
+                append(run, commands[i]);
+                i++;
+            }
+            backend.draw(run.vbo, run.ranges, run.rangeCount, run.state);
+            prev = run;
+        }
+        backend.end();
+
+        for (int c = 0; c < count; c++) {
+            commands[c].vbo = null;
+        }
+        count = 0;
+    }
+
+    /**
+     * Bottom up merge sort by ORDER, unlike Arrays.sort it does not allocate a work array for larger queues
+     */
+    private void sort() {
+        Command[] from = commands;
+        Command[] into = sorted;
+        for (int width = 1; width < count; width *= 2) {
+            for (int lo = 0; lo < count; lo += width * 2) {
+                int mid = Math.min(lo + width, count);
+                int hi = Math.min(lo + width * 2, count);
+                int a = lo;
+                int b = mid;
+                for (int i = lo; i < hi; i++) {
+                    into[i] = a < mid && (b >= hi || ORDER.compare(from[a], from[b]) <= 0) ? from[a++] : from[b++];
+                }
+            }
+            Command[] swap = from;
+            from = into;
+            into = swap;
+        }
+        if (from != commands) {
+            System.arraycopy(from, 0, commands, 0, count);
+        }
+        Arrays.fill(sorted, 0, count, null);
+    }
+
+    private static boolean mergeable(Command a, Command b) {
+        return a.vbo == b.vbo &&
+                a.shader == b.shader && a.texture == b.texture && a.state.blend == b.state.blend && a.depth == b.depth &&
+                Objects.equals(a.state.model_view, b.state.model_view) &&
+                Objects.equals(a.state.projection, b.state.projection) &&
+                Arrays.equals(a.state.color, b.state.color) &&
+                Arrays.equals(a.state.lightmap, b.state.lightmap);
+    }
+
+    /**
+     * Add from's ranges to into, joining ones which continue where the previous one stopped
+     */
+    private static void append(Command into, Command from) {
+        for (int r = 0; r < from.rangeCount; r++) {
+            int first = from.ranges[r * 2];
+            int vertices = from.ranges[r * 2 + 1];
+            int last = (into.rangeCount - 1) * 2;
+            if (last >= 0 && into.ranges[last] + into.ranges[last + 1] == first) {
+                into.ranges[last + 1] += vertices;
+                continue;
+            }
+            if (into.ranges.length < (into.rangeCount + 1) * 2) {
+                into.ranges = Arrays.copyOf(into.ranges, into.ranges.length * 2);
+            }
+            into.ranges[into.rangeCount * 2] = first;
+            into.ranges[into.rangeCount * 2 + 1] = vertices;
+            into.rangeCount++;
+        }
+    }
+
+    /**
+     * Draws with the standard cutout shader like VBO.Binding, but sets each piece of state once per run instead of
+     * pushing and restoring all of it around every draw
+     */
+    private static class GLBackend implements Backend {
+        private final Matrix4f modelView = new Matrix4f();
+        private final Matrix4f projection = new Matrix4f();
+        private final Matrix4f oldModelView = new Matrix4f();
+        private final Matrix4f oldProjection = new Matrix4f();
+        private final float[] oldColor = new float[4];
+        private ShaderInstance shader;
+        private ShaderInstance oldShader;
+        private int oldTexture;
+        private boolean oldDepthTest;
+        private boolean oldDepthMask;
+        private Runnable restoreBlend;
+        private Matrix4 lastProjection;
+        private VBO bound;
+        private int uv2;
+
+        @Override
+        public void begin() {
+            RenderContext.checkError();
+            oldShader = RenderSystem.getShader();
+            shader = GameRenderer.getRendertypeCutoutShader();
+            ShaderInstance shader = this.shader;
+            RenderSystem.setShader(() -> shader);
+            oldModelView.set(RenderSystem.getModelViewMatrix());
+            oldProjection.set(RenderSystem.getProjectionMatrix());
+            System.arraycopy(RenderSystem.getShaderColor(), 0, oldColor, 0, 4);
+            oldTexture = RenderSystem.getShaderTexture(0);
+            oldDepthTest = GL32.glIsEnabled(GL32.GL_DEPTH_TEST);
+            oldDepthMask = GL32.glGetBoolean(GL32.GL_DEPTH_WRITEMASK);
+            lastProjection = null;
+            bound = null;
+        }
+
+        @Override
+        public void shader(OptiFine.Shaders shader) {
+            // Not bound by RenderContext either in this version, only used to keep programs together
+        }
+
+        @Override
+        public void texture(Texture texture) {
+            int id = texture != null && texture != NO_TEXTURE ? texture.getId() : oldTexture;
+            RenderContext.sampler(shader, id);
+            RenderSystem.setShaderTexture(0, id);
+        }
+
+        @Override
+        public void blend(BlendMode blend) {
+            if (restoreBlend != null) {
+                restoreBlend.run();
+                restoreBlend = null;
+            }
+            if (blend != null) {
+                restoreBlend = blend.apply();
+            }
+        }
+
+        @Override
+        public void depth(Boolean test, Boolean mask) {
+            if (test != null ? test : oldDepthTest) {
+                RenderSystem.enableDepthTest();
+            } else {
+                RenderSystem.disableDepthTest();
+            }
+            RenderSystem.depthMask(mask != null ? mask : oldDepthMask);
+        }
+
+        @Override
+        public void draw(VBO vbo, int[] ranges, int rangeCount, RenderState state) {
+            if (vbo != bound) {
+                if (!vbo.isLoaded()) {
+                    // Evicted since it was recorded
+                    return;
+                }
+                uv2 = vbo.bindAttributes(shader);
+                bound = vbo;
+            }
+
+            if (state.projection != null && !state.projection.equals(lastProjection)) {
+                lastProjection = state.projection;
+                RenderContext.store(state.projection, projection);
+                shader.PROJECTION_MATRIX.set(projection);
+                RenderSystem.getProjectionMatrix().set(projection);
+            }
+            // Compact VBs need their expansion on top of either model view
+            if (state.model_view != null) {
+                vbo.modelView(state.model_view, modelView);
+            } else {
+                vbo.modelView(oldModelView, modelView);
+            }
+            shader.MODEL_VIEW_MATRIX.set(modelView);
+            RenderSystem.getModelViewMatrix().set(modelView);
+
+            float[] color = state.color != null ? state.color : oldColor;
+            if (shader.COLOR_MODULATOR != null) {
+                shader.COLOR_MODULATOR.set(color);
+            }
+            RenderSystem.setShaderColor(color[0], color[1], color[2], color[3]);
+            VBO.lightmap(uv2, state.lightmap);
+
+            shader.apply();
+            for (int r = 0; r < rangeCount; r++) {
+                vbo.drawVertices(ranges[r * 2], ranges[r * 2 + 1]);
+            }
+            RenderContext.checkError();
+        }
+
+        @Override
+        public void end() {
+            blend(null);
+            depth(null, null);
+            shader.getVertexFormat().clearBufferState();
+            RenderSystem.getModelViewMatrix().set(oldModelView);
+            RenderSystem.getProjectionMatrix().set(oldProjection);
+            RenderSystem.setShaderColor(oldColor[0], oldColor[1], oldColor[2], oldColor[3]);
+            RenderSystem.setShaderTexture(0, oldTexture);
+            ShaderInstance oldShader = this.oldShader;
+            RenderSystem.setShader(() -> oldShader);
+            BufferUploader.reset();
+            RenderContext.checkError();
+            shader = null;
+            this.oldShader = null;
+            lastProjection = null;
+            bound = null;
+        }
+    }
+}
@@ -10,23 +10,33 @@ import org.lwjgl.opengl.GL12;
 import util.Matrix4;
 
 import java.nio.FloatBuffer;
-import java.util.HashMap;
-import java.util.Map;
 
 public class RenderState {
+    // GL capabilities which can be toggled, in bit order
+    static final int[] CAPS = {GL11.GL_LIGHTING, GL11.GL_ALPHA_TEST, GL11.GL_DEPTH_TEST, GL12.GL_RESCALE_NORMAL, GL11.GL_CULL_FACE};
+
+
     protected Matrix4 model_view = null;
     protected Matrix4 projection = null;
     protected Texture texture = null;
     protected Texture normals = null;
     protected Texture specular = null;
     protected float[] color = null;
-    protected Map<Integer, Boolean> bools = new HashMap<>();
+    // Bit per CAPS entry: whether it is set, and the value it is set to
+    protected int bools_set = 0;
+    protected int bools = 0;
     protected Boolean depth_mask;
     protected Boolean smooth_shading = null;
     protected float[] lightmap = null;
     protected BlendMode blend = null;
     protected OptiFine.Shaders shader;
 
+    // Storage kept while the matching field is null, so set() and the setters can reuse it
+    private Matrix4 spare_model_view;
+    private Matrix4 spare_projection;
+    private float[] spare_color;
+    private float[] spare_lightmap;
+
     private static float[] mbuf = new float[16];
 
     public RenderState() {
@@ -118,37 +128,77 @@ public class RenderState {
     }
 
     private RenderState(RenderState ctx) {
-        this.model_view = ctx.model_view != null ? ctx.model_view.copy() : null;
-        this.projection = ctx.projection != null ? ctx.projection.copy() : null;
+        set(ctx);
+    }
+
+    public RenderState clone() {
+        return new RenderState(this);
+    }
+
+    /**
+     * Copy ctx into this state, reusing this state's matrices and arrays instead of allocating new ones
+     */
+    public RenderState set(RenderState ctx) {
+        if (ctx == this) {
+            return this;
+        }
+        spare_model_view = model_view != null ? model_view : spare_model_view;
+        spare_projection = projection != null ? projection : spare_projection;
+        spare_color = color != null ? color : spare_color;
+        spare_lightmap = lightmap != null ? lightmap : spare_lightmap;
+
+        this.model_view = ctx.model_view != null ? copy(ctx.model_view, spare_model_view) : null;
+        this.projection = ctx.projection != null ? copy(ctx.projection, spare_projection) : null;
         this.texture = ctx.texture;
-        this.color = ctx.color != null ? ctx.color.clone() : null;
-        this.bools = new HashMap<>(ctx.bools);
+        this.normals = ctx.normals;
+        this.specular = ctx.specular;
+        this.color = copy(ctx.color, spare_color);
+        this.bools_set = ctx.bools_set;
+        this.bools = ctx.bools;
         this.depth_mask = ctx.depth_mask;
         this.smooth_shading = ctx.smooth_shading;
-        this.lightmap = ctx.lightmap != null ? ctx.lightmap.clone() : null;
+        this.lightmap = copy(ctx.lightmap, spare_lightmap);
         this.blend = ctx.blend;
         this.shader = ctx.shader;
+        return this;
     }
 
-    public RenderState clone() {
-        return new RenderState(this);
+    private static Matrix4 copy(Matrix4 from, Matrix4 into) {
+        return into != null ? into.set(from) : from.copy();
+    }
+
+    private static float[] copy(float[] from, float[] into) {
+        if (from == null) {
+            return null;
+        }
+        if (into == null || into.length != from.length) {
+            return from.clone();
+        }
+        System.arraycopy(from, 0, into, 0, from.length);
+        return into;
     }
 
     public RenderState color(float r, float g, float b, float a) {
-        color = new float[] {r, g, b, a};
+        if (color == null) {
+            color = spare_color != null ? spare_color : new float[4];
+        }
+        color[0] = r;
+        color[1] = g;
+        color[2] = b;
+        color[3] = a;
         return this;
     }
 
     public Matrix4 model_view() {
         if (model_view == null) {
-            model_view = new Matrix4();
+            model_view = spare_model_view != null ? spare_model_view.setIdentity() : new Matrix4();
         }
         return model_view;
     }
 
     public Matrix4 projection() {
         if (projection == null) {
-            projection = new Matrix4();
+            projection = spare_projection != null ? spare_projection.setIdentity() : new Matrix4();
         }
         return projection;
     }
@@ -188,16 +238,13 @@ public class RenderState {
     }
 
     public RenderState lighting(boolean lighting) {
-        this.bools.put(GL11.GL_LIGHTING, lighting);
-        return this;
+        return bool(GL11.GL_LIGHTING, lighting);
     }
     public RenderState alpha_test(boolean alpha_test) {
-        this.bools.put(GL11.GL_ALPHA_TEST, alpha_test);
-        return this;
+        return bool(GL11.GL_ALPHA_TEST, alpha_test);
     }
     public RenderState depth_test(boolean depth_test) {
-        this.bools.put(GL11.GL_DEPTH_TEST, depth_test);
-        return this;
+        return bool(GL11.GL_DEPTH_TEST, depth_test);
     }
     public RenderState depth_mask(boolean depth_mask) {
         this.depth_mask = depth_mask;
@@ -208,15 +255,17 @@ public class RenderState {
         return this;
     }
     public RenderState rescale_normal(boolean rescale_normal) {
-        this.bools.put(GL12.GL_RESCALE_NORMAL, rescale_normal);
-        return this;
+        return bool(GL12.GL_RESCALE_NORMAL, rescale_normal);
     }
     public RenderState cull_face(boolean cull_face) {
-        this.bools.put(GL11.GL_CULL_FACE, cull_face);
-        return this;
+        return bool(GL11.GL_CULL_FACE, cull_face);
     }
     public RenderState lightmap(float block, float sky) {
-        this.lightmap = new float[] {block, sky};
+        if (lightmap == null) {
+            lightmap = spare_lightmap != null ? spare_lightmap : new float[2];
+        }
+        lightmap[0] = block;
+        lightmap[1] = sky;
         return this;
     }
     public RenderState blend(BlendMode blend) {
@@ -227,4 +276,28 @@ public class RenderState {
         this.shader = shader;
         return this;
     }
+
+    private RenderState bool(int cap, boolean value) {
+        int bit = 1 << bit(cap);
+        bools_set |= bit;
+        bools = value ? bools | bit : bools & ~bit;
+        return this;
+    }
+
+    /**
+     * Value this state sets the GL capability to, null if it is left alone
+     */
+    Boolean bool(int cap) {
+        int bit = 1 << bit(cap);
+        return (bools_set & bit) == 0 ? null : (bools & bit) != 0;
+    }
+
+    private static int bit(int cap) {
+        for (int i = 0; i < CAPS.length; i++) {
+            if (CAPS[i] == cap) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Unknown capability " + cap);
+    }
 }
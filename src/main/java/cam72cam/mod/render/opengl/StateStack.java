@@ -0,0 +1,75 @@
+package cam72cam.mod.render.opengl;
+
+import java.util.Arrays;
+
+/**
+ * Pool of RenderState copies for nested transforms, in place of RenderState.clone()
+ *
+ * push() hands out a preallocated state holding a copy of the given (or current top) state, pop() returns it to the
+ * pool.  The copies reuse their matrices and arrays, so once the stack has been as deep as a frame needs, pushing and
+ * popping does not allocate.  A pushed state is only valid until it is popped.
+ *
+ * <pre>
+ * RenderState body = stack.push(state).translate(0, 1, 0);
+ * model.draw(body);
+ * stack.push().rotate(angle, 0, 1, 0);
+ * model.draw(stack.peek());
+ * stack.pop();
+ * stack.pop();
+ * </pre>
+ *
+ * Render thread only.
+ */
+public class StateStack {
+    private RenderState[] states = new RenderState[8];
+    private int depth = 0;
+
+    /**
+     * Push a copy of state
+     */
+    public RenderState push(RenderState state) {
+        if (depth == states.length) {
+            states = Arrays.copyOf(states, depth * 2);
+        }
+        RenderState top = states[depth];
+        if (top == null) {
+            top = states[depth] = state.clone();
+        } else {
+            top.set(state);
+        }
+        depth++;
+        return top;
+    }
+
+    /**
+     * Push a copy of the top state
+     */
+    public RenderState push() {
+        return push(peek());
+    }
+
+    public RenderState peek() {
+        if (depth == 0) {
+            throw new IllegalStateException("Empty state stack");
+        }
+        return states[depth - 1];
+    }
+
+    public void pop() {
+        if (depth == 0) {
+            throw new IllegalStateException("Empty state stack");
+        }
+        depth--;
+    }
+
+    public int depth() {
+        return depth;
+    }
+
+    /**
+     * Drop every pushed state, for recovering at the start of a frame from a push without a matching pop
+     */
+    public void clear() {
+        depth = 0;
+    }
+}
@@ -1,7 +1,10 @@
 package cam72cam.mod.render.opengl;
 
+import cam72cam.mod.Config;
 import cam72cam.mod.ModCore;
-import cam72cam.mod.event.ClientEvents;
+import cam72cam.mod.math.Vec3d;
+import cam72cam.mod.model.obj.IndexedVertexBuffer;
+import cam72cam.mod.model.obj.PackedVertexBuffer;
 import cam72cam.mod.model.obj.VertexBuffer;
 import cam72cam.mod.util.With;
 import com.google.common.collect.ImmutableList;
@@ -11,67 +14,79 @@ import com.mojang.blaze3d.vertex.BufferUploader;
 import com.mojang.blaze3d.vertex.VertexFormatElement;
 import net.minecraft.client.renderer.GameRenderer;
 import net.minecraft.client.renderer.ShaderInstance;
+import org.joml.Matrix4f;
 import org.lwjgl.BufferUtils;
 import org.lwjgl.opengl.GL32;
+import util.Matrix4;
 
 import java.nio.ByteBuffer;
-import java.nio.FloatBuffer;
-import java.util.ArrayList;
-import java.util.List;
 import java.util.Map;
 import java.util.concurrent.*;
 import java.util.function.Consumer;
 import java.util.function.Supplier;
 
 public class VBO {
-    private static final List<VBO> vbos = new ArrayList<>();
-    public static void registerClientEvents() {
-        // free unused textures
-        ClientEvents.TICK.subscribe(() -> {
-            synchronized (vbos) {
-                for (VBO vbo : vbos) {
-                    if (vbo.vbo != -1 && System.currentTimeMillis() - vbo.lastUsed > 30 * 1000) {
-                        vbo.free();
-                    }
-                }
-            }
-        });
-    }
-
     private final Supplier<VertexBuffer> buffer;
     private final Consumer<RenderState> settings;
 
     private int vao;
     private int vbo;
+    private int ebo;
     private int length;
-    private long lastUsed;
+    private final VRAMBudget.Resident resident = new VRAMBudget.Resident(30 * 1000, this::free);
     private VertexBuffer vbInfo;
-
-    private static final ExecutorService pool = new ThreadPoolExecutor(0, Runtime.getRuntime().availableProcessors(),
-            5L, TimeUnit.SECONDS,
-            new LinkedBlockingQueue<>(),
-            runnable -> {
-                Thread thread = new Thread(runnable);
-                thread.setName("UMC-VertexBufferLoader");
-                thread.setPriority(Thread.MIN_PRIORITY);
-                return thread;
-            });
-    private Future<FloatBuffer> loader = null;
+    // Set when the vertices were uploaded in the compact format, used to expand positions back to model space
+    private Vec3d packedMin;
+    private Vec3d packedExtent;
+    // GL_UNSIGNED_SHORT / GL_UNSIGNED_INT when drawing through the index buffer, 0 otherwise
+    private int indexType;
+    private ByteBuffer indexData;
+    // (0, length), reused when queueing the entire VB
+    private int[] wholeRange;
+
+    private AssetLoader.Job<ByteBuffer> loader = null;
+    private double loadPriority = 0;
 
     public VBO(Supplier<VertexBuffer> buffer, Consumer<RenderState> settings) {
         this.buffer = buffer;
         this.vao = -1;
         this.vbo = -1;
+        this.ebo = -1;
         this.settings = settings;
+    }
+
+    public boolean isLoaded() {
+        return vbo != -1;
+    }
 
-        synchronized (vbos) {
-            vbos.add(this);
+    /**
+     * Start loading this VB in the background if it is not already on the GPU
+     * @return true if it can be drawn right away
+     */
+    public boolean prepare() {
+        if (!isLoaded()) {
+            init();
         }
+        VRAMBudget.touch(resident);
+        return isLoaded();
+    }
+
+    /**
+     * Loading order for background loading, lower first (usually the distance to the camera)
+     */
+    public void setLoadPriority(double priority) {
+        this.loadPriority = priority;
     }
 
     private void init() {
+        if (loader != null && loader.isCancelled()) {
+            // Dropped from the queue while out of view
+            loader = null;
+        }
         if (loader != null) {
-            if (loader.isDone()) {
+            if (!loader.isDone()) {
+                loader.request(loadPriority);
+            } else {
                 try {
                     int oldVao = GL32.glGetInteger(GL32.GL_VERTEX_ARRAY_BUFFER_BINDING);// TODO this should be GL32
                     int oldVbo = GL32.glGetInteger(GL32.GL_ARRAY_BUFFER_BINDING);
@@ -80,26 +95,53 @@ public class VBO {
                     GL32.glBindVertexArray(vao);
                     vbo = GL32.glGenBuffers();
                     GL32.glBindBuffer(GL32.GL_ARRAY_BUFFER, vbo);
-                    GL32.glBufferData(GL32.GL_ARRAY_BUFFER, loader.get(), GL32.GL_STATIC_DRAW);
+                    ByteBuffer data = loader.get();
+                    long bytes = data.remaining();
+                    GL32.glBufferData(GL32.GL_ARRAY_BUFFER, data, GL32.GL_STATIC_DRAW);
+                    if (indexData != null) {
+                        bytes += indexData.remaining();
+                        // Element array binding is part of the VAO state
+                        ebo = GL32.glGenBuffers();
+                        GL32.glBindBuffer(GL32.GL_ELEMENT_ARRAY_BUFFER, ebo);
+                        GL32.glBufferData(GL32.GL_ELEMENT_ARRAY_BUFFER, indexData, GL32.GL_STATIC_DRAW);
+                        indexData = null;
+                    }
 
                     GL32.glBindVertexArray(oldVao);
                     GL32.glBindBuffer(GL32.GL_ARRAY_BUFFER, oldVbo);
+                    VRAMBudget.loaded(resident, bytes);
                 } catch (InterruptedException | ExecutionException e) {
                     e.printStackTrace();
                 }
                 loader = null;
             }
         } else {
-            // Start thread
-            loader = pool.submit(() -> {
+            // Start thread, the size isn't known until the model data is read
+            loader = AssetLoader.submit(() -> {
                 VertexBuffer vb = buffer.get();
                 this.length = vb.data.length / (vb.stride);
                 this.vbInfo = new VertexBuffer(0, vb.hasNormals);
-                FloatBuffer buffer = BufferUtils.createFloatBuffer(vb.data.length);
-                buffer.put(vb.data);
-                buffer.position(0);
+                if (Config.IndexedVertexFormat) {
+                    IndexedVertexBuffer indexed = new IndexedVertexBuffer(vb);
+                    this.indexType = indexed.isShort() ? GL32.GL_UNSIGNED_SHORT : GL32.GL_UNSIGNED_INT;
+                    this.indexData = indexed.indexData();
+                    vb = indexed.vertices;
+                } else {
+                    this.indexType = 0;
+                    this.indexData = null;
+                }
+                if (Config.CompactVertexFormat) {
+                    PackedVertexBuffer packed = new PackedVertexBuffer(vb);
+                    this.packedMin = new Vec3d(packed.minX, packed.minY, packed.minZ);
+                    this.packedExtent = new Vec3d(packed.extentX, packed.extentY, packed.extentZ);
+                    return packed.data;
+                }
+                this.packedMin = null;
+                this.packedExtent = null;
+                ByteBuffer buffer = BufferUtils.createByteBuffer(vb.data.length * Float.BYTES);
+                buffer.asFloatBuffer().put(vb.data);
                 return buffer;
-            });
+            }, 0, loadPriority);
         }
     }
 
@@ -111,6 +153,265 @@ public class VBO {
         return new Binding(state, waitForLoad);
     }
 
+    /**
+     * Queue a copy of the entire VB for instances.draw(), with the model view, color, lightmap and texture of state
+     *
+     * Drawn right away instead where instancing is not supported.
+     */
+    public void instance(Instances instances, RenderState state) {
+        instance(instances, state, null);
+    }
+
+    /**
+     * @param ranges (first vertex, vertex count) pairs, null for the entire VB
+     */
+    protected void instance(Instances instances, RenderState state, int[] ranges) {
+        if (!Instances.isSupported()) {
+            try (Binding binding = bind(state.clone())) {
+                if (binding.isLoaded()) {
+                    if (ranges == null) {
+                        binding.draw();
+                    } else {
+                        for (int i = 0; i < ranges.length; i += 2) {
+                            binding.drawRange(ranges[i], ranges[i + 1]);
+                        }
+                    }
+                }
+            }
+            return;
+        }
+
+        if (!prepare()) {
+            return;
+        }
+        instances.add(this, ranges != null ? ranges : wholeRange(), state, settings);
+    }
+
+    /**
+     * Record a draw of the entire VB, executed sorted by state on queue.flush()
+     */
+    public void queue(RenderQueue queue, RenderState state) {
+        queue(queue, state, null);
+    }
+
+    /**
+     * @param ranges (first vertex, vertex count) pairs, null for the entire VB
+     */
+    protected void queue(RenderQueue queue, RenderState state, int[] ranges) {
+        if (!prepare()) {
+            return;
+        }
+        queue.add(this, ranges != null ? ranges : wholeRange(), state, settings);
+    }
+
+    private int[] wholeRange() {
+        if (wholeRange == null || wholeRange[1] != length) {
+            wholeRange = new int[]{0, length};
+        }
+        return wholeRange;
+    }
+
+    /**
+     * Set up the vertex attributes for InstanceShader, false if the VB is no longer loaded
+     */
+    boolean bindInstanced(InstanceShader shader) {
+        if (!isLoaded()) {
+            return false;
+        }
+        VRAMBudget.touch(resident);
+        GL32.glBindVertexArray(vao);
+        GL32.glBindBuffer(GL32.GL_ARRAY_BUFFER, vbo);
+
+        GL32.glEnableVertexAttribArray(InstanceShader.POSITION);
+        GL32.glEnableVertexAttribArray(InstanceShader.COLOR);
+        GL32.glEnableVertexAttribArray(InstanceShader.UV0);
+        if (packedMin != null) {
+            int stride = PackedVertexBuffer.STRIDE;
+            GL32.glVertexAttribPointer(InstanceShader.POSITION, 3, GL32.GL_UNSIGNED_SHORT, true, stride, PackedVertexBuffer.VERTEX_OFFSET);
+            GL32.glVertexAttribPointer(InstanceShader.COLOR, 4, GL32.GL_UNSIGNED_BYTE, true, stride, PackedVertexBuffer.COLOR_OFFSET);
+            GL32.glVertexAttribPointer(InstanceShader.UV0, 2, GL32.GL_UNSIGNED_SHORT, true, stride, PackedVertexBuffer.TEXTURE_OFFSET);
+            shader.mesh((float) packedMin.x, (float) packedMin.y, (float) packedMin.z,
+                    (float) packedExtent.x, (float) packedExtent.y, (float) packedExtent.z);
+        } else {
+            int stride = vbInfo.stride * Float.BYTES;
+            GL32.glVertexAttribPointer(InstanceShader.POSITION, 3, GL32.GL_FLOAT, false, stride, (long) vbInfo.vertexOffset * Float.BYTES);
+            GL32.glVertexAttribPointer(InstanceShader.COLOR, 4, GL32.GL_FLOAT, true, stride, (long) vbInfo.colorOffset * Float.BYTES);
+            GL32.glVertexAttribPointer(InstanceShader.UV0, 2, GL32.GL_FLOAT, false, stride, (long) vbInfo.textureOffset * Float.BYTES);
+            shader.mesh(0, 0, 0, 1, 1, 1);
+        }
+        // Not read by the shader yet, kept so the layout matches the standard shaders
+        GL32.glDisableVertexAttribArray(InstanceShader.NORMAL);
+        return true;
+    }
+
+    /**
+     * Draw a range of vertices (face corners) with whatever is bound, see Binding.drawRange
+     */
+    void drawVertices(int first, int count) {
+        switch (indexType) {
+            case GL32.GL_UNSIGNED_SHORT:
+                GL32.glDrawElements(GL32.GL_TRIANGLES, count, indexType, (long) first * Short.BYTES);
+                break;
+            case GL32.GL_UNSIGNED_INT:
+                GL32.glDrawElements(GL32.GL_TRIANGLES, count, indexType, (long) first * Integer.BYTES);
+                break;
+            default:
+                GL32.glDrawArrays(GL32.GL_TRIANGLES, first, count);
+        }
+    }
+
+    /**
+     * Draw several ranges of vertices with whatever is bound, see Binding.drawRanges
+     */
+    void drawVertices(int[] firsts, int[] counts) {
+        if (firsts.length == 1) {
+            drawVertices(firsts[0], counts[0]);
+        } else if (indexType == 0) {
+            GL32.glMultiDrawArrays(GL32.GL_TRIANGLES, firsts, counts);
+        } else {
+            // glMultiDrawElements takes a buffer of pointers, not worth it for the few ranges a group set has
+            for (int i = 0; i < firsts.length; i++) {
+                drawVertices(firsts[i], counts[i]);
+            }
+        }
+    }
+
+    /**
+     * Instanced version of Binding.drawRange
+     */
+    void drawRangeInstanced(int first, int count, int instances) {
+        switch (indexType) {
+            case GL32.GL_UNSIGNED_SHORT:
+                GL32.glDrawElementsInstanced(GL32.GL_TRIANGLES, count, indexType, (long) first * Short.BYTES, instances);
+                break;
+            case GL32.GL_UNSIGNED_INT:
+                GL32.glDrawElementsInstanced(GL32.GL_TRIANGLES, count, indexType, (long) first * Integer.BYTES, instances);
+                break;
+            default:
+                GL32.glDrawArraysInstanced(GL32.GL_TRIANGLES, first, count, instances);
+        }
+    }
+
+    /**
+     * Bind the VAO and point the shader's vertex attributes at this VB
+     * @return location of the UV2 (lightmap) attribute, which is left as a constant, or -1
+     */
+    int bindAttributes(ShaderInstance shader) {
+        GL32.glBindVertexArray(vao);
+        GL32.glBindBuffer(GL32.GL_ARRAY_BUFFER, vbo);
+
+        int uv2 = -1;
+        int stride = packedMin != null ? PackedVertexBuffer.STRIDE : vbInfo.stride * Float.BYTES;
+
+        ImmutableList<VertexFormatElement> elements = shader.getVertexFormat().getElements();
+        for (int i = 0; i < elements.size(); i++) {
+            VertexFormatElement element = elements.get(i);
+            switch (element.getUsage()) {
+                case POSITION -> {
+                    //element.setupBufferState(i, (long) vbInfo.vertexOffset * Float.BYTES, stride);
+                    GL32.glEnableVertexAttribArray(i);
+                    if (packedMin != null) {
+                        GL32.glVertexAttribPointer(i, 3, GL32.GL_UNSIGNED_SHORT, true, stride, PackedVertexBuffer.VERTEX_OFFSET);
+                    } else {
+                        GL32.glVertexAttribPointer(i, 3, GL32.GL_FLOAT, false, stride, (long) vbInfo.vertexOffset * Float.BYTES);
+                    }
+                }
+                case NORMAL -> {
+                    if (vbInfo.hasNormals) {
+                        GL32.glEnableVertexAttribArray(i);
+                        if (packedMin != null) {
+                            GL32.glVertexAttribPointer(i, 3, GL32.GL_BYTE, true, stride, PackedVertexBuffer.NORMAL_OFFSET);
+                        } else {
+                            GL32.glVertexAttribPointer(i, 3, GL32.GL_FLOAT, true, stride, (long) vbInfo.normalOffset * Float.BYTES);
+                        }
+                    }
+                }
+                case COLOR -> {
+                    GL32.glEnableVertexAttribArray(i);
+                    if (packedMin != null) {
+                        GL32.glVertexAttribPointer(i, 4, GL32.GL_UNSIGNED_BYTE, true, stride, PackedVertexBuffer.COLOR_OFFSET);
+                    } else {
+                        GL32.glVertexAttribPointer(i, 4, GL32.GL_FLOAT, true, stride, (long) vbInfo.colorOffset * Float.BYTES);
+                    }
+                }
+                case UV -> {
+                    for (Map.Entry<String, VertexFormatElement> entry : shader.getVertexFormat().getElementMapping().entrySet()) {
+                        if (entry.getValue() == element) {
+                            if (entry.getKey().equals("UV0")) {
+                                GL32.glEnableVertexAttribArray(i);
+                                if (packedMin != null) {
+                                    GL32.glVertexAttribPointer(i, 2, GL32.GL_UNSIGNED_SHORT, true, stride, PackedVertexBuffer.TEXTURE_OFFSET);
+                                } else {
+                                    GL32.glVertexAttribPointer(i, 2, GL32.GL_FLOAT, false, stride, (long) vbInfo.textureOffset * Float.BYTES);
+                                }
+                            } else if (entry.getKey().equals("UV1")) {
+                                // TODO
+                            } else if (entry.getKey().equals("UV2")) {
+                                GL32.glDisableVertexAttribArray(i);
+                                uv2 = i;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        return uv2;
+    }
+
+    /**
+     * Same as below for a model view already in GL form, such as the one bound before a RenderQueue flush
+     */
+    void modelView(Matrix4f mv, Matrix4f dest) {
+        dest.set(mv);
+        if (packedMin != null) {
+            dest.translate((float) packedMin.x, (float) packedMin.y, (float) packedMin.z)
+                    .scale((float) packedExtent.x, (float) packedExtent.y, (float) packedExtent.z);
+        }
+    }
+
+    /**
+     * Model view with the compact position expansion folded in (see Binding.dequantize), written to dest
+     */
+    void modelView(Matrix4 mv, Matrix4f dest) {
+        if (packedMin == null) {
+            dest.set(
+                    (float) mv.m00, (float) mv.m10, (float) mv.m20, (float) mv.m30,
+                    (float) mv.m01, (float) mv.m11, (float) mv.m21, (float) mv.m31,
+                    (float) mv.m02, (float) mv.m12, (float) mv.m22, (float) mv.m32,
+                    (float) mv.m03, (float) mv.m13, (float) mv.m23, (float) mv.m33
+            );
+            return;
+        }
+        // mv * translate(min) * scale(extent)
+        double ex = packedExtent.x, ey = packedExtent.y, ez = packedExtent.z;
+        double tx = packedMin.x, ty = packedMin.y, tz = packedMin.z;
+        dest.set(
+                (float) (mv.m00 * ex), (float) (mv.m10 * ex), (float) (mv.m20 * ex), (float) (mv.m30 * ex),
+                (float) (mv.m01 * ey), (float) (mv.m11 * ey), (float) (mv.m21 * ey), (float) (mv.m31 * ey),
+                (float) (mv.m02 * ez), (float) (mv.m12 * ez), (float) (mv.m22 * ez), (float) (mv.m32 * ez),
+                (float) (mv.m00 * tx + mv.m01 * ty + mv.m02 * tz + mv.m03),
+                (float) (mv.m10 * tx + mv.m11 * ty + mv.m12 * tz + mv.m13),
+                (float) (mv.m20 * tx + mv.m21 * ty + mv.m22 * tz + mv.m23),
+                (float) (mv.m30 * tx + mv.m31 * ty + mv.m32 * tz + mv.m33)
+        );
+    }
+
+    /**
+     * Set the constant lightmap attribute, (block, sky) in [0, 1] or null for full bright
+     */
+    static void lightmap(int uv2, float[] lightmap) {
+        if (uv2 < 0) {
+            return;
+        }
+        int x = 255;
+        int y = 255;
+        if (lightmap != null) {
+            x = (int) (lightmap[0] * 255);
+            y = (int) (lightmap[1] * 255);
+        }
+        GL32.glVertexAttribI2i(uv2, x, y);
+    }
+
     public class Binding implements With {
         private final With restore;
         private final RenderState state;
@@ -125,7 +426,7 @@ public class VBO {
                 init();
             }
             RenderContext.checkError();
-            lastUsed = System.currentTimeMillis();
+            VRAMBudget.touch(resident);
 
             if (!wait) {
                 if (!isLoaded()) {
@@ -165,56 +466,10 @@ public class VBO {
 
             ShaderInstance shader = GameRenderer.getRendertypeCutoutShader();
             RenderSystem.setShader(() -> shader);
-            GL32.glBindVertexArray(vao);
-            GL32.glBindBuffer(GL32.GL_ARRAY_BUFFER, vbo);
-
-            int stride = vbInfo.stride * Float.BYTES;
-
-            ImmutableList<VertexFormatElement> elements = shader.getVertexFormat().getElements();
-            for (int i = 0; i < elements.size(); i++) {
-                VertexFormatElement element = elements.get(i);
-                switch (element.getUsage()) {
-                    case POSITION -> {
-                        //element.setupBufferState(i, (long) vbInfo.vertexOffset * Float.BYTES, stride);
-                        GL32.glEnableVertexAttribArray(i);
-                        GL32.glVertexAttribPointer(i, 3, GL32.GL_FLOAT, false, stride, (long) vbInfo.vertexOffset * Float.BYTES);
-                    }
-                    case NORMAL -> {
-                        if (vbInfo.hasNormals) {
-                            GL32.glEnableVertexAttribArray(i);
-                            GL32.glVertexAttribPointer(i, 3, GL32.GL_FLOAT, true, stride, (long) vbInfo.normalOffset * Float.BYTES);
-                        }
-                    }
-                    case COLOR -> {
-                        GL32.glEnableVertexAttribArray(i);
-                        GL32.glVertexAttribPointer(i, 4, GL32.GL_FLOAT, true, stride, (long) vbInfo.colorOffset * Float.BYTES);
-                    }
-                    case UV -> {
-                        for (Map.Entry<String, VertexFormatElement> entry : shader.getVertexFormat().getElementMapping().entrySet()) {
-                            if (entry.getValue() == element) {
-                                if (entry.getKey().equals("UV0")) {
-                                    GL32.glEnableVertexAttribArray(i);
-                                    GL32.glVertexAttribPointer(i, 2, GL32.GL_FLOAT, false, stride, (long) vbInfo.textureOffset * Float.BYTES);
-                                } else if (entry.getKey().equals("UV1")) {
-                                    // TODO
-                                } else if (entry.getKey().equals("UV2")) {
-                                    GL32.glDisableVertexAttribArray(i);
-                                    int x = 255;
-                                    int y = 255;
-                                    if (state.lightmap != null) {
-                                        x = (int) (state.lightmap[0] * 255);
-                                        y = (int) (state.lightmap[1] * 255);
-                                    }
-                                    GL32.glVertexAttribI2i(i, x, y);
-                                }
-                            }
-                        }
-                    }
-                }
-            }
+            lightmap(bindAttributes(shader), state.lightmap);
             RenderContext.checkError();
 
-            this.restore = RenderContext.apply(state).and(() -> {
+            this.restore = RenderContext.apply(dequantize(state)).and(() -> {
                 RenderContext.checkError();
                 shader.getVertexFormat().clearBufferState();
 
@@ -239,7 +494,17 @@ public class VBO {
             }
             RenderState state = this.state.clone();
             mod.accept(state);
-            return RenderContext.apply(state);
+            return RenderContext.apply(dequantize(state));
+        }
+
+        /**
+         * Compact positions are stored in [0, 1] across the model bounds, fold the expansion into the model view
+         */
+        private RenderState dequantize(RenderState state) {
+            if (packedMin == null) {
+                return state;
+            }
+            return state.clone().translate(packedMin).scale(packedExtent);
         }
 
         /**
@@ -249,18 +514,37 @@ public class VBO {
             if (!isLoaded()) {
                 return;
             }
-            GL32.glDrawArrays(GL32.GL_TRIANGLES, 0, length);
+            drawRange(0, length);
             RenderContext.checkError();
         }
+
+        /**
+         * Draw a range of vertices (face corners) of the VB
+         */
+        protected void drawRange(int first, int count) {
+            drawVertices(first, count);
+        }
+
+        /**
+         * Draw several ranges of vertices, as one call where the VB is not indexed
+         */
+        protected void drawRanges(int[] firsts, int[] counts) {
+            drawVertices(firsts, counts);
+        }
     }
 
     /**
      * Clear this VB from standard and GPU memory
      */
     public void free() {
-        synchronized (vbos) {
+        synchronized (this) {
+            VRAMBudget.freed(resident);
             if (vbo != -1) {
                 GL32.glDeleteBuffers(vbo);
+                if (ebo != -1) {
+                    GL32.glDeleteBuffers(ebo);
+                    ebo = -1;
+                }
                 GL32.glDeleteVertexArrays(vao);
                 vbo = -1;
             }
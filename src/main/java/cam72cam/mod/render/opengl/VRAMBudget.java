@@ -0,0 +1,216 @@
+package cam72cam.mod.render.opengl;
+
+import cam72cam.mod.Config;
+import cam72cam.mod.event.ClientEvents;
+import cam72cam.mod.render.GPUInfo;
+import net.minecraft.client.Minecraft;
+import org.lwjgl.opengl.GL;
+
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+/**
+ * GPU memory used by textures and vertex buffers, kept in least recently used order
+ *
+ * As soon as the total goes over Config.VRAMLimit the least recently used assets are freed, except ones drawn in this
+ * or the previous frame.  Idle assets are also freed once they pass their own timeout.  Render thread only.
+ *
+ * Only resident assets are referenced from here, everything else can be collected as usual.
+ */
+public class VRAMBudget {
+    private static final long MB = 1024 * 1024;
+    /** Max idle timeouts checked per tick */
+    static final int SWEEP_LIMIT = 64;
+
+    /**
+     * Entry in the LRU list, owned by a texture or vertex buffer
+     */
+    public static class Resident {
+        private final long timeoutMillis;
+        private final Runnable evict;
+        private Resident prev;
+        private Resident next;
+        private boolean linked;
+        private long bytes;
+        private long lastUsed;
+        private long lastFrame;
+        // Position in the expiry queue, only updated while not queued
+        private long expiry;
+        private boolean queued;
+
+        /**
+         * @param evict frees the asset, which must call VRAMBudget.freed
+         */
+        public Resident(long timeoutMillis, Runnable evict) {
+            this.timeoutMillis = timeoutMillis;
+            this.evict = evict;
+        }
+    }
+
+    // Most recently used
+    private static Resident head;
+    // Least recently used
+    private static Resident tail;
+    private static long residentBytes = 0;
+    private static int residentCount = 0;
+    private static long evictions = 0;
+    private static long frame = 0;
+    private static Long detectedLimit = null;
+    /**
+     * Idle timeouts by the expiry they had when queued.  Using an asset does not move it here, instead the sweep puts
+     * it back with the updated expiry if it was used since.
+     */
+    private static final PriorityQueue<Resident> expiries = new PriorityQueue<>(Comparator.comparingLong(r -> r.expiry));
+
+    public static void registerClientEvents() {
+        ClientEvents.FRAME.subscribe(VRAMBudget::frame);
+        ClientEvents.TICK.subscribe(() -> sweep(System.currentTimeMillis()));
+        ClientEvents.RENDER_DEBUG.subscribe(event -> {
+            if (Minecraft.getInstance().options.renderDebug) {
+                event.getRight().add(debug());
+            }
+        });
+    }
+
+    static void frame() {
+        frame++;
+    }
+
+    private static long limit() {
+        if (Config.VRAMLimit > 0) {
+            return Config.VRAMLimit * MB;
+        }
+        if (Config.VRAMLimit == 0) {
+            return Long.MAX_VALUE;
+        }
+        if (detectedLimit == null) {
+            // Only NVidia reports the total, leave the rest to the idle timeouts
+            detectedLimit = GL.getCapabilities().GL_NVX_gpu_memory_info ? GPUInfo.memTotalMB() / 2 * MB : Long.MAX_VALUE;
+        }
+        return detectedLimit;
+    }
+
+    private static void unlink(Resident resident) {
+        if (resident.prev != null) {
+            resident.prev.next = resident.next;
+        } else {
+            head = resident.next;
+        }
+        if (resident.next != null) {
+            resident.next.prev = resident.prev;
+        } else {
+            tail = resident.prev;
+        }
+        resident.prev = null;
+        resident.next = null;
+    }
+
+    private static void pushHead(Resident resident) {
+        resident.next = head;
+        if (head != null) {
+            head.prev = resident;
+        }
+        head = resident;
+        if (tail == null) {
+            tail = resident;
+        }
+    }
+
+    /**
+     * The asset now holds this much GPU memory, may evict others to stay within the limit
+     */
+    public static void loaded(Resident resident, long bytes) {
+        if (resident.linked) {
+            freed(resident);
+        }
+        resident.bytes = bytes;
+        resident.linked = true;
+        residentBytes += bytes;
+        residentCount++;
+        pushHead(resident);
+        touch(resident);
+        if (!resident.queued) {
+            resident.expiry = resident.lastUsed + resident.timeoutMillis;
+            resident.queued = true;
+            expiries.add(resident);
+        }
+        enforce();
+    }
+
+    /**
+     * Mark the asset as used, does nothing if it is not resident
+     */
+    public static void touch(Resident resident) {
+        resident.lastUsed = System.currentTimeMillis();
+        resident.lastFrame = frame;
+        if (resident.linked && head != resident) {
+            unlink(resident);
+            pushHead(resident);
+        }
+    }
+
+    public static void freed(Resident resident) {
+        if (!resident.linked) {
+            return;
+        }
+        unlink(resident);
+        if (resident.queued) {
+            expiries.remove(resident);
+            resident.queued = false;
+        }
+        resident.linked = false;
+        residentBytes -= resident.bytes;
+        residentCount--;
+        resident.bytes = 0;
+    }
+
+    private static void evict(Resident resident) {
+        resident.evict.run();
+        // In case the asset did not report it
+        freed(resident);
+        evictions++;
+    }
+
+    private static void enforce() {
+        long limit = limit();
+        while (residentBytes > limit && tail != null && tail.lastFrame < frame - 1) {
+            evict(tail);
+        }
+    }
+
+    /**
+     * Free assets past their idle timeout, checking at most SWEEP_LIMIT of them
+     */
+    static void sweep(long now) {
+        for (int i = 0; i < SWEEP_LIMIT; i++) {
+            Resident resident = expiries.peek();
+            if (resident == null || resident.expiry > now) {
+                break;
+            }
+            expiries.poll();
+            resident.queued = false;
+            long expiry = resident.lastUsed + resident.timeoutMillis;
+            if (expiry > now) {
+                // Used since it was queued
+                resident.expiry = expiry;
+                resident.queued = true;
+                expiries.add(resident);
+            } else {
+                evict(resident);
+            }
+        }
+    }
+
+    public static long residentBytes() {
+        return residentBytes;
+    }
+
+    /**
+     * Resident memory and evictions, for the F3 screen
+     */
+    public static String debug() {
+        long limit = limit();
+        return String.format("UMC VRAM: %dMB in %d assets, limit %s, %d evicted",
+                residentBytes / MB, residentCount, limit == Long.MAX_VALUE ? "none" : limit / MB + "MB", evictions);
+    }
+}
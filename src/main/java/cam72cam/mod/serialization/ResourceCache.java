@@ -1,5 +1,6 @@
 package cam72cam.mod.serialization;
 
+import cam72cam.mod.Config;
 import cam72cam.mod.ModCore;
 import cam72cam.mod.resource.Identifier;
 import cam72cam.mod.resource.Identifier.InputStreamMod;
@@ -8,6 +9,7 @@ import com.google.common.hash.HashCode;
 import com.google.common.hash.HashFunction;
 import com.google.common.hash.Hashing;
 import com.google.common.hash.HashingInputStream;
+import com.google.common.io.ByteStreams;
 import net.jpountz.lz4.LZ4Compressor;
 import net.jpountz.lz4.LZ4Factory;
 import net.jpountz.lz4.LZ4FastDecompressor;
@@ -21,58 +23,110 @@ import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.function.Function;
 import java.util.function.Supplier;
 
 @SuppressWarnings("UnstableApiUsage")
 public class ResourceCache<T> {
     private static final HashFunction hasher = Hashing.murmur3_128();
+    // Hashing is I/O bound, more threads than this mostly thrash the disk
+    private static final ExecutorService hashPool;
+    static {
+        int threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads,
+                5L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(),
+                runnable -> {
+                    Thread thread = new Thread(runnable);
+                    thread.setName("UMC-ResourceHasher");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        pool.allowCoreThreadTimeOut(true);
+        hashPool = pool;
+    }
 
     public static class ResourceProvider implements Function<Identifier, byte[]> {
         // TODO This might need to be cleared when MC packs are reloaded...
-        private final static Map<Identifier, String> hashCache = new HashMap<>();
+        private final static Map<Identifier, CompletableFuture<String>> hashCache = new ConcurrentHashMap<>();
 
         private final Map<Identifier, Pair<String, byte[]>> resources = new HashMap<>();
-        private final Set<Identifier> accessed = new HashSet<>();
+        // Current hash of every resource checked or loaded through this provider
+        private final Map<Identifier, String> hashes = new HashMap<>();
+        // Resources which no longer match the previous cache
+        private final Set<Identifier> changed = new HashSet<>();
+        // Resources accessed by whatever is currently being generated
+        private Set<Identifier> accessed = new HashSet<>();
 
+        /**
+         * @return null if every resource still matches, otherwise a provider with the changed resources flagged
+         */
         private static ResourceProvider fromTag(TagCompound data) {
             ResourceProvider provider = new ResourceProvider();
             Map<Identifier, String> expected = data.getMap("resources", Identifier::new, v -> v.getString("key"));
             try {
+                // Start everything first so the resources are hashed in parallel
+                Map<Identifier, CompletableFuture<String>> found = new HashMap<>();
+                for (Identifier id : expected.keySet()) {
+                    found.put(id, hashAsync(id));
+                }
                 for (Identifier id : expected.keySet()) {
                     String expectedHash = expected.get(id);
-                    String foundHash;
-                    synchronized (hashCache) {
-                        foundHash = hashCache.get(id);
-                    }
-                    if (foundHash == null) {
-                        try (InputStream stream = id.getLastResourceStream()) {
-                            if (stream instanceof InputStreamMod) {
-                                foundHash = "MOD" + ((InputStreamMod) stream).time;
-                            } else {
-                                foundHash = provider.get(id).getKey();
-                            }
-                        } catch (IOException e) {
-                            throw new RuntimeException(e);
-                        }
-                    }
+                    String foundHash = found.get(id).join();
+                    provider.hashes.put(id, foundHash);
                     if (!expectedHash.equals(foundHash)) {
-                        return provider;
+                        // Keep going, every changed resource is needed to figure out which outputs are affected
+                        provider.changed.add(id);
                     }
                 }
             } catch (RuntimeException ex) {
                 ModCore.catching(ex);
                 return null;
             }
-            return null;
+            return provider.changed.isEmpty() ? null : provider;
         }
 
-        private TagCompound toTag() {
-            Map<Identifier, String> expected = new HashMap<>();
-            for (Identifier identifier : accessed) {
-                expected.put(identifier, resources.get(identifier).getKey());
+        /**
+         * Hash of the current version of the resource, shared with (or waiting on) any other lookup of the same
+         * resource
+         */
+        private static CompletableFuture<String> hashAsync(Identifier id) {
+            CompletableFuture<String> future = hashCache.computeIfAbsent(id, key -> CompletableFuture.supplyAsync(() -> {
+                try (InputStream stream = key.getLastResourceStream()) {
+                    if (stream instanceof InputStreamMod) {
+                        return "MOD" + ((InputStreamMod) stream).time;
+                    }
+                    HashingInputStream hashing = new HashingInputStream(ResourceCache.hasher, stream);
+                    ByteStreams.exhaust(hashing);
+                    return hashing.hash().toString();
+                } catch (IOException e) {
+                    throw new CompletionException(e);
+                }
+            }, hashPool));
+            // Don't remember failures, the resource might show up later
+            future.whenComplete((hash, ex) -> {
+                if (ex != null) {
+                    hashCache.remove(id, future);
+                }
+            });
+            return future;
+        }
+
+        /**
+         * Record resource accesses into the given set until the next call
+         */
+        private void track(Set<Identifier> accessed) {
+            this.accessed = accessed;
+        }
+
+        private boolean anyChanged(Collection<Identifier> ids) {
+            for (Identifier id : ids) {
+                if (changed.contains(id)) {
+                    return true;
+                }
             }
-            return new TagCompound().setMap("resources", expected, Identifier::toString, v -> new TagCompound().setString("key", v));
+            return false;
         }
 
         private Pair<String, byte[]> get(Identifier id) {
@@ -87,9 +141,8 @@ public class ResourceCache<T> {
                     IOUtils.copy(source, sink);
                     String hash = hashing != null ? hashing.hash().toString() : "MOD" + ism.time;
                     resources.put(id, Pair.of(hash, sink.toByteArray()));
-                    synchronized (hashCache) {
-                        hashCache.put(id, hash);
-                    }
+                    hashes.put(id, hash);
+                    hashCache.put(id, CompletableFuture.completedFuture(hash));
                 } catch (IOException e) {
                     throw new RuntimeException(e);
                 }
@@ -98,7 +151,7 @@ public class ResourceCache<T> {
         }
 
         @Override
-        public byte[] apply(Identifier id) {
+        public synchronized byte[] apply(Identifier id) {
             byte[] value = get(id).getValue();
             accessed.add(id);
             return value;
@@ -111,15 +164,150 @@ public class ResourceCache<T> {
     private T intermediary;
     private final ThrowingFunction<ResourceProvider, T, IOException> constructor;
 
+    // Dependencies recorded by the previous run, null if unknown
+    private final List<Identifier> previousConstructorDeps;
+    private final Map<String, List<Identifier>> previousOutputDeps;
+    // Dependencies of this run
+    private final Set<Identifier> constructorDeps = new HashSet<>();
+    private final Map<String, Collection<Identifier>> outputDeps = new HashMap<>();
+    // Everything read by converters so far this run, the intermediary may serve these from its own caches later on
+    private final Set<Identifier> convertedDeps = new HashSet<>();
+
     public ResourceCache(Identifier id, ThrowingFunction<ResourceProvider, T, IOException> constructor) throws IOException {
         dir = ModCore.cacheFile(id);
         dir.mkdirs();
         meta = new File(dir, "meta.nbt");
         this.constructor = constructor;
-        provider = meta.exists() ?
-                ResourceProvider.fromTag(new TagCompound(Files.readAllBytes(meta.toPath()))) :
-                new ResourceProvider();
-        intermediary = provider != null ? constructor.apply(provider) : null;
+        if (meta.exists()) {
+            TagCompound data = new TagCompound(Files.readAllBytes(meta.toPath()));
+            provider = ResourceProvider.fromTag(data);
+            if (data.hasKey("constructor") && data.hasKey("outputs")) {
+                previousConstructorDeps = data.getList("constructor", ResourceCache::readIdentifier);
+                previousOutputDeps = data.getMap("outputs", k -> k, v -> v.getList("resources", ResourceCache::readIdentifier));
+            } else {
+                previousConstructorDeps = null;
+                previousOutputDeps = null;
+            }
+        } else {
+            provider = new ResourceProvider();
+            previousConstructorDeps = null;
+            previousOutputDeps = null;
+        }
+    }
+
+    /**
+     * Verify the resources referenced by every existing cache of a mod in the background.
+     *
+     * Hashes are shared with any ResourceCache created afterwards (or while this is running), so calling this early
+     * during init lets the verification overlap with other work.  Failures are left to the cache which needs the
+     * resource, the returned future always completes normally.
+     *
+     * Only call this once the resource packs are loaded, hashes are kept for the rest of the session.
+     */
+    public static CompletableFuture<Void> warmUp(String modID) {
+        File root = ModCore.cacheFile(new Identifier(modID, "warmup")).getParentFile();
+        File[] dirs = root.listFiles(File::isDirectory);
+        if (dirs == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        List<CompletableFuture<Void>> pending = new ArrayList<>();
+        for (File dir : dirs) {
+            File meta = new File(dir, "meta.nbt");
+            if (!meta.exists()) {
+                continue;
+            }
+            pending.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    return new TagCompound(Files.readAllBytes(meta.toPath())).getMap("resources", Identifier::new, v -> v.getString("key")).keySet();
+                } catch (IOException e) {
+                    throw new CompletionException(e);
+                }
+            }, hashPool).thenCompose(ids -> CompletableFuture.allOf(
+                    ids.stream().map(id -> ResourceProvider.hashAsync(id).handle((hash, ex) -> null)).toArray(CompletableFuture[]::new)
+            )).exceptionally(ex -> {
+                ModCore.warn("Unable to verify cache %s: %s", dir, ex.getMessage());
+                return null;
+            }));
+        }
+        long start = System.currentTimeMillis();
+        return CompletableFuture.allOf(pending.toArray(new CompletableFuture[0]))
+                .thenRun(() -> ModCore.debug("Verified %s %s caches in %sms", pending.size(), modID, System.currentTimeMillis() - start));
+    }
+
+    private static Identifier readIdentifier(TagCompound tag) {
+        return new Identifier(tag.getString("id"));
+    }
+
+    private static TagCompound writeIdentifier(Identifier id) {
+        return new TagCompound().setString("id", id.toString());
+    }
+
+    /**
+     * Checks if an output has to be regenerated, based on the resources it (and the constructor) used last time
+     */
+    private boolean isStale(String name) {
+        if (provider == null) {
+            // Nothing changed
+            return false;
+        }
+        if (previousOutputDeps == null || !previousOutputDeps.containsKey(name)) {
+            return true;
+        }
+        return provider.anyChanged(previousConstructorDeps) || provider.anyChanged(previousOutputDeps.get(name));
+    }
+
+    /**
+     * Build the intermediary on first use, only needed when at least one output is stale
+     */
+    private T intermediary() throws IOException {
+        if (intermediary == null) {
+            provider.track(constructorDeps);
+            intermediary = constructor.apply(provider);
+        }
+        return intermediary;
+    }
+
+    /**
+     * Run the converter against the intermediary, recording which resources the output depends on
+     *
+     * Only reads which reach the provider can be seen, anything the intermediary memoized from an earlier converter
+     * is invisible.  The output is therefore given every resource read by any converter so far in this run.
+     */
+    private GenericByteBuffer convert(String name, Function<T, GenericByteBuffer> converter) throws IOException {
+        T intermediary = intermediary();
+        Set<Identifier> deps = new HashSet<>();
+        provider.track(deps);
+        try {
+            return converter.apply(intermediary);
+        } finally {
+            provider.track(new HashSet<>());
+            convertedDeps.addAll(deps);
+            outputDeps.put(name, new HashSet<>(convertedDeps));
+        }
+    }
+
+    /**
+     * Keep the previous dependencies of an output which is still valid
+     */
+    private void reuse(String name) {
+        if (previousOutputDeps != null && previousOutputDeps.containsKey(name)) {
+            outputDeps.put(name, previousOutputDeps.get(name));
+        }
+    }
+
+    /**
+     * Add the dependencies of the outputs name is derived from to its own
+     */
+    private void inherit(String name, Collection<String> dependsOn) {
+        if (dependsOn.isEmpty()) {
+            return;
+        }
+        Set<Identifier> deps = new HashSet<>(outputDeps.getOrDefault(name, Collections.emptySet()));
+        for (String dep : dependsOn) {
+            deps.addAll(outputDeps.getOrDefault(dep, Collections.emptySet()));
+        }
+        outputDeps.put(name, deps);
     }
 
     private static void writeBuffer(File file, ByteBuffer buffer) throws IOException {
@@ -154,8 +342,8 @@ public class ResourceCache<T> {
 
             // Read number of input bytes
             int decompressedBytes = raw.getInt();
-            // Buffer to hold the decompressed data
-            ByteBuffer decompressed = ByteBuffer.allocate(decompressedBytes);
+            // Buffer to hold the decompressed data, native so it can be handed to GL as is
+            ByteBuffer decompressed = ByteBuffer.allocateDirect(decompressedBytes);
 
             // Perform the decompression and move the head to the beginning of the buffer
             decompressor.decompress(raw, decompressed);
@@ -165,39 +353,85 @@ public class ResourceCache<T> {
         }
     }
 
-    private GenericByteBuffer regenerateBuffer(File file, Function<T, GenericByteBuffer> converter) throws IOException {
+    private static void writeRaw(File file, ByteBuffer buffer) throws IOException {
+        buffer.position(0);
+        try (FileChannel channel = new FileOutputStream(file).getChannel()) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+        buffer.position(0);
+    }
+    private static ByteBuffer mapRaw(File file) throws IOException {
+        try (FileChannel channel = new FileInputStream(file).getChannel()) {
+            // Mapping outlives the channel and is unmapped on GC
+            MappedByteBuffer raw = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            // Fault the pages in now (usually on a loader thread) instead of during the GL upload
+            raw.load();
+            return raw;
+        }
+    }
+
+    private static boolean isValid(File file, boolean raw) {
+        // This sometimes happens on windows or after a failed launch attempt.
+        return file.exists() && (raw || file.length() >= Integer.BYTES);
+    }
+
+    private GenericByteBuffer regenerateBuffer(File file, boolean raw, Function<T, GenericByteBuffer> converter) throws IOException {
         GenericByteBuffer gen = converter.apply(constructor.apply(new ResourceProvider()));
-        writeBuffer(file, gen.buffer);
+        if (raw) {
+            writeRaw(file, gen.buffer);
+        } else {
+            writeBuffer(file, gen.buffer);
+        }
         gen.buffer.position(0);
         return gen;
     }
 
     public Supplier<GenericByteBuffer> getResource(String name, Function<T, GenericByteBuffer> converter) throws IOException {
-        File file = new File(dir, name + ".lz4");
+        return getResource(name, Collections.emptyList(), converter);
+    }
 
-        if (intermediary != null) {
-            writeBuffer(file, converter.apply(intermediary).buffer);
-        } else if (!file.exists() || file.length() < Integer.BYTES) {
-            // This sometimes happens on windows or after a failed launch attempt.
-            regenerateBuffer(file, converter);
+    /**
+     * @param dependsOn outputs (requested earlier from this cache) which the converter derives this one from, for
+     *                  intermediaries which memoize work between converters.  This output is regenerated whenever
+     *                  any of them are, and keeps their resource dependencies.
+     */
+    public Supplier<GenericByteBuffer> getResource(String name, Collection<String> dependsOn, Function<T, GenericByteBuffer> converter) throws IOException {
+        // Uncompressed files are mapped and returned without any copies
+        boolean raw = Config.UncompressedCache;
+        File file = new File(dir, name + (raw ? ".raw" : ".lz4"));
+
+        if (isStale(name) || dependsOn.stream().anyMatch(this::isStale)) {
+            GenericByteBuffer gen = convert(name, converter);
+            if (raw) {
+                writeRaw(file, gen.buffer);
+            } else {
+                writeBuffer(file, gen.buffer);
+            }
+        } else {
+            reuse(name);
+            if (!isValid(file, raw)) {
+                regenerateBuffer(file, raw, converter);
+            }
         }
+        inherit(name, dependsOn);
 
         return () -> {
-            if (!file.exists() || file.length() < Integer.BYTES) {
-                // This sometimes happens on windows or after a failed launch attempt.
+            if (!isValid(file, raw)) {
                 try {
-                    return regenerateBuffer(file, converter);
+                    return regenerateBuffer(file, raw, converter);
                 } catch (IOException e) {
                     throw new RuntimeException(e);
                 }
             }
 
             try {
-                return new GenericByteBuffer(readBuffer(file));
+                return new GenericByteBuffer(raw ? mapRaw(file) : readBuffer(file));
             } catch (IOException e) {
                 // Hail Mary!
                 try {
-                    return regenerateBuffer(file, converter);
+                    return regenerateBuffer(file, raw, converter);
                 } catch (IOException ex) {
                     ex.printStackTrace();
                     throw new RuntimeException(e);
@@ -206,9 +440,67 @@ public class ResourceCache<T> {
         };
     }
 
+    /**
+     * Like getResource, but the converter output is written as is and handed to the reader as a file.  This is for
+     * formats which handle their own compression and want random access instead of a fully decompressed buffer.
+     *
+     * If the reader fails the file is regenerated once before giving up.
+     */
+    public <R> Supplier<R> getFileResource(String name, Function<T, GenericByteBuffer> converter, ThrowingFunction<File, R, IOException> reader) throws IOException {
+        File file = new File(dir, name);
+
+        if (isStale(name)) {
+            Files.write(file.toPath(), convert(name, converter).bytes());
+        } else {
+            reuse(name);
+            if (!file.exists()) {
+                regenerateFile(file, converter);
+            }
+        }
+
+        return () -> {
+            try {
+                if (!file.exists()) {
+                    regenerateFile(file, converter);
+                }
+                try {
+                    return reader.apply(file);
+                } catch (IOException e) {
+                    ModCore.warn("Regenerating invalid cache file %s: %s", file, e.getMessage());
+                    regenerateFile(file, converter);
+                    return reader.apply(file);
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        };
+    }
+
+    private void regenerateFile(File file, Function<T, GenericByteBuffer> converter) throws IOException {
+        Files.write(file.toPath(), converter.apply(constructor.apply(new ResourceProvider())).bytes());
+    }
+
     public String close() throws IOException {
         if (provider != null) {
-            Files.write(meta.toPath(), provider.toTag().toBytes());
+            Collection<Identifier> constructorDeps = intermediary != null || previousConstructorDeps == null ?
+                    this.constructorDeps : previousConstructorDeps;
+
+            Map<Identifier, String> expected = new HashMap<>();
+            for (Identifier id : constructorDeps) {
+                expected.put(id, provider.hashes.get(id));
+            }
+            for (Collection<Identifier> deps : outputDeps.values()) {
+                for (Identifier id : deps) {
+                    expected.put(id, provider.hashes.get(id));
+                }
+            }
+            expected.values().removeIf(Objects::isNull);
+
+            TagCompound data = new TagCompound()
+                    .setMap("resources", expected, Identifier::toString, v -> new TagCompound().setString("key", v))
+                    .setList("constructor", new ArrayList<>(constructorDeps), ResourceCache::writeIdentifier)
+                    .setMap("outputs", outputDeps, k -> k, v -> new TagCompound().setList("resources", new ArrayList<>(v), ResourceCache::writeIdentifier));
+            Files.write(meta.toPath(), data.toBytes());
         }
         provider = null;
         intermediary = null;
@@ -233,8 +525,20 @@ public class ResourceCache<T> {
             this.buffer.asFloatBuffer().put(floats);
         }
 
+        /**
+         * @return the underlying buffer (heap, direct or mapped), positioned at the start
+         */
+        public ByteBuffer buffer() {
+            return buffer.duplicate().clear();
+        }
+
         public byte[] bytes() {
-            return buffer.array();
+            if (buffer.hasArray()) {
+                return buffer.array();
+            }
+            byte[] bytes = new byte[buffer.capacity()];
+            buffer().get(bytes);
+            return bytes;
         }
         public int[] ints() {
             int[] ints = new int[buffer.capacity() / Integer.BYTES];
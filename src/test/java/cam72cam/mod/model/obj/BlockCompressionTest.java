@@ -0,0 +1,96 @@
+package cam72cam.mod.model.obj;
+
+import org.junit.jupiter.api.Assertions;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+public class BlockCompressionTest {
+    /**
+     * Peak signal to noise ratio over the given channels (shift of each channel in the packed RGBA int)
+     */
+    private static double psnr(int[] expected, int[] actual, int... shifts) {
+        double error = 0;
+        for (int i = 0; i < expected.length; i++) {
+            for (int shift : shifts) {
+                int d = (expected[i] >>> shift & 0xFF) - (actual[i] >>> shift & 0xFF);
+                error += d * d;
+            }
+        }
+        double mse = error / (expected.length * shifts.length);
+        return mse == 0 ? Double.POSITIVE_INFINITY : 10 * Math.log10(255 * 255 / mse);
+    }
+
+    private static int[] gradient(int width, int height, boolean alpha, Random random) {
+        int[] pixels = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int r = Math.min(255, x * 255 / width + random.nextInt(6));
+                int g = Math.min(255, y * 255 / height + random.nextInt(6));
+                int b = (x + y) * 127 / (width + height) + 64;
+                int a = alpha ? 255 - (x * 255 / width) : 255;
+                pixels[y * width + x] = r << 24 | g << 16 | b << 8 | a;
+            }
+        }
+        return pixels;
+    }
+
+    @org.junit.jupiter.api.Test
+    public void testBC1() {
+        int width = 64;
+        int height = 48;
+        int[] pixels = gradient(width, height, false, new Random(1));
+        ByteBuffer encoded = BlockCompression.encode(pixels, width, height);
+        Assertions.assertEquals(BlockCompression.BC1, BlockCompression.format(encoded));
+        Assertions.assertEquals(width * height / 2, BlockCompression.blocks(encoded).remaining());
+
+        int[] decoded = BlockCompression.decode(encoded, width, height);
+        double psnr = psnr(pixels, decoded, 24, 16, 8);
+        Assertions.assertTrue(psnr > 35, "PSNR " + psnr);
+        for (int pixel : decoded) {
+            Assertions.assertEquals(0xFF, pixel & 0xFF);
+        }
+    }
+
+    @org.junit.jupiter.api.Test
+    public void testBC3() {
+        int width = 37;
+        int height = 19;
+        int[] pixels = gradient(width, height, true, new Random(2));
+        ByteBuffer encoded = BlockCompression.encode(pixels, width, height);
+        Assertions.assertEquals(BlockCompression.BC3, BlockCompression.format(encoded));
+        // Partial blocks round up
+        Assertions.assertEquals(10 * 5 * 16, BlockCompression.blocks(encoded).remaining());
+
+        int[] decoded = BlockCompression.decode(encoded, width, height);
+        double color = psnr(pixels, decoded, 24, 16, 8);
+        double alpha = psnr(pixels, decoded, 0);
+        Assertions.assertTrue(color > 32, "Color PSNR " + color);
+        Assertions.assertTrue(alpha > 45, "Alpha PSNR " + alpha);
+    }
+
+    @org.junit.jupiter.api.Test
+    public void testCutout() {
+        // Fully transparent and opaque texels keep their exact alpha
+        int width = 16;
+        int height = 16;
+        Random random = new Random(3);
+        int[] pixels = new int[width * height];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = random.nextInt() & 0xFFFFFF00 | (random.nextBoolean() ? 0xFF : 0);
+        }
+        int[] decoded = BlockCompression.decode(BlockCompression.encode(pixels, width, height), width, height);
+        for (int i = 0; i < pixels.length; i++) {
+            Assertions.assertEquals(pixels[i] & 0xFF, decoded[i] & 0xFF);
+        }
+    }
+
+    @org.junit.jupiter.api.Test
+    public void testSolid() {
+        int[] pixels = new int[8 * 8];
+        java.util.Arrays.fill(pixels, 0x8040C0FF);
+        int[] decoded = BlockCompression.decode(BlockCompression.encode(pixels, 8, 8), 8, 8);
+        // Better than the nearest 565 color
+        Assertions.assertTrue(psnr(pixels, decoded, 24, 16, 8) > 45);
+    }
+}
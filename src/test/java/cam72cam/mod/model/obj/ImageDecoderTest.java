@@ -0,0 +1,270 @@
+package cam72cam.mod.model.obj;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.jupiter.api.Assertions;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+public class ImageDecoderTest {
+    private static void chunk(DataOutputStream out, String type, byte[] data) throws IOException {
+        byte[] name = type.getBytes(StandardCharsets.US_ASCII);
+        CRC32 crc = new CRC32();
+        crc.update(name);
+        crc.update(data);
+        out.writeInt(data.length);
+        out.write(name);
+        out.write(data);
+        out.writeInt((int) crc.getValue());
+    }
+
+    /**
+     * Minimal PNG encoder, every row gets a random filter and the image data is split over many IDAT chunks
+     */
+    private static byte[] png(int width, int height, int colorType, int bitDepth, byte[][] rows, byte[] plte, byte[] trns, Random random) throws IOException {
+        int channels = new int[]{1, 0, 3, 1, 2, 0, 4}[colorType];
+        int stride = Math.max(1, channels * bitDepth / 8);
+        ByteArrayOutputStream raw = new ByteArrayOutputStream();
+        byte[] previous = new byte[rows[0].length];
+        for (byte[] row : rows) {
+            int filter = random.nextInt(5);
+            raw.write(filter);
+            for (int i = 0; i < row.length; i++) {
+                int a = i >= stride ? row[i - stride] & 0xFF : 0;
+                int b = previous[i] & 0xFF;
+                int c = i >= stride ? previous[i - stride] & 0xFF : 0;
+                int p = a + b - c;
+                int pa = Math.abs(p - a), pb = Math.abs(p - b), pc = Math.abs(p - c);
+                int predictor = new int[]{0, a, b, (a + b) >> 1, pa <= pb && pa <= pc ? a : pb <= pc ? b : c}[filter];
+                raw.write(row[i] - predictor);
+            }
+            previous = row;
+        }
+
+        Deflater deflater = new Deflater();
+        deflater.setInput(raw.toByteArray());
+        deflater.finish();
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        while (!deflater.finished()) {
+            compressed.write(buffer, 0, deflater.deflate(buffer));
+        }
+        deflater.end();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.write(new byte[]{(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'});
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        DataOutputStream headerOut = new DataOutputStream(header);
+        headerOut.writeInt(width);
+        headerOut.writeInt(height);
+        headerOut.write(new byte[]{(byte) bitDepth, (byte) colorType, 0, 0, 0});
+        chunk(out, "IHDR", header.toByteArray());
+        if (plte != null) {
+            chunk(out, "PLTE", plte);
+        }
+        if (trns != null) {
+            chunk(out, "tRNS", trns);
+        }
+        byte[] data = compressed.toByteArray();
+        for (int i = 0; i < data.length; i += 97) {
+            byte[] part = new byte[Math.min(97, data.length - i)];
+            System.arraycopy(data, i, part, 0, part.length);
+            chunk(out, "IDAT", part);
+        }
+        chunk(out, "IEND", new byte[0]);
+        return bytes.toByteArray();
+    }
+
+    private static int[] decode(byte[] data) throws IOException {
+        BufferedImage image = ImageDecoder.read(data);
+        Assertions.assertNotNull(image);
+        Assertions.assertEquals(BufferedImage.TYPE_INT_ARGB, image.getType());
+        return image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth());
+    }
+
+    @org.junit.jupiter.api.Test
+    public void testPNGColorTypes() throws IOException {
+        Random random = new Random(11);
+        int width = 13;
+        int height = 7;
+        for (int colorType : new int[]{0, 2, 3, 4, 6}) {
+            for (int bitDepth : new int[]{1, 2, 4, 8, 16}) {
+                if (bitDepth < 8 && colorType != 0 && colorType != 3 || bitDepth == 16 && colorType == 3) {
+                    continue;
+                }
+                int channels = new int[]{1, 0, 3, 1, 2, 0, 4}[colorType];
+                int max = (1 << bitDepth) - 1;
+                int[][][] samples = new int[height][width][channels];
+                byte[][] rows = new byte[height][(width * channels * bitDepth + 7) / 8];
+                for (int y = 0; y < height; y++) {
+                    for (int x = 0; x < width; x++) {
+                        for (int c = 0; c < channels; c++) {
+                            int sample = random.nextInt(colorType == 3 ? Math.min(max + 1, 5) : max + 1);
+                            samples[y][x][c] = sample;
+                            int bit = (x * channels + c) * bitDepth;
+                            if (bitDepth == 16) {
+                                rows[y][bit / 8] = (byte) (sample >> 8);
+                                rows[y][bit / 8 + 1] = (byte) sample;
+                            } else {
+                                rows[y][bit / 8] |= sample << (8 - bitDepth - bit % 8);
+                            }
+                        }
+                    }
+                }
+
+                byte[] plte = null;
+                byte[] trns = null;
+                int[] palette = new int[5];
+                if (colorType == 3) {
+                    plte = new byte[palette.length * 3];
+                    trns = new byte[3];
+                    for (int i = 0; i < palette.length; i++) {
+                        int rgb = random.nextInt(0x1000000);
+                        plte[i * 3] = (byte) (rgb >> 16);
+                        plte[i * 3 + 1] = (byte) (rgb >> 8);
+                        plte[i * 3 + 2] = (byte) rgb;
+                        int alpha = i < trns.length ? random.nextInt(256) : 255;
+                        if (i < trns.length) {
+                            trns[i] = (byte) alpha;
+                        }
+                        palette[i] = alpha << 24 | rgb;
+                    }
+                }
+                // Color key transparency, uses the first pixel's color
+                int[] key = samples[0][0];
+                if (colorType == 0) {
+                    trns = new byte[]{(byte) (key[0] >> 8), (byte) key[0]};
+                }
+                if (colorType == 2) {
+                    trns = new byte[6];
+                    for (int c = 0; c < 3; c++) {
+                        trns[c * 2] = (byte) (key[c] >> 8);
+                        trns[c * 2 + 1] = (byte) key[c];
+                    }
+                }
+
+                int[] decoded = decode(png(width, height, colorType, bitDepth, rows, plte, trns, random));
+                for (int y = 0; y < height; y++) {
+                    for (int x = 0; x < width; x++) {
+                        int[] s = samples[y][x];
+                        int[] s8 = new int[channels];
+                        for (int c = 0; c < channels; c++) {
+                            s8[c] = bitDepth == 16 ? s[c] >> 8 : s[c] * 255 / max;
+                        }
+                        boolean keyed = (colorType == 0 || colorType == 2) && java.util.Arrays.equals(s, key);
+                        int expected;
+                        switch (colorType) {
+                            case 0:
+                                expected = (keyed ? 0 : 0xFF000000) | s8[0] << 16 | s8[0] << 8 | s8[0];
+                                break;
+                            case 2:
+                                expected = (keyed ? 0 : 0xFF000000) | s8[0] << 16 | s8[1] << 8 | s8[2];
+                                break;
+                            case 3:
+                                expected = palette[s[0]];
+                                break;
+                            case 4:
+                                expected = s8[1] << 24 | s8[0] << 16 | s8[0] << 8 | s8[0];
+                                break;
+                            default:
+                                expected = s8[3] << 24 | s8[0] << 16 | s8[1] << 8 | s8[2];
+                                break;
+                        }
+                        Assertions.assertEquals(expected, decoded[y * width + x], String.format("type %s depth %s at %s,%s", colorType, bitDepth, x, y));
+                    }
+                }
+            }
+        }
+    }
+
+    @org.junit.jupiter.api.Test
+    public void testMatchesImageIO() throws IOException {
+        Random random = new Random(5);
+        for (int type : new int[]{BufferedImage.TYPE_INT_ARGB, BufferedImage.TYPE_3BYTE_BGR, BufferedImage.TYPE_BYTE_INDEXED}) {
+            BufferedImage image = new BufferedImage(37, 21, type);
+            for (int x = 0; x < image.getWidth(); x++) {
+                for (int y = 0; y < image.getHeight(); y++) {
+                    image.setRGB(x, y, random.nextInt());
+                }
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ImageIO.write(image, "png", out);
+            BufferedImage expected = ImageIO.read(new ByteArrayInputStream(out.toByteArray()));
+            Assertions.assertArrayEquals(
+                    expected.getRGB(0, 0, expected.getWidth(), expected.getHeight(), null, 0, expected.getWidth()),
+                    decode(out.toByteArray())
+            );
+        }
+    }
+
+    @org.junit.jupiter.api.Test
+    public void testTGA() throws IOException {
+        Random random = new Random(3);
+        int width = 9;
+        int height = 4;
+        int[] pixels = new int[width * height];
+        for (int i = 0; i < pixels.length; i++) {
+            // Runs of repeated pixels for RLE
+            pixels[i] = i % 3 == 0 ? random.nextInt() : pixels[Math.max(0, i - 1)];
+        }
+
+        for (boolean rle : new boolean[]{false, true}) {
+            for (boolean topDown : new boolean[]{false, true}) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                out.write(new byte[]{0, 0, (byte) (rle ? 10 : 2), 0, 0, 0, 0, 0, 0, 0, 0, 0});
+                out.write(new byte[]{(byte) width, 0, (byte) height, 0, 32, (byte) (8 | (topDown ? 0x20 : 0))});
+                for (int row = 0; row < height; row++) {
+                    int y = topDown ? row : height - 1 - row;
+                    for (int x = 0; x < width; x++) {
+                        int argb = pixels[y * width + x];
+                        if (rle) {
+                            // Single pixel packets, alternating raw and repeat
+                            out.write(x % 2 == 0 ? 0 : 0x80);
+                        }
+                        out.write(new byte[]{(byte) argb, (byte) (argb >> 8), (byte) (argb >> 16), (byte) (argb >> 24)});
+                    }
+                }
+                Assertions.assertArrayEquals(pixels, decode(out.toByteArray()), String.format("rle %s top down %s", rle, topDown));
+            }
+        }
+    }
+
+    @org.junit.jupiter.api.Test
+    public void testSize() throws IOException {
+        BufferedImage image = new BufferedImage(23, 17, BufferedImage.TYPE_3BYTE_BGR);
+        for (String format : new String[]{"png", "jpg"}) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ImageIO.write(image, format, out);
+            Assertions.assertEquals(Pair.of(23, 17), ImageDecoder.size(out.toByteArray()), format);
+        }
+
+        byte[] tga = new byte[18 + 23 * 17 * 3];
+        tga[2] = 2;
+        tga[12] = 23;
+        tga[14] = 17;
+        tga[16] = 24;
+        Assertions.assertEquals(Pair.of(23, 17), ImageDecoder.size(tga));
+
+        Assertions.assertNull(ImageDecoder.size(new byte[]{'G', 'I', 'F', '8', '9', 'a'}));
+    }
+
+    @org.junit.jupiter.api.Test
+    public void testUnsupported() throws IOException {
+        Assertions.assertNull(ImageDecoder.read(new byte[]{(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, 0}));
+
+        BufferedImage image = new BufferedImage(4, 4, BufferedImage.TYPE_INT_ARGB);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", out);
+        byte[] data = out.toByteArray();
+        Assertions.assertThrows(IOException.class, () -> ImageDecoder.read(java.util.Arrays.copyOf(data, data.length / 2)));
+    }
+}
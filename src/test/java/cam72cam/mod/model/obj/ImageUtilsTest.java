@@ -0,0 +1,53 @@
+package cam72cam.mod.model.obj;
+
+import org.junit.jupiter.api.Assertions;
+
+import java.util.Arrays;
+
+public class ImageUtilsTest {
+    private static int rgba(int r, int g, int b, int a) {
+        return r << 24 | g << 16 | b << 8 | a;
+    }
+
+    @org.junit.jupiter.api.Test
+    public void testUniformColor() {
+        int color = rgba(200, 100, 50, 255);
+        int[] pixels = new int[37 * 23];
+        Arrays.fill(pixels, color);
+        // Uneven ratios, target pixels straddle source pixels
+        for (int[] size : new int[][]{{18, 11}, {10, 7}, {1, 1}, {37, 23}}) {
+            int[] target = ImageUtils.downsample(pixels, 37, 23, size[0], size[1]);
+            Assertions.assertEquals(size[0] * size[1], target.length);
+            for (int pixel : target) {
+                Assertions.assertEquals(color, pixel);
+            }
+        }
+    }
+
+    @org.junit.jupiter.api.Test
+    public void testAverage() {
+        int[] pixels = {
+                rgba(0, 0, 0, 255), rgba(255, 255, 255, 255),
+                rgba(100, 0, 0, 255), rgba(0, 100, 0, 255),
+        };
+        int[] target = ImageUtils.downsample(pixels, 2, 2, 1, 1);
+        Assertions.assertEquals(rgba(89, 89, 64, 255), target[0]);
+
+        int[] halves = ImageUtils.downsample(pixels, 2, 2, 1, 2);
+        Assertions.assertEquals(rgba(128, 128, 128, 255), halves[0]);
+        Assertions.assertEquals(rgba(50, 50, 0, 255), halves[1]);
+    }
+
+    @org.junit.jupiter.api.Test
+    public void testTransparentDoesNotBleed() {
+        int[] pixels = {
+                rgba(255, 0, 0, 255), rgba(0, 0, 255, 0),
+                rgba(255, 0, 0, 255), rgba(0, 0, 0, 0),
+        };
+        int[] target = ImageUtils.downsample(pixels, 2, 2, 1, 1);
+        Assertions.assertEquals(rgba(255, 0, 0, 128), target[0]);
+
+        int[] clear = ImageUtils.downsample(new int[]{rgba(10, 20, 30, 0), 0}, 2, 1, 1, 1);
+        Assertions.assertEquals(0, clear[0]);
+    }
+}
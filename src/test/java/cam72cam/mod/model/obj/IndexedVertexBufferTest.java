@@ -0,0 +1,80 @@
+package cam72cam.mod.model.obj;
+
+import org.junit.jupiter.api.Assertions;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+public class IndexedVertexBufferTest {
+    private static void assertExpandsTo(VertexBuffer expected, IndexedVertexBuffer indexed) {
+        int stride = expected.stride;
+        Assertions.assertEquals(expected.data.length / stride, indexed.indices.length);
+        for (int v = 0; v < indexed.indices.length; v++) {
+            for (int c = 0; c < stride; c++) {
+                Assertions.assertEquals(
+                        Float.floatToRawIntBits(expected.data[v * stride + c]),
+                        Float.floatToRawIntBits(indexed.vertices.data[indexed.indices[v] * stride + c])
+                );
+            }
+        }
+    }
+
+    @org.junit.jupiter.api.Test
+    public void testSharedVertices() {
+        // Grid of quads, each interior corner is shared by 6 triangles
+        int size = 20;
+        VertexBuffer vb = new VertexBuffer(size * size * 2, true);
+        int v = 0;
+        for (int x = 0; x < size; x++) {
+            for (int y = 0; y < size; y++) {
+                int[][] corners = {{x, y}, {x + 1, y}, {x + 1, y + 1}, {x, y}, {x + 1, y + 1}, {x, y + 1}};
+                for (int[] corner : corners) {
+                    int base = v++ * vb.stride;
+                    vb.data[base + vb.vertexOffset] = corner[0];
+                    vb.data[base + vb.vertexOffset + 2] = corner[1];
+                    vb.data[base + vb.textureOffset] = corner[0] / (float) size;
+                    vb.data[base + vb.textureOffset + 1] = corner[1] / (float) size;
+                    vb.data[base + vb.colorOffset + 3] = 1;
+                    vb.data[base + vb.normalOffset + 1] = 1;
+                }
+            }
+        }
+
+        IndexedVertexBuffer indexed = new IndexedVertexBuffer(vb);
+        Assertions.assertEquals((size + 1) * (size + 1), indexed.vertexCount());
+        Assertions.assertTrue(indexed.isShort());
+        assertExpandsTo(vb, indexed);
+
+        ByteBuffer indices = indexed.indexData();
+        Assertions.assertEquals(indexed.indices.length * Short.BYTES, indices.remaining());
+        for (int index : indexed.indices) {
+            Assertions.assertEquals(index, indices.getShort() & 0xFFFF);
+        }
+    }
+
+    @org.junit.jupiter.api.Test
+    public void testUniqueVertices() {
+        Random random = new Random(7);
+        VertexBuffer vb = new VertexBuffer(30000, false);
+        for (int i = 0; i < vb.data.length; i++) {
+            vb.data[i] = random.nextFloat();
+        }
+        // -0 and 0 are different bits, keep them apart
+        vb.data[0] = 0f;
+        System.arraycopy(vb.data, 0, vb.data, vb.stride, vb.stride);
+        vb.data[vb.stride] = -0f;
+
+        IndexedVertexBuffer indexed = new IndexedVertexBuffer(vb);
+        Assertions.assertEquals(vb.data.length / vb.stride, indexed.vertexCount());
+        Assertions.assertFalse(indexed.isShort());
+        assertExpandsTo(vb, indexed);
+        Assertions.assertEquals(indexed.indices.length * Integer.BYTES, indexed.indexData().remaining());
+    }
+
+    @org.junit.jupiter.api.Test
+    public void testEmpty() {
+        IndexedVertexBuffer indexed = new IndexedVertexBuffer(new VertexBuffer(0, false));
+        Assertions.assertEquals(0, indexed.vertexCount());
+        Assertions.assertEquals(0, indexed.indices.length);
+    }
+}
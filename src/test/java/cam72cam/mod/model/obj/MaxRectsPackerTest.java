@@ -0,0 +1,49 @@
+package cam72cam.mod.model.obj;
+
+import org.junit.jupiter.api.Assertions;
+
+import java.util.Random;
+
+public class MaxRectsPackerTest {
+    private static void assertValid(int[] widths, int[] heights, MaxRectsPacker.Result result) {
+        for (int i = 0; i < widths.length; i++) {
+            Assertions.assertTrue(result.x[i] >= 0 && result.y[i] >= 0);
+            Assertions.assertTrue(result.x[i] + widths[i] <= result.width);
+            Assertions.assertTrue(result.y[i] + heights[i] <= result.height);
+            for (int j = i + 1; j < widths.length; j++) {
+                boolean apart = result.x[i] + widths[i] <= result.x[j] || result.x[j] + widths[j] <= result.x[i]
+                        || result.y[i] + heights[i] <= result.y[j] || result.y[j] + heights[j] <= result.y[i];
+                Assertions.assertTrue(apart, String.format("%s overlaps %s", i, j));
+            }
+        }
+    }
+
+    @org.junit.jupiter.api.Test
+    public void testSquares() {
+        int[] sizes = {64, 64, 64, 64};
+        MaxRectsPacker.Result result = MaxRectsPacker.pack(sizes, sizes);
+        assertValid(sizes, sizes, result);
+        Assertions.assertEquals(128, result.width);
+        Assertions.assertEquals(128, result.height);
+    }
+
+    @org.junit.jupiter.api.Test
+    public void testRandom() {
+        Random random = new Random(9);
+        for (int run = 0; run < 20; run++) {
+            int count = 1 + random.nextInt(60);
+            int[] widths = new int[count];
+            int[] heights = new int[count];
+            long area = 0;
+            for (int i = 0; i < count; i++) {
+                widths[i] = 16 << random.nextInt(5);
+                heights[i] = 16 << random.nextInt(5);
+                area += (long) widths[i] * heights[i];
+            }
+            MaxRectsPacker.Result result = MaxRectsPacker.pack(widths, heights);
+            assertValid(widths, heights, result);
+            // Power of two sizes pack well
+            Assertions.assertTrue(area >= result.width * (long) result.height * 0.6, String.format("%s in %sx%s", area, result.width, result.height));
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package cam72cam.mod.model.obj;
+
+import cam72cam.mod.math.Vec3d;
+import org.junit.jupiter.api.Assertions;
+
+import java.util.Arrays;
+import java.util.List;
+
+public class MeshSimplifierTest {
+    private static void corner(VertexBuffer vb, int idx, float x, float y, float z, float u, float v) {
+        int base = idx * vb.stride;
+        vb.data[base + vb.vertexOffset] = x;
+        vb.data[base + vb.vertexOffset + 1] = y;
+        vb.data[base + vb.vertexOffset + 2] = z;
+        vb.data[base + vb.textureOffset] = u;
+        vb.data[base + vb.textureOffset + 1] = v;
+        vb.data[base + vb.colorOffset + 3] = 1;
+    }
+
+    /**
+     * Flat size x size grid of quads in the xz plane, facing up
+     */
+    private static VertexBuffer grid(int size) {
+        VertexBuffer vb = new VertexBuffer(size * size * 2, false);
+        int idx = 0;
+        for (int x = 0; x < size; x++) {
+            for (int z = 0; z < size; z++) {
+                int[][] corners = {{x, z}, {x, z + 1}, {x + 1, z + 1}, {x, z}, {x + 1, z + 1}, {x + 1, z}};
+                for (int[] c : corners) {
+                    corner(vb, idx++, c[0], 0, c[1], c[0] / (float) size, c[1] / (float) size);
+                }
+            }
+        }
+        return vb;
+    }
+
+    private static double area(VertexBuffer vb, int faceStart, int faceStop) {
+        double area = 0;
+        for (int f = faceStart; f <= faceStop; f++) {
+            int a = f * 3 * vb.stride, b = a + vb.stride, c = b + vb.stride;
+            double ux = vb.data[b] - vb.data[a], uz = vb.data[b + 2] - vb.data[a + 2];
+            double vx = vb.data[c] - vb.data[a], vz = vb.data[c + 2] - vb.data[a + 2];
+            // Signed, y component of the face normal
+            area += (uz * vx - ux * vz) / 2;
+        }
+        return area;
+    }
+
+    @org.junit.jupiter.api.Test
+    public void testPlaneKeepsShape() {
+        int size = 20;
+        VertexBuffer vb = grid(size);
+        int faces = size * size * 2;
+        List<OBJGroup> groups = Arrays.asList(
+                new OBJGroup("a", 0, faces / 2 - 1, Vec3d.ZERO, Vec3d.ZERO, Vec3d.ZERO),
+                new OBJGroup("b", faces / 2, faces - 1, Vec3d.ZERO, Vec3d.ZERO, Vec3d.ZERO)
+        );
+
+        MeshSimplifier.Mesh lod = MeshSimplifier.simplify(vb, groups, 0.25f);
+        Assertions.assertEquals(2, lod.groups.size());
+        Assertions.assertEquals(0, lod.groups.get(0).faceStart);
+        Assertions.assertEquals(lod.groups.get(0).faceStop + 1, lod.groups.get(1).faceStart);
+        Assertions.assertEquals(lod.vbo.data.length / lod.vbo.stride / 3, lod.groups.get(1).faceStop + 1);
+
+        for (int g = 0; g < groups.size(); g++) {
+            OBJGroup before = groups.get(g);
+            OBJGroup after = lod.groups.get(g);
+            int count = after.faceStop - after.faceStart + 1;
+            Assertions.assertTrue(count > 0);
+            Assertions.assertTrue(count <= (before.faceStop - before.faceStart + 1) / 4, "faces " + count);
+            // No flipped or missing faces
+            Assertions.assertEquals(area(vb, before.faceStart, before.faceStop), area(lod.vbo, after.faceStart, after.faceStop), 1e-6);
+        }
+
+        // Texture coordinates still line up with positions
+        for (int v = 0; v < lod.vbo.data.length / lod.vbo.stride; v++) {
+            int base = v * lod.vbo.stride;
+            Assertions.assertEquals(lod.vbo.data[base + lod.vbo.vertexOffset] / size, lod.vbo.data[base + lod.vbo.textureOffset], 1e-6);
+            Assertions.assertEquals(lod.vbo.data[base + lod.vbo.vertexOffset + 2] / size, lod.vbo.data[base + lod.vbo.textureOffset + 1], 1e-6);
+        }
+    }
+
+    @org.junit.jupiter.api.Test
+    public void testSeamsAreKept() {
+        int size = 10;
+        VertexBuffer vb = grid(size);
+        // Every face gets its own texture region, nothing can be collapsed
+        for (int v = 0; v < vb.data.length / vb.stride; v++) {
+            vb.data[v * vb.stride + vb.textureOffset] = v / 3;
+        }
+        int faces = size * size * 2;
+        List<OBJGroup> groups = Arrays.asList(new OBJGroup("a", 0, faces - 1, Vec3d.ZERO, Vec3d.ZERO, Vec3d.ZERO));
+        MeshSimplifier.Mesh lod = MeshSimplifier.simplify(vb, groups, 0.25f);
+        Assertions.assertArrayEquals(vb.data, lod.vbo.data);
+    }
+
+    @org.junit.jupiter.api.Test
+    public void testEmptyGroup() {
+        VertexBuffer vb = grid(2);
+        List<OBJGroup> groups = Arrays.asList(
+                new OBJGroup("empty", 0, -1, Vec3d.ZERO, Vec3d.ZERO, Vec3d.ZERO),
+                new OBJGroup("a", 0, 7, Vec3d.ZERO, Vec3d.ZERO, Vec3d.ZERO)
+        );
+        MeshSimplifier.Mesh lod = MeshSimplifier.simplify(vb, groups, 0.5f);
+        Assertions.assertEquals(-1, lod.groups.get(0).faceStop);
+        Assertions.assertEquals(0, lod.groups.get(1).faceStart);
+        Assertions.assertTrue(lod.groups.get(1).faceStop < 7);
+    }
+}
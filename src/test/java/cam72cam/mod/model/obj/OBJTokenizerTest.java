@@ -0,0 +1,61 @@
+package cam72cam.mod.model.obj;
+
+import org.junit.jupiter.api.Assertions;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Random;
+
+public class OBJTokenizerTest {
+    private static float parse(String value) {
+        byte[] data = value.getBytes(StandardCharsets.UTF_8);
+        return OBJTokenizer.parseFloat(data, 0, data.length);
+    }
+
+    @org.junit.jupiter.api.Test
+    public void testFloatsMatchJDK() {
+        String[] cases = new String[]{
+                "0", "-0", "0.0", "-0.0", "1", "-1", "+1", "1.5", ".5", "-.5", "5.",
+                "0.000001", "123456.789", "-98.7654321", "1e3", "1E-3", "-2.5e+2",
+                "1.000000000000000000001", "3.4028235e38", "1.4e-45", "1e-40", "1.0f", "NaN", "-Infinity",
+        };
+        for (String value : cases) {
+            Assertions.assertEquals(Float.floatToRawIntBits(Float.parseFloat(value)), Float.floatToRawIntBits(parse(value)), value);
+        }
+
+        Random random = new Random(1234);
+        for (int i = 0; i < 100000; i++) {
+            float f = Float.intBitsToFloat(random.nextInt());
+            if (!Float.isFinite(f)) {
+                continue;
+            }
+            String value = random.nextBoolean() ? Float.toString(f) : String.format(Locale.ROOT, "%.6f", (random.nextDouble() - 0.5) * 1000);
+            Assertions.assertEquals(Float.floatToRawIntBits(Float.parseFloat(value)), Float.floatToRawIntBits(parse(value)), value);
+        }
+    }
+
+    @org.junit.jupiter.api.Test
+    public void testLines() {
+        byte[] data = "# comment\n\nv 1 2 3\r\nf 1/2/3 4//5\t6/7\n  g  a name  \n".getBytes(StandardCharsets.UTF_8);
+        OBJTokenizer line = new OBJTokenizer(data, 0, data.length);
+
+        Assertions.assertTrue(line.nextLine());
+        Assertions.assertEquals(4, line.tokens());
+        Assertions.assertTrue(line.is(0, "v"));
+        Assertions.assertEquals(3f, line.parseFloat(3));
+
+        Assertions.assertTrue(line.nextLine());
+        Assertions.assertTrue(line.is(0, "f"));
+        int[] points = new int[9];
+        Assertions.assertTrue(line.parsePoint(1, points, 0));
+        Assertions.assertTrue(line.parsePoint(2, points, 3));
+        Assertions.assertFalse(line.parsePoint(3, points, 6));
+        Assertions.assertArrayEquals(new int[]{0, 1, 2, 3, -1, 4, 5, 6, -1}, points);
+
+        Assertions.assertTrue(line.nextLine());
+        Assertions.assertTrue(line.is(0, "g"));
+        Assertions.assertEquals("a name", line.rest(1));
+
+        Assertions.assertFalse(line.nextLine());
+    }
+}
@@ -0,0 +1,89 @@
+package cam72cam.mod.model.obj;
+
+import org.junit.jupiter.api.Assertions;
+
+import java.util.Random;
+
+public class PackedVertexBufferTest {
+    private static VertexBuffer randomBuffer(int faces, boolean normals) {
+        Random random = new Random(42);
+        VertexBuffer vb = new VertexBuffer(faces, normals);
+        for (int v = 0; v < faces * vb.vertsPerFace; v++) {
+            int base = v * vb.stride;
+            vb.data[base + vb.vertexOffset] = (random.nextFloat() - 0.5f) * 40;
+            vb.data[base + vb.vertexOffset + 1] = random.nextFloat() * 3;
+            vb.data[base + vb.vertexOffset + 2] = -7 + random.nextFloat();
+            vb.data[base + vb.textureOffset] = random.nextFloat();
+            vb.data[base + vb.textureOffset + 1] = random.nextFloat();
+            for (int c = 0; c < 4; c++) {
+                vb.data[base + vb.colorOffset + c] = random.nextFloat();
+            }
+            if (normals) {
+                double x = random.nextGaussian(), y = random.nextGaussian(), z = random.nextGaussian();
+                double len = Math.sqrt(x * x + y * y + z * z);
+                vb.data[base + vb.normalOffset] = (float) (x / len);
+                vb.data[base + vb.normalOffset + 1] = (float) (y / len);
+                vb.data[base + vb.normalOffset + 2] = (float) (z / len);
+            }
+        }
+        return vb;
+    }
+
+    private static void assertClose(VertexBuffer expected, VertexBuffer actual, int offset, int components, float tolerance) {
+        for (int v = 0; v < expected.data.length / expected.stride; v++) {
+            for (int c = 0; c < components; c++) {
+                float a = expected.data[v * expected.stride + offset + c];
+                float b = actual.data[v * actual.stride + offset + c];
+                Assertions.assertEquals(a, b, tolerance, String.format("vertex %s component %s", v, offset + c));
+            }
+        }
+    }
+
+    @org.junit.jupiter.api.Test
+    public void testRoundTrip() {
+        for (boolean normals : new boolean[]{true, false}) {
+            VertexBuffer vb = randomBuffer(1000, normals);
+            PackedVertexBuffer packed = new PackedVertexBuffer(vb);
+            Assertions.assertEquals(vb.data.length / vb.stride * PackedVertexBuffer.STRIDE, packed.data.capacity());
+
+            VertexBuffer unpacked = packed.unpack();
+            Assertions.assertEquals(vb.data.length, unpacked.data.length);
+            Assertions.assertEquals(normals, unpacked.hasNormals);
+
+            // Half a quantization step, plus some room for float rounding
+            float position = Math.max(packed.extentX, Math.max(packed.extentY, packed.extentZ)) / 65535 * 0.51f;
+            assertClose(vb, unpacked, vb.vertexOffset, 3, position);
+            assertClose(vb, unpacked, vb.textureOffset, 2, 0.51f / 65535);
+            assertClose(vb, unpacked, vb.colorOffset, 4, 0.51f / 255);
+            if (normals) {
+                assertClose(vb, unpacked, vb.normalOffset, 3, 0.51f / 127);
+            }
+        }
+    }
+
+    @org.junit.jupiter.api.Test
+    public void testFlatAndEmpty() {
+        VertexBuffer vb = new VertexBuffer(2, false);
+        for (int v = 0; v < 2 * vb.vertsPerFace; v++) {
+            vb.data[v * vb.stride + vb.vertexOffset] = v;
+            vb.data[v * vb.stride + vb.vertexOffset + 1] = 5;
+        }
+        PackedVertexBuffer packed = new PackedVertexBuffer(vb);
+        Assertions.assertEquals(1, packed.extentY);
+        Assertions.assertEquals(1, packed.extentZ);
+        assertClose(vb, packed.unpack(), vb.vertexOffset, 3, 0.51f * packed.extentX / 65535);
+
+        PackedVertexBuffer empty = new PackedVertexBuffer(new VertexBuffer(0, true));
+        Assertions.assertEquals(0, empty.vertices);
+        Assertions.assertEquals(0, empty.unpack().data.length);
+    }
+
+    @org.junit.jupiter.api.Test
+    public void testEncodeClamps() {
+        Assertions.assertEquals(0, PackedVertexBuffer.decodeUnorm16(PackedVertexBuffer.encodeUnorm16(-1)));
+        Assertions.assertEquals(1, PackedVertexBuffer.decodeUnorm16(PackedVertexBuffer.encodeUnorm16(2)));
+        Assertions.assertEquals(1, PackedVertexBuffer.decodeUnorm8(PackedVertexBuffer.encodeUnorm8(1)));
+        Assertions.assertEquals(-1, PackedVertexBuffer.decodeSnorm8(PackedVertexBuffer.encodeSnorm8(-3)));
+        Assertions.assertEquals(-1, PackedVertexBuffer.decodeSnorm8(PackedVertexBuffer.encodeSnorm8(Float.NaN)));
+    }
+}
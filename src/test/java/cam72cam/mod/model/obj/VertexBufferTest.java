@@ -0,0 +1,68 @@
+package cam72cam.mod.model.obj;
+
+import cam72cam.mod.math.Vec3d;
+import org.junit.jupiter.api.Assertions;
+import util.Matrix4;
+
+import java.util.Random;
+
+public class VertexBufferTest {
+    private static VertexBuffer random(int faces, boolean hasNormals, Random random) {
+        VertexBuffer vb = new VertexBuffer(faces, hasNormals);
+        for (int i = 0; i < vb.data.length; i++) {
+            vb.data[i] = random.nextFloat() * 2 - 1;
+        }
+        return vb;
+    }
+
+    @org.junit.jupiter.api.Test
+    public void testPositions() {
+        Random random = new Random(4);
+        VertexBuffer vb = random(10, false, random);
+        Matrix4 m = new Matrix4().translate(3, -2, 7).rotate(Math.toRadians(30), 0, 1, 0).scale(2, 2, 2);
+
+        int from = 2 * vb.vertsPerFace * vb.stride;
+        int to = 7 * vb.vertsPerFace * vb.stride;
+        float[] dest = new float[to - from + 5];
+        vb.transform(from, to, m, dest, 5);
+
+        for (int i = from; i < to; i += vb.stride) {
+            Vec3d expected = m.apply(new Vec3d(vb.data[i], vb.data[i + 1], vb.data[i + 2]));
+            int o = i - from + 5;
+            Assertions.assertEquals(expected.x, dest[o], 1e-5);
+            Assertions.assertEquals(expected.y, dest[o + 1], 1e-5);
+            Assertions.assertEquals(expected.z, dest[o + 2], 1e-5);
+            // Everything else is copied as is
+            for (int c = 3; c < vb.stride; c++) {
+                Assertions.assertEquals(vb.data[i + c], dest[o + c]);
+            }
+        }
+    }
+
+    @org.junit.jupiter.api.Test
+    public void testNormals() {
+        // A face on the plane x + y = 0, squashed along x and mirrored along z
+        VertexBuffer vb = new VertexBuffer(1, true);
+        float[][] corners = {{0, 0, 0}, {1, -1, 0}, {0, 0, 1}};
+        float n = (float) Math.sqrt(0.5);
+        for (int v = 0; v < 3; v++) {
+            int i = v * vb.stride;
+            System.arraycopy(corners[v], 0, vb.data, i + vb.vertexOffset, 3);
+            vb.data[i + vb.normalOffset] = n;
+            vb.data[i + vb.normalOffset + 1] = n;
+        }
+        Matrix4 m = new Matrix4().scale(0.25, 1, -1);
+
+        float[] dest = new float[vb.data.length];
+        vb.transform(0, vb.data.length, m, dest, 0);
+
+        double[] edge = {dest[vb.stride] - dest[0], dest[vb.stride + 1] - dest[1], dest[vb.stride + 2] - dest[2]};
+        double nx = dest[vb.normalOffset];
+        double ny = dest[vb.normalOffset + 1];
+        double nz = dest[vb.normalOffset + 2];
+        Assertions.assertEquals(1, Math.sqrt(nx * nx + ny * ny + nz * nz), 1e-6);
+        // Still perpendicular to the transformed face and on the same side
+        Assertions.assertEquals(0, edge[0] * nx + edge[1] * ny + edge[2] * nz, 1e-6);
+        Assertions.assertTrue(nx > 0 && ny > 0);
+    }
+}
@@ -0,0 +1,73 @@
+package cam72cam.mod.render.obj;
+
+import cam72cam.mod.model.obj.OBJGroup;
+import cam72cam.mod.model.obj.OBJParser;
+import org.junit.jupiter.api.Assertions;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class GroupSetTest {
+    /**
+     * Groups a, b and c of two faces each, in that order in the buffer, then d of one face
+     */
+    private static OBJRender render() throws IOException {
+        StringBuilder obj = new StringBuilder();
+        for (int i = 0; i < 3; i++) {
+            obj.append("v ").append(i).append(" 0 0\n");
+            obj.append("v ").append(i).append(" 1 0\n");
+            obj.append("v ").append(i).append(" 0 1\n");
+        }
+        for (String group : new String[]{"a", "b", "c"}) {
+            obj.append("g ").append(group).append("\n");
+            obj.append("f 1 2 3\n");
+            obj.append("f 4 5 6\n");
+        }
+        obj.append("g d\n");
+        obj.append("f 7 8 9\n");
+
+        Map<String, OBJGroup> groups = new HashMap<>();
+        for (OBJGroup group : new OBJParser(obj.toString().getBytes(StandardCharsets.UTF_8), 1).getGroups()) {
+            groups.put(group.name, group);
+        }
+        return new OBJRender(null, () -> null, groups);
+    }
+
+    @org.junit.jupiter.api.Test
+    public void testMergeAdjacent() throws IOException {
+        OBJRender render = render();
+
+        // Name order, not insertion order, and touching groups become one range
+        GroupSet.Ranges ranges = new GroupSet(List.of("b", "a")).ranges(render);
+        Assertions.assertArrayEquals(new int[]{0, 12}, ranges.pairs);
+        Assertions.assertArrayEquals(new int[]{0}, ranges.firsts);
+        Assertions.assertArrayEquals(new int[]{12}, ranges.counts);
+
+        ranges = new GroupSet(List.of("c", "a", "d")).ranges(render);
+        Assertions.assertArrayEquals(new int[]{0, 6, 12, 9}, ranges.pairs);
+        Assertions.assertArrayEquals(new int[]{0, 12}, ranges.firsts);
+        Assertions.assertArrayEquals(new int[]{6, 9}, ranges.counts);
+
+        ranges = new GroupSet(Arrays.asList("d", "c", "b", "a")).ranges(render);
+        Assertions.assertArrayEquals(new int[]{0, 21}, ranges.pairs);
+
+        Assertions.assertEquals(0, new GroupSet(List.of()).ranges(render).pairs.length);
+    }
+
+    @org.junit.jupiter.api.Test
+    public void testPerRender() throws IOException {
+        OBJRender first = render();
+        OBJRender second = render();
+        GroupSet set = new GroupSet(List.of("a", "c"));
+
+        GroupSet.Ranges ranges = set.ranges(first);
+        Assertions.assertSame(ranges, set.ranges(first));
+        Assertions.assertNotSame(ranges, set.ranges(second));
+        Assertions.assertArrayEquals(ranges.pairs, set.ranges(second).pairs);
+        Assertions.assertArrayEquals(set.ranges(first).pairs, render().ranges(set.groups));
+    }
+}
@@ -0,0 +1,70 @@
+package cam72cam.mod.render.opengl;
+
+import cam72cam.mod.Config;
+import org.junit.jupiter.api.Assertions;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class AssetLoaderTest {
+    private static final long MB = 1024 * 1024;
+
+    /**
+     * Occupies the whole memory budget until released, so queued jobs pile up behind it
+     */
+    private static CountDownLatch block() throws InterruptedException {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AssetLoader.submit(() -> {
+            started.countDown();
+            return release.await(10, TimeUnit.SECONDS);
+        }, Config.AssetLoaderMemory * MB, 0);
+        Assertions.assertTrue(started.await(10, TimeUnit.SECONDS));
+        return release;
+    }
+
+    @org.junit.jupiter.api.Test
+    public void testPriority() throws Exception {
+        Config.AssetLoaderMemory = 16;
+        CountDownLatch release = block();
+
+        // Larger than half the budget, so they run one at a time
+        List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+        List<AssetLoader.Job<Integer>> jobs = new ArrayList<>();
+        for (int priority : new int[]{30, 10, 50, 20, 40}) {
+            jobs.add(AssetLoader.submit(() -> {
+                order.add(priority);
+                return priority;
+            }, 10 * MB, priority));
+        }
+        // Re-prioritized while queued
+        jobs.get(2).request(0);
+
+        release.countDown();
+        for (AssetLoader.Job<Integer> job : jobs) {
+            job.get(10, TimeUnit.SECONDS);
+        }
+        Assertions.assertEquals(Arrays.asList(50, 10, 20, 30, 40), order);
+    }
+
+    @org.junit.jupiter.api.Test
+    public void testStale() throws Exception {
+        Config.AssetLoaderMemory = 16;
+        CountDownLatch release = block();
+
+        AssetLoader.Job<Boolean> stale = AssetLoader.submit(() -> true, MB, 0);
+        AssetLoader.Job<Boolean> requested = AssetLoader.submit(() -> true, MB, 0);
+        for (int i = 0; i < 30; i++) {
+            requested.request(0);
+            Thread.sleep(100);
+        }
+        release.countDown();
+
+        Assertions.assertTrue(requested.get(10, TimeUnit.SECONDS));
+        Assertions.assertTrue(stale.isCancelled());
+    }
+}
@@ -0,0 +1,63 @@
+package cam72cam.mod.render.opengl;
+
+import org.junit.jupiter.api.Assertions;
+import util.Matrix4;
+
+import java.nio.ByteBuffer;
+
+public class InstanceBufferTest {
+    @org.junit.jupiter.api.Test
+    public void testLayout() {
+        Matrix4 m = new Matrix4(
+                1, 2, 3, 4,
+                5, 6, 7, 8,
+                9, 10, 11, 12,
+                13, 14, 15, 16
+        );
+        InstanceBuffer buffer = new InstanceBuffer();
+        buffer.add(new Matrix4(), null, null);
+        buffer.add(m, new float[]{1, 0.5f, 0, 2}, new float[]{0.5f, 1});
+
+        ByteBuffer data = buffer.data();
+        Assertions.assertEquals(2 * InstanceBuffer.STRIDE, data.remaining());
+
+        // Columns, so the translation ends up in the last vec4
+        int i = InstanceBuffer.STRIDE + InstanceBuffer.MODEL_VIEW_OFFSET;
+        float[] expected = {1, 5, 9, 13, 2, 6, 10, 14, 3, 7, 11, 15, 4, 8, 12, 16};
+        for (int c = 0; c < 16; c++) {
+            Assertions.assertEquals(expected[c], data.getFloat(i + c * Float.BYTES));
+        }
+
+        i = InstanceBuffer.STRIDE + InstanceBuffer.COLOR_OFFSET;
+        Assertions.assertEquals(255, data.get(i) & 0xFF);
+        Assertions.assertEquals(128, data.get(i + 1) & 0xFF);
+        Assertions.assertEquals(0, data.get(i + 2) & 0xFF);
+        Assertions.assertEquals(255, data.get(i + 3) & 0xFF);
+        i = InstanceBuffer.STRIDE + InstanceBuffer.LIGHT_OFFSET;
+        Assertions.assertEquals(127, data.getShort(i));
+        Assertions.assertEquals(255, data.getShort(i + 2));
+
+        // Defaults are white and full bright
+        Assertions.assertEquals(1, data.getFloat(InstanceBuffer.MODEL_VIEW_OFFSET));
+        Assertions.assertEquals(-1, data.getInt(InstanceBuffer.COLOR_OFFSET));
+        Assertions.assertEquals(255, data.getShort(InstanceBuffer.LIGHT_OFFSET));
+        Assertions.assertEquals(255, data.getShort(InstanceBuffer.LIGHT_OFFSET + 2));
+    }
+
+    @org.junit.jupiter.api.Test
+    public void testGrowAndClear() {
+        InstanceBuffer buffer = new InstanceBuffer();
+        for (int i = 0; i < 100; i++) {
+            buffer.add(new Matrix4().translate(i, 0, 0), null, null);
+        }
+        Assertions.assertEquals(100, buffer.count());
+        ByteBuffer data = buffer.data();
+        for (int i = 0; i < 100; i++) {
+            Assertions.assertEquals(i, data.getFloat(i * InstanceBuffer.STRIDE + 12 * Float.BYTES));
+        }
+
+        buffer.clear();
+        Assertions.assertEquals(0, buffer.count());
+        Assertions.assertEquals(0, buffer.data().remaining());
+    }
+}
@@ -0,0 +1,107 @@
+package cam72cam.mod.render.opengl;
+
+import org.junit.jupiter.api.Assertions;
+import util.Matrix4;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+public class InstancesTest {
+    private static VBO vbo() {
+        return new VBO(() -> null, s -> {});
+    }
+
+    private static List<Instances.Batch> batches(Instances instances) {
+        List<Instances.Batch> out = new ArrayList<>();
+        instances.batches().forEach(out::add);
+        return out;
+    }
+
+    @org.junit.jupiter.api.Test
+    public void testBatching() {
+        VBO a = vbo();
+        VBO b = vbo();
+        Instances instances = new Instances();
+        instances.add(a, new int[]{0, 30}, 1, new Matrix4(), null, null);
+        instances.add(b, new int[]{0, 30}, 1, new Matrix4(), null, null);
+        // Same content in a different array is the same group set
+        instances.add(a, new int[]{0, 30}, 1, new Matrix4(), null, null);
+        instances.add(a, new int[]{0, 30}, 2, new Matrix4(), null, null);
+        instances.add(a, new int[]{0, 12, 18, 12}, 1, new Matrix4(), null, null);
+        instances.add(b, new int[]{0, 30}, 1, new Matrix4(), null, null);
+        Assertions.assertEquals(6, instances.count());
+
+        List<Instances.Batch> batches = batches(instances);
+        Assertions.assertEquals(4, batches.size());
+        Assertions.assertSame(a, batches.get(0).vbo);
+        Assertions.assertEquals(2, batches.get(0).instances.count());
+        Assertions.assertSame(b, batches.get(1).vbo);
+        Assertions.assertEquals(2, batches.get(1).instances.count());
+        Assertions.assertEquals(2, batches.get(2).texture);
+        Assertions.assertEquals(1, batches.get(2).instances.count());
+        Assertions.assertEquals(4, batches.get(3).ranges.length);
+    }
+
+    @org.junit.jupiter.api.Test
+    public void testUntextured() {
+        VBO a = vbo();
+        Instances instances = new Instances();
+        RenderState untextured = new RenderState();
+        untextured.model_view().setIdentity();
+        instances.add(a, new int[]{0, 30}, untextured);
+        instances.add(a, new int[]{0, 30}, untextured.clone().texture(Texture.wrap(5)));
+        instances.add(a, new int[]{0, 30}, untextured);
+
+        List<Instances.Batch> batches = batches(instances);
+        Assertions.assertEquals(2, batches.size());
+        Assertions.assertEquals(Texture.NO_TEXTURE.getId(), batches.get(0).texture);
+        Assertions.assertEquals(2, batches.get(0).instances.count());
+        // Never binds the placeholder id, keeps whatever was bound before the draw
+        Assertions.assertEquals(7, batches.get(0).bindTexture(7));
+        Assertions.assertEquals(5, batches.get(1).bindTexture(7));
+    }
+
+    @org.junit.jupiter.api.Test
+    public void testPack() {
+        VBO a = vbo();
+        VBO b = vbo();
+        Instances instances = new Instances();
+        // Interleaved submissions end up contiguous per batch
+        for (int i = 0; i < 50; i++) {
+            instances.add(i % 2 == 0 ? a : b, new int[]{0, 3}, 1, new Matrix4().translate(i, 0, 0), null, null);
+        }
+
+        ByteBuffer packed = instances.pack();
+        Assertions.assertEquals(50 * InstanceBuffer.STRIDE, packed.remaining());
+        List<Instances.Batch> batches = batches(instances);
+        Assertions.assertEquals(0, batches.get(0).offset);
+        Assertions.assertEquals(25 * InstanceBuffer.STRIDE, batches.get(1).offset);
+        for (int i = 0; i < 25; i++) {
+            int translateX = batches.get(0).offset + i * InstanceBuffer.STRIDE + 12 * Float.BYTES;
+            Assertions.assertEquals(i * 2, packed.getFloat(translateX));
+            translateX = batches.get(1).offset + i * InstanceBuffer.STRIDE + 12 * Float.BYTES;
+            Assertions.assertEquals(i * 2 + 1, packed.getFloat(translateX));
+        }
+    }
+
+    @org.junit.jupiter.api.Test
+    public void testClear() {
+        VBO a = vbo();
+        VBO b = vbo();
+        Instances instances = new Instances();
+        instances.add(a, new int[]{0, 3}, 1, new Matrix4(), null, null);
+        instances.add(b, new int[]{0, 3}, 1, new Matrix4(), null, null);
+        instances.clear();
+        Assertions.assertEquals(0, instances.count());
+        // Kept for the next frame
+        Assertions.assertEquals(2, batches(instances).size());
+
+        instances.add(a, new int[]{0, 3}, 1, new Matrix4(), null, null);
+        Instances.Batch kept = batches(instances).get(0);
+        instances.clear();
+        // b was not used since the last clear
+        Assertions.assertEquals(1, batches(instances).size());
+        Assertions.assertSame(kept, batches(instances).get(0));
+    }
+}
@@ -0,0 +1,144 @@
+package cam72cam.mod.render.opengl;
+
+import cam72cam.mod.render.OptiFine;
+import org.junit.jupiter.api.Assertions;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class RenderQueueTest {
+    /**
+     * Records every call as a string instead of touching GL
+     */
+    private static class Recorder implements RenderQueue.Backend {
+        private final List<String> calls = new ArrayList<>();
+        private final List<VBO> drawn = new ArrayList<>();
+
+        @Override
+        public void begin() {
+            calls.add("begin");
+        }
+
+        @Override
+        public void shader(OptiFine.Shaders shader) {
+            calls.add("shader " + shader);
+        }
+
+        @Override
+        public void texture(Texture texture) {
+            calls.add("texture " + (texture == null ? null : texture.getId()));
+        }
+
+        @Override
+        public void blend(BlendMode blend) {
+            calls.add("blend " + (blend == null ? null : blend == BlendMode.OPAQUE ? "opaque" : "other"));
+        }
+
+        @Override
+        public void depth(Boolean test, Boolean mask) {
+            calls.add("depth " + test + " " + mask);
+        }
+
+        @Override
+        public void draw(VBO vbo, int[] ranges, int rangeCount, RenderState state) {
+            calls.add("draw " + Arrays.toString(Arrays.copyOf(ranges, rangeCount * 2)));
+            drawn.add(vbo);
+        }
+
+        @Override
+        public void end() {
+            calls.add("end");
+        }
+
+        private long count(String prefix) {
+            return calls.stream().filter(c -> c.startsWith(prefix)).count();
+        }
+    }
+
+    private static VBO vbo() {
+        return new VBO(() -> null, s -> {});
+    }
+
+    private static RenderState state(int texture) {
+        return new RenderState().texture(Texture.wrap(texture));
+    }
+
+    @org.junit.jupiter.api.Test
+    public void testSortedByTexture() {
+        Recorder recorder = new Recorder();
+        RenderQueue queue = new RenderQueue(recorder);
+        VBO a = vbo();
+        VBO b = vbo();
+        queue.add(a, new int[]{0, 3}, state(1).translate(1, 0, 0));
+        queue.add(b, new int[]{0, 3}, state(2).translate(2, 0, 0));
+        queue.add(a, new int[]{0, 3}, state(1).translate(3, 0, 0));
+        queue.add(b, new int[]{0, 3}, state(2).translate(4, 0, 0));
+        Assertions.assertEquals(4, queue.size());
+
+        queue.flush();
+        Assertions.assertEquals(0, queue.size());
+        Assertions.assertEquals(2, recorder.count("texture"));
+        Assertions.assertEquals(4, recorder.count("draw"));
+        Assertions.assertEquals(List.of(a, a, b, b), recorder.drawn);
+        Assertions.assertEquals(List.of(
+                "begin", "shader null", "texture 1", "blend null", "depth null null",
+                "draw [0, 3]", "draw [0, 3]",
+                "texture 2",
+                "draw [0, 3]", "draw [0, 3]",
+                "end"
+        ), recorder.calls);
+    }
+
+    @org.junit.jupiter.api.Test
+    public void testStateOrder() {
+        Recorder recorder = new Recorder();
+        RenderQueue queue = new RenderQueue(recorder);
+        VBO a = vbo();
+        BlendMode blend = new BlendMode(BlendMode.GL_SRC_ALPHA, BlendMode.GL_ONE_MINUS_SRC_ALPHA);
+        queue.add(a, new int[]{0, 3}, state(1).blend(blend).translate(1, 0, 0));
+        queue.add(a, new int[]{0, 3}, state(1).depth_mask(false).translate(2, 0, 0));
+        queue.add(a, new int[]{0, 3}, state(1).shader(OptiFine.Shaders.Entities).translate(3, 0, 0));
+        queue.add(a, new int[]{0, 3}, state(1).translate(4, 0, 0));
+        queue.flush();
+
+        // Shader first, then blend, then depth, texture never changes
+        Assertions.assertEquals(List.of(
+                "begin", "shader null", "texture 1", "blend null", "depth null null",
+                "draw [0, 3]",
+                "depth null false",
+                "draw [0, 3]",
+                "blend other", "depth null null",
+                "draw [0, 3]",
+                "shader Entities", "blend null",
+                "draw [0, 3]",
+                "end"
+        ), recorder.calls);
+    }
+
+    @org.junit.jupiter.api.Test
+    public void testMerge() {
+        Recorder recorder = new Recorder();
+        RenderQueue queue = new RenderQueue(recorder);
+        VBO a = vbo();
+        VBO b = vbo();
+        queue.add(a, new int[]{0, 30}, state(1).translate(1, 0, 0));
+        queue.add(b, new int[]{0, 30}, state(1).translate(1, 0, 0));
+        queue.add(a, new int[]{30, 12, 90, 6}, state(1).translate(1, 0, 0));
+        queue.add(a, new int[]{96, 3}, state(1).translate(1, 0, 0));
+        // Different matrix, drawn on its own
+        queue.add(a, new int[]{42, 6}, state(1).translate(2, 0, 0));
+        queue.flush();
+
+        Assertions.assertEquals(3, recorder.count("draw"));
+        Assertions.assertTrue(recorder.calls.contains("draw [0, 42, 90, 9]"));
+        Assertions.assertTrue(recorder.calls.contains("draw [42, 6]"));
+        Assertions.assertTrue(recorder.calls.contains("draw [0, 30]"));
+
+        // Pooled commands start clean
+        queue.add(a, new int[]{3, 3}, state(1));
+        recorder.calls.clear();
+        queue.flush();
+        Assertions.assertTrue(recorder.calls.contains("draw [3, 3]"));
+    }
+}
@@ -0,0 +1,196 @@
+package cam72cam.mod.render.opengl;
+
+import cam72cam.mod.render.OptiFine;
+import org.junit.jupiter.api.Assertions;
+
+import java.lang.management.ManagementFactory;
+import java.util.function.Consumer;
+
+public class StateStackTest {
+    private static final int DRAWS = 1000;
+    private static final Consumer<RenderState> SETTINGS = s -> s.color(1, 0.5f, 0.5f, 1);
+
+    /**
+     * Draws nothing, so only the queue itself allocates
+     */
+    private static class Discard implements RenderQueue.Backend {
+        private int draws = 0;
+
+        @Override
+        public void begin() {
+        }
+
+        @Override
+        public void shader(OptiFine.Shaders shader) {
+        }
+
+        @Override
+        public void texture(Texture texture) {
+        }
+
+        @Override
+        public void blend(BlendMode blend) {
+        }
+
+        @Override
+        public void depth(Boolean test, Boolean mask) {
+        }
+
+        @Override
+        public void draw(VBO vbo, int[] ranges, int rangeCount, RenderState state) {
+            draws++;
+        }
+
+        @Override
+        public void end() {
+        }
+    }
+
+    private static long allocated() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getCurrentThreadAllocatedBytes();
+    }
+
+    /**
+     * Bytes allocated by frame, after enough frames for every pool to reach its steady size
+     *
+     * The JIT occasionally charges a few bytes to the thread while it swaps in compiled code, so this is the least of
+     * a few frames: allocations made by the frame itself show up in every one of them.
+     */
+    private static long steadyState(Runnable frame) {
+        for (int i = 0; i < 20; i++) {
+            frame.run();
+        }
+        long least = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            long before = allocated();
+            long overhead = allocated() - before;
+            before = allocated();
+            frame.run();
+            least = Math.min(least, allocated() - before - overhead);
+        }
+        return least;
+    }
+
+    @org.junit.jupiter.api.Test
+    public void testPushPop() {
+        StateStack stack = new StateStack();
+        RenderState state = new RenderState().color(1, 1, 1, 1).depth_test(true);
+        state.model_view().setIdentity();
+
+        RenderState body = stack.push(state).translate(1, 2, 3);
+        RenderState arm = stack.push().rotate(90, 0, 1, 0).color(1, 0, 0, 1).cull_face(false);
+        Assertions.assertEquals(2, stack.depth());
+        Assertions.assertSame(arm, stack.peek());
+        Assertions.assertEquals(1, arm.model_view().m03, 0.0001);
+        Assertions.assertEquals(Boolean.TRUE, arm.bool(org.lwjgl.opengl.GL11.GL_DEPTH_TEST));
+        Assertions.assertEquals(Boolean.FALSE, arm.bool(org.lwjgl.opengl.GL11.GL_CULL_FACE));
+        Assertions.assertNull(body.bool(org.lwjgl.opengl.GL11.GL_CULL_FACE));
+        // Copies never share storage with their source
+        Assertions.assertEquals(1, body.color[1], 0);
+        Assertions.assertEquals(0, state.model_view().m03, 0);
+
+        stack.pop();
+        Assertions.assertSame(body, stack.peek());
+        // Reused slot starts from the new source
+        RenderState again = stack.push();
+        Assertions.assertSame(arm, again);
+        Assertions.assertEquals(1, again.color[1], 0);
+        Assertions.assertNull(again.bool(org.lwjgl.opengl.GL11.GL_CULL_FACE));
+        stack.clear();
+        Assertions.assertEquals(0, stack.depth());
+        Assertions.assertThrows(IllegalStateException.class, stack::pop);
+    }
+
+    @org.junit.jupiter.api.Test
+    public void testStackAllocation() {
+        StateStack stack = new StateStack();
+        RenderState state = new RenderState().color(1, 1, 1, 1).lightmap(1, 1);
+        state.model_view().setIdentity();
+        state.projection().setIdentity();
+
+        long bytes = steadyState(() -> {
+            for (int i = 0; i < DRAWS; i++) {
+                stack.push(state).translate(i, 0, 0).rotate(i, 0, 1, 0);
+                stack.push().scale(2, 2, 2).color(1, 0, 0, 1).lightmap(0.5f, 1).depth_mask(false);
+                stack.pop();
+                stack.pop();
+            }
+        });
+        Assertions.assertEquals(0, bytes, "bytes allocated per frame");
+    }
+
+    @org.junit.jupiter.api.Test
+    public void testQueueAllocation() {
+        Discard backend = new Discard();
+        RenderQueue queue = new RenderQueue(backend);
+        VBO[] vbos = {new VBO(() -> null, s -> {}), new VBO(() -> null, s -> {})};
+        int[] ranges = {0, 30, 60, 12};
+        RenderState[] states = {
+                new RenderState().texture(Texture.wrap(1)),
+                new RenderState().texture(Texture.wrap(2)).depth_test(true),
+        };
+        for (RenderState state : states) {
+            state.model_view().setIdentity();
+        }
+
+        long bytes = steadyState(() -> {
+            backend.draws = 0;
+            for (int i = 0; i < DRAWS; i++) {
+                RenderState state = states[i % 2];
+                state.model_view().setIdentity().translate(i, 0, 0);
+                queue.add(vbos[i % 2], ranges, state, SETTINGS);
+            }
+            queue.flush();
+        });
+        Assertions.assertEquals(0, bytes, "bytes allocated per frame");
+        Assertions.assertEquals(DRAWS, backend.draws);
+    }
+
+    @org.junit.jupiter.api.Test
+    public void testSamplerAllocation() {
+        // Well outside the Integer.valueOf cache
+        int[] textures = {3, 200, 1000, 70000};
+        for (int texture : textures) {
+            Assertions.assertEquals(texture, RenderContext.samplerId(texture).intValue());
+            Assertions.assertSame(RenderContext.samplerId(texture), RenderContext.samplerId(texture));
+        }
+
+        long bytes = steadyState(() -> {
+            for (int i = 0; i < DRAWS; i++) {
+                RenderContext.samplerId(textures[i % textures.length]);
+            }
+        });
+        Assertions.assertEquals(0, bytes, "bytes allocated per frame");
+    }
+
+    @org.junit.jupiter.api.Test
+    public void testInstancesAllocation() {
+        Instances instances = new Instances();
+        VBO vbo = new VBO(() -> null, s -> {});
+        int[] ranges = {0, 30};
+        RenderState state = new RenderState().texture(Texture.wrap(1)).lightmap(1, 1);
+        state.model_view().setIdentity();
+
+        // Packing and clearing are per frame, only the adds are per draw
+        for (int i = 0; i < 20; i++) {
+            for (int d = 0; d < DRAWS; d++) {
+                instances.add(vbo, ranges, state, SETTINGS);
+            }
+            instances.clear();
+        }
+        // Least of a few frames, see steadyState
+        long least = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            instances.clear();
+            long before = allocated();
+            long overhead = allocated() - before;
+            before = allocated();
+            for (int d = 0; d < DRAWS; d++) {
+                instances.add(vbo, ranges, state, SETTINGS);
+            }
+            least = Math.min(least, allocated() - before - overhead);
+        }
+        Assertions.assertEquals(0, least, "bytes allocated per frame");
+        Assertions.assertEquals(DRAWS, instances.count());
+    }
+}
@@ -0,0 +1,109 @@
+package cam72cam.mod.render.opengl;
+
+import cam72cam.mod.Config;
+import org.junit.jupiter.api.Assertions;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class VRAMBudgetTest {
+    private static final long KB = 1024;
+
+    private static VRAMBudget.Resident resident(List<String> evicted, String name, long timeoutMillis) {
+        VRAMBudget.Resident[] self = new VRAMBudget.Resident[1];
+        self[0] = new VRAMBudget.Resident(timeoutMillis, () -> {
+            evicted.add(name);
+            VRAMBudget.freed(self[0]);
+        });
+        return self[0];
+    }
+
+    @org.junit.jupiter.api.Test
+    public void testLimit() {
+        Config.VRAMLimit = 1;
+        List<String> evicted = new ArrayList<>();
+        VRAMBudget.Resident a = resident(evicted, "a", 60000);
+        VRAMBudget.Resident b = resident(evicted, "b", 60000);
+        VRAMBudget.Resident c = resident(evicted, "c", 60000);
+        VRAMBudget.Resident d = resident(evicted, "d", 60000);
+
+        VRAMBudget.loaded(a, 400 * KB);
+        VRAMBudget.loaded(b, 400 * KB);
+        VRAMBudget.frame();
+        VRAMBudget.frame();
+        VRAMBudget.loaded(c, 400 * KB);
+        Assertions.assertEquals(List.of("a"), evicted);
+
+        // b is now more recent than c
+        VRAMBudget.touch(b);
+        VRAMBudget.frame();
+        VRAMBudget.frame();
+        VRAMBudget.loaded(d, 400 * KB);
+        Assertions.assertEquals(List.of("a", "c"), evicted);
+        Assertions.assertEquals(800 * KB, VRAMBudget.residentBytes());
+
+        VRAMBudget.freed(b);
+        VRAMBudget.freed(d);
+        Assertions.assertEquals(0, VRAMBudget.residentBytes());
+    }
+
+    @org.junit.jupiter.api.Test
+    public void testCurrentFrameKept() {
+        Config.VRAMLimit = 1;
+        List<String> evicted = new ArrayList<>();
+        VRAMBudget.Resident a = resident(evicted, "a", 60000);
+        VRAMBudget.Resident b = resident(evicted, "b", 60000);
+
+        // Both drawn this frame, going over the limit beats reloading every frame
+        VRAMBudget.loaded(a, 600 * KB);
+        VRAMBudget.loaded(b, 600 * KB);
+        Assertions.assertTrue(evicted.isEmpty());
+
+        VRAMBudget.freed(a);
+        VRAMBudget.freed(b);
+    }
+
+    @org.junit.jupiter.api.Test
+    public void testIdleTimeout() {
+        Config.VRAMLimit = 0;
+        List<String> evicted = new ArrayList<>();
+        VRAMBudget.Resident shortTimeout = resident(evicted, "short", 2000);
+        VRAMBudget.Resident longTimeout = resident(evicted, "long", 60000);
+        VRAMBudget.loaded(shortTimeout, KB);
+        VRAMBudget.loaded(longTimeout, KB);
+
+        VRAMBudget.sweep(System.currentTimeMillis() + 500);
+        Assertions.assertTrue(evicted.isEmpty());
+        VRAMBudget.sweep(System.currentTimeMillis() + 5000);
+        Assertions.assertEquals(List.of("short"), evicted);
+
+        VRAMBudget.freed(longTimeout);
+    }
+
+    @org.junit.jupiter.api.Test
+    public void testSweepBounded() throws InterruptedException {
+        Config.VRAMLimit = 0;
+        List<String> evicted = new ArrayList<>();
+        int count = VRAMBudget.SWEEP_LIMIT * 2 + 10;
+        for (int i = 0; i < count; i++) {
+            VRAMBudget.loaded(resident(evicted, "r" + i, 50), KB);
+        }
+        // Queued strictly after the others, so it can't take one of their places in the first sweeps
+        VRAMBudget.Resident used = resident(evicted, "used", 60);
+        VRAMBudget.loaded(used, KB);
+        Thread.sleep(100);
+        // Used since it was queued, goes back in the queue instead of being freed
+        VRAMBudget.touch(used);
+
+        long now = System.currentTimeMillis();
+        VRAMBudget.sweep(now);
+        Assertions.assertEquals(VRAMBudget.SWEEP_LIMIT, evicted.size());
+        VRAMBudget.sweep(now);
+        VRAMBudget.sweep(now);
+        Assertions.assertEquals(count, evicted.size());
+        Assertions.assertFalse(evicted.contains("used"));
+        Assertions.assertEquals(KB, VRAMBudget.residentBytes());
+
+        VRAMBudget.freed(used);
+    }
+}
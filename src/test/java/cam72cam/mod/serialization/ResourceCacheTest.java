@@ -0,0 +1,137 @@
+package cam72cam.mod.serialization;
+
+import cam72cam.mod.ModCore;
+import cam72cam.mod.resource.Identifier;
+import cpw.mods.modlauncher.Launcher;
+import net.minecraftforge.api.distmarker.Dist;
+import net.minecraftforge.fml.loading.FMLLoader;
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class ResourceCacheTest {
+    private static final Identifier CACHE = new Identifier("resourcecachetest", "model");
+
+    @BeforeAll
+    public static void setup() throws Exception {
+        Constructor<Launcher> ctr = Launcher.class.getDeclaredConstructor();
+        ctr.setAccessible(true);
+        ctr.newInstance();
+
+        Field dist = FMLLoader.class.getDeclaredField("dist");
+        dist.setAccessible(true);
+        dist.set(null, Dist.CLIENT);
+
+        FileUtils.deleteDirectory(ModCore.cacheFile(CACHE));
+    }
+
+    /**
+     * Resource served from memory
+     */
+    private static class FakeIdentifier extends Identifier {
+        private final Map<Identifier, String> files;
+
+        public FakeIdentifier(String ident, Map<Identifier, String> files) {
+            super(ident);
+            this.files = files;
+        }
+
+        @Override
+        public InputStream getLastResourceStream() throws IOException {
+            return new ByteArrayInputStream(files.get(this).getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Composites the texture once and hands the memoized copy to every converter, like OBJBuilder's texture levels
+     */
+    private static class Sheet {
+        private final ResourceCache.ResourceProvider provider;
+        private final Identifier texture;
+        private String pixels;
+
+        private Sheet(ResourceCache.ResourceProvider provider, Identifier texture) {
+            this.provider = provider;
+            this.texture = texture;
+        }
+
+        private String pixels() {
+            if (pixels == null) {
+                pixels = new String(provider.apply(texture), StandardCharsets.UTF_8);
+            }
+            return pixels;
+        }
+    }
+
+    private static List<String> load(Identifier texture, List<String> outputs) throws IOException {
+        List<String> converted = new ArrayList<>();
+        ResourceCache<Sheet> cache = new ResourceCache<>(CACHE, provider -> new Sheet(provider, texture));
+        List<ResourceCache.GenericByteBuffer> data = new ArrayList<>();
+        data.add(cache.getResource("sheet", sheet -> {
+            converted.add("sheet");
+            return new ResourceCache.GenericByteBuffer(sheet.pixels().getBytes(StandardCharsets.UTF_8));
+        }).get());
+        data.add(cache.getResource("sheet_64", Collections.singletonList("sheet"), sheet -> {
+            converted.add("sheet_64");
+            return new ResourceCache.GenericByteBuffer(sheet.pixels().toLowerCase().getBytes(StandardCharsets.UTF_8));
+        }).get());
+        cache.close();
+
+        outputs.clear();
+        for (ResourceCache.GenericByteBuffer buffer : data) {
+            outputs.add(new String(buffer.bytes(), StandardCharsets.UTF_8));
+        }
+        return converted;
+    }
+
+    /**
+     * Make the next cache opened see the texture as changed since it was written.  Resource hashes are kept for the
+     * whole session, so a real edit only shows up in the next one: replace the hash it recorded instead.
+     */
+    private static void edited(Identifier texture) throws IOException {
+        File meta = new File(ModCore.cacheFile(CACHE), "meta.nbt");
+        TagCompound data = new TagCompound(Files.readAllBytes(meta.toPath()));
+        Map<String, TagCompound> resources = data.getMap("resources", k -> k, v -> v);
+        Assertions.assertTrue(resources.containsKey(texture.toString()));
+        resources.put(texture.toString(), new TagCompound().setString("key", "edited"));
+        data.setMap("resources", resources, k -> k, v -> v);
+        Files.write(meta.toPath(), data.toBytes());
+    }
+
+    @org.junit.jupiter.api.Test
+    public void testDerivedOutputStale() throws IOException {
+        Map<Identifier, String> files = new HashMap<>();
+        Identifier texture = new FakeIdentifier("resourcecachetest:texture.png", files);
+        files.put(texture, "RED");
+        List<String> outputs = new ArrayList<>();
+
+        Assertions.assertEquals(List.of("sheet", "sheet_64"), load(texture, outputs));
+        Assertions.assertEquals(List.of("RED", "red"), outputs);
+
+        Assertions.assertEquals(List.of(), load(texture, outputs));
+        Assertions.assertEquals(List.of("RED", "red"), outputs);
+
+        // Only the sheet converter reads the texture, the smaller level must still be rebuilt
+        files.put(texture, "BLUE");
+        edited(texture);
+        Assertions.assertEquals(List.of("sheet", "sheet_64"), load(texture, outputs));
+        Assertions.assertEquals(List.of("BLUE", "blue"), outputs);
+
+        Assertions.assertEquals(List.of(), load(texture, outputs));
+        Assertions.assertEquals(List.of("BLUE", "blue"), outputs);
+    }
+}